@@ -0,0 +1,441 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.daemon;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.simmetry.lcd.events.LcdButtonPressEvent;
+import com.simmetry.lcd.events.LcdButtonPressEventListener;
+import com.simmetry.lcd.moapi.LcdBitmap;
+import com.simmetry.lcd.moapi.LcdSimulator;
+import com.simmetry.lcd.moapi.LedColor;
+import com.simmetry.lcd.moapi.LedNumber;
+import com.simmetry.lcd.moapi.LedPower;
+import com.simmetry.lcd.moapi.MatrixOrbitalApi;
+import com.simmetry.lcd.moapi.MatrixOrbitalCommands;
+
+/**
+ * Shares one LCD between many local processes. Only one process can own the serial port, so
+ * the daemon owns it through a MatrixOrbitalApi and serves clients on a socket bound to the
+ * loopback address. Each client claims the text rows, rectangles of the graphics and LEDs it
+ * draws on; a part of the LCD has one owner at a time, and is cleared when its owner leaves.
+ *
+ * Clients only change what they want their parts to show. Every TICK_MILLIS the daemon takes
+ * the latest state of the clients in turn, starting with a different client each tick, and
+ * sends it: rows with MatrixOrbitalApi.updateRowText(), which sends only changed characters,
+ * and the graphics of all clients merged into one frame for MatrixOrbitalApi.drawBitmap(),
+ * which sends only the changed pixels. A client is published at most maxUpdatesPerSecond
+ * times a second, whatever it sends in between is coalesced, and once FLUSH_BUDGET_BYTES are
+ * waiting for the LCD the remaining clients wait for the next tick, so a busy client cannot
+ * hold up the others. Key presses are sent to every client that subscribed to them.
+ *
+ * The protocol is one command per line, ISO-8859-1, with space separated arguments; every
+ * command is answered with "OK" or "ERR reason", and key presses arrive as "KEY button":
+ *   HELLO name							names the client in the log
+ *   CLAIM ROW first [last]				claims text rows
+ *   CLAIM AREA x_a y_a x_b y_b			claims a rectangle of the graphics
+ *   CLAIM LED n						claims LED 1, 2 or 3
+ *   RELEASE							gives up and clears everything claimed
+ *   TEXT row LEFT|CENTER|RIGHT text	replaces the text of a claimed row
+ *   PIXEL x y BLACK|WHITE				draws in the claimed areas, clipped to them
+ *   LINE x_a y_a x_b y_b BLACK|WHITE
+ *   RECT x_a y_a x_b y_b BLACK|WHITE
+ *   FILL x_a y_a x_b y_b BLACK|WHITE
+ *   CLEAR								blanks the claimed rows and areas
+ *   LED n RED|GREEN|YELLOW|OFF			sets a claimed LED
+ *   KEYS ON|OFF						subscribes to key presses
+ *   QUIT
+ *
+ * Usage: LcdDaemon [-port listenPort] [-rate updatesPerSecond] serialPort | host:port | -simulate
+ */
+public class LcdDaemon {
+
+	public static final int DEFAULT_PORT = 7150;
+	public static final int DEFAULT_UPDATES_PER_SECOND = 10;
+
+	// how often the clients' state is sent, and how many bytes may wait for the LCD before
+	// the clients not yet published this tick are left for the next one (about 100 ms at 19200)
+	static final long TICK_MILLIS = 50;
+	static final int FLUSH_BUDGET_BYTES = 192;
+
+	private final MatrixOrbitalApi api;
+	private final long minPublishNanos;
+	private final ScheduledExecutorService scheduler;
+	private ServerSocket server = null;
+
+	// owner of each text row and LED, by number, and of each claimed area
+	private final LcdDaemonSession[] rowOwners;
+	private final LcdDaemonSession[] ledOwners = new LcdDaemonSession[4];
+	private final List<LcdDaemonSession.Area> areas = new ArrayList<LcdDaemonSession.Area>();
+	private final List<LcdDaemonSession> sessions = new ArrayList<LcdDaemonSession>();
+	private int nextFirst = 0;
+
+	// the graphics wanted on the LCD, and what a client that left has to have cleared
+	private final LcdBitmap frame;
+	private boolean frameChanged = false;
+	private final List<Integer> releasedRows = new ArrayList<Integer>();
+	private final List<Integer> releasedLeds = new ArrayList<Integer>();
+
+	// class logger
+	private static final Logger logger = Logger.getLogger(com.simmetry.lcd.daemon.LcdDaemon.class);
+
+	/**
+	 * @param api					The connected LCD to share
+	 * @param maxUpdatesPerSecond	The most times a second the state of one client is sent
+	 */
+	public LcdDaemon(MatrixOrbitalApi api, int maxUpdatesPerSecond) {
+		this.api = api;
+		this.minPublishNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, maxUpdatesPerSecond);
+		this.rowOwners = new LcdDaemonSession[api.getDeviceProfile().getTextRows() + 1];
+		this.frame = api.getGraphics();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "LcdDaemon");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		api.addLcdButtonPressEventListener(new LcdButtonPressEventListener() {
+			public void lcdButtonPressAction(LcdButtonPressEvent event) {
+				keyPressed(event);
+			}
+		});
+	}
+
+	/**
+	 * Starts sending the clients' state to the LCD and accepting clients on the given port of
+	 * the loopback address. Returns once the port is open.
+	 * @param port	The port to listen on, 0 for any free port
+	 * @return		The port listened on
+	 * @throws IOException	If the port cannot be opened
+	 */
+	public int start(int port) throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				}
+				catch (RuntimeException e) {
+					logger.error("flush failed", e);
+				}
+			}
+		}, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptClients();
+			}
+		}, "LcdDaemon-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		logger.info("LCD daemon listening on port " + server.getLocalPort());
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Stops accepting clients, disconnects the current ones and stops sending to the LCD. The
+	 * API is left connected.
+	 */
+	public void stop() {
+		try {
+			if (server != null) {
+				server.close();
+			}
+		}
+		catch (IOException ioeError) {
+			logger.debug(ioeError.toString(), ioeError);
+		}
+		List<LcdDaemonSession> current;
+		synchronized (this) {
+			current = new ArrayList<LcdDaemonSession>(sessions);
+		}
+		for (LcdDaemonSession session : current) {
+			session.close();
+		}
+		scheduler.shutdownNow();
+	}
+
+	public MatrixOrbitalApi getApi() {
+		return api;
+	}
+
+	/**
+	 * @return The number of clients connected
+	 */
+	public synchronized int getClientCount() {
+		return sessions.size();
+	}
+
+	private void acceptClients() {
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				LcdDaemonSession session = new LcdDaemonSession(this, socket, api.getDeviceProfile());
+				synchronized (this) {
+					sessions.add(session);
+				}
+				session.start();
+			}
+			catch (IOException ioeError) {
+				if (!server.isClosed()) {
+					logger.error("client could not be accepted", ioeError);
+				}
+			}
+		}
+	}
+
+	///
+	/// This section provides the ownership of rows, areas and LEDs
+	///
+
+	/**
+	 * @return Null if the rows were claimed, or why not
+	 */
+	synchronized String claimRows(LcdDaemonSession session, int first, int last) {
+		if (first < 1 || last >= rowOwners.length || first > last) {
+			return "rows out of range";
+		}
+		for (int row = first; row <= last; row++) {
+			if (rowOwners[row] != null && rowOwners[row] != session) {
+				return "row " + row + " is owned by " + rowOwners[row].getName();
+			}
+		}
+		for (int row = first; row <= last; row++) {
+			rowOwners[row] = session;
+		}
+		return null;
+	}
+
+	/**
+	 * @return Null if the area was claimed, or why not
+	 */
+	synchronized String claimArea(LcdDaemonSession.Area area) {
+		if (!frame.contains(area.x0, area.y0) || !frame.contains(area.x1, area.y1)) {
+			return "area off the screen";
+		}
+		for (LcdDaemonSession.Area other : areas) {
+			if (other.owner != area.owner && other.overlaps(area)) {
+				return "area overlaps one owned by " + other.owner.getName();
+			}
+		}
+		areas.add(area);
+		return null;
+	}
+
+	/**
+	 * @return Null if the LED was claimed, or why not
+	 */
+	synchronized String claimLed(LcdDaemonSession session, int led) {
+		if (led < 1 || led > 3) {
+			return "no LED " + led;
+		}
+		if (ledOwners[led] != null && ledOwners[led] != session) {
+			return "LED " + led + " is owned by " + ledOwners[led].getName();
+		}
+		ledOwners[led] = session;
+		return null;
+	}
+
+	synchronized boolean ownsRow(LcdDaemonSession session, int row) {
+		return row >= 1 && row < rowOwners.length && rowOwners[row] == session;
+	}
+
+	synchronized boolean ownsLed(LcdDaemonSession session, int led) {
+		return led >= 1 && led <= 3 && ledOwners[led] == session;
+	}
+
+	synchronized boolean ownsArea(LcdDaemonSession session) {
+		for (LcdDaemonSession.Area area : areas) {
+			if (area.owner == session) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gives up everything the session owns; the next flush blanks it on the LCD.
+	 */
+	synchronized void releaseAll(LcdDaemonSession session) {
+		for (int row = 1; row < rowOwners.length; row++) {
+			if (rowOwners[row] == session) {
+				rowOwners[row] = null;
+				releasedRows.add(Integer.valueOf(row));
+			}
+		}
+		for (int led = 1; led <= 3; led++) {
+			if (ledOwners[led] == session) {
+				ledOwners[led] = null;
+				releasedLeds.add(Integer.valueOf(led));
+			}
+		}
+		for (int i = areas.size() - 1; i >= 0; i--) {
+			LcdDaemonSession.Area area = areas.get(i);
+			if (area.owner == session) {
+				frame.fillRectangle(area.x0, area.y0, area.x1, area.y1, false);
+				frameChanged = true;
+				areas.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * Called by a session when its connection ends.
+	 */
+	void sessionClosed(LcdDaemonSession session) {
+		releaseAll(session);
+		synchronized (this) {
+			sessions.remove(session);
+		}
+		logger.info("client " + session.getName() + " disconnected");
+	}
+
+	///
+	/// This section provides the merging of the clients' state into the LCD
+	///
+
+	/**
+	 * Sends what has changed: first the blanking of anything released, then the state of each
+	 * client that is due, in turn from a different client each tick, until the budget of
+	 * waiting bytes is used up; finally the merged graphics.
+	 */
+	synchronized void flush() {
+		for (Integer row : releasedRows) {
+			if (rowOwners[row.intValue()] == null) {
+				api.updateRowText(row.intValue(), "");
+			}
+		}
+		releasedRows.clear();
+		for (Integer led : releasedLeds) {
+			if (ledOwners[led.intValue()] == null) {
+				api.setLedPower(ledNumber(led.intValue()), LedPower.OFF);
+			}
+		}
+		releasedLeds.clear();
+
+		int count = sessions.size();
+		long now = System.nanoTime();
+		if (count > 0) {
+			int first = nextFirst % count;
+			nextFirst = first + 1;
+			for (int i = 0; i < count; i++) {
+				if (api.getPendingBytes() > FLUSH_BUDGET_BYTES) {
+					break;
+				}
+				LcdDaemonSession session = sessions.get((first + i) % count);
+				if (session.isDue(now, minPublishNanos)) {
+					// one client whose state cannot be sent must not hold up the others
+					try {
+						frameChanged |= session.publish(api, frame, areas, now);
+					}
+					catch (RuntimeException e) {
+						logger.error("state of client " + session.getName() + " could not be sent", e);
+					}
+				}
+			}
+		}
+
+		if (frameChanged && api.getDeviceProfile().hasGraphics()) {
+			api.drawBitmap(frame);
+		}
+		frameChanged = false;
+	}
+
+	static LedNumber ledNumber(int led) {
+		switch (led) {
+			case 1:
+				return LedNumber.ONE;
+			case 2:
+				return LedNumber.TWO;
+			default:
+				return LedNumber.THREE;
+		}
+	}
+
+	/**
+	 * Sets an LED from the service thread of the daemon.
+	 */
+	static void setLed(MatrixOrbitalApi api, int led, LedColor color) {
+		if (color == LedColor.NULL) {
+			api.setLedPower(ledNumber(led), LedPower.OFF);
+		}
+		else {
+			api.setLedColor(ledNumber(led), color);
+			api.setLedPower(ledNumber(led), LedPower.ON);
+		}
+	}
+
+	/**
+	 * Passes a key press to the subscribed clients. Called on the service thread of the API,
+	 * so the line is only queued for each client's writer.
+	 */
+	private void keyPressed(LcdButtonPressEvent event) {
+		List<LcdDaemonSession> current;
+		synchronized (this) {
+			current = new ArrayList<LcdDaemonSession>(sessions);
+		}
+		String line = "KEY " + event.getButton();
+		for (LcdDaemonSession session : current) {
+			if (session.isSubscribed()) {
+				session.send(line);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = DEFAULT_PORT;
+		int rate = DEFAULT_UPDATES_PER_SECOND;
+		String lcd = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-port")) {
+				port = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-rate")) {
+				rate = Integer.parseInt(args[++i]);
+			}
+			else {
+				lcd = args[i];
+			}
+		}
+		if (lcd == null) {
+			System.out.println("Usage: LcdDaemon [-port listenPort] [-rate updatesPerSecond] serialPort | host:port | -simulate");
+			return;
+		}
+
+		MatrixOrbitalApi api = new MatrixOrbitalApi();
+		boolean connected;
+		if (lcd.equals("-simulate")) {
+			LcdSimulator simulator = new LcdSimulator();
+			connected = api.connect(simulator.getInputStream(), simulator.getOutputStream());
+		}
+		else if (lcd.indexOf(':') > 0 && !lcd.startsWith("/")) {
+			connected = api.IPconnect(lcd.substring(0, lcd.indexOf(':')), Integer.parseInt(lcd.substring(lcd.indexOf(':') + 1)));
+		}
+		else {
+			connected = api.connect(lcd, MatrixOrbitalCommands.BAUD_19200);
+		}
+		if (!connected) {
+			System.out.println("the LCD could not be connected on " + lcd);
+			System.exit(1);
+		}
+		api.clearScreen();
+
+		new LcdDaemon(api, rate).start(port);
+		Thread.currentThread().join();
+	}
+}
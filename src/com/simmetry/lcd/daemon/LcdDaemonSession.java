@@ -0,0 +1,416 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import com.simmetry.lcd.moapi.LcdBitmap;
+import com.simmetry.lcd.moapi.LcdDeviceProfile;
+import com.simmetry.lcd.moapi.LedColor;
+import com.simmetry.lcd.moapi.MatrixOrbitalApi;
+
+/**
+ * One client of the LcdDaemon. A reader thread carries out the client's commands, which only
+ * change the state the client wants shown: the text of its rows, its own copy of the graphics
+ * and its LEDs. The daemon sends that state to the LCD when the client is due. A writer thread
+ * sends the replies and key presses, so a client that stops reading never holds up the LCD;
+ * once WRITE_QUEUE_LINES lines are waiting, further key presses for it are dropped.
+ */
+class LcdDaemonSession {
+
+	private static final int WRITE_QUEUE_LINES = 256;
+	private static final String END_OF_LINES = "";
+
+	/**
+	 * A rectangle of the graphics owned by a session, corners inclusive.
+	 */
+	static class Area {
+		final LcdDaemonSession owner;
+		final int x0, y0, x1, y1;
+
+		Area(LcdDaemonSession owner, int x_a, int y_a, int x_b, int y_b) {
+			this.owner = owner;
+			this.x0 = Math.min(x_a, x_b);
+			this.y0 = Math.min(y_a, y_b);
+			this.x1 = Math.max(x_a, x_b);
+			this.y1 = Math.max(y_a, y_b);
+		}
+
+		boolean overlaps(Area other) {
+			return x0 <= other.x1 && other.x0 <= x1 && y0 <= other.y1 && other.y0 <= y1;
+		}
+	}
+
+	private final LcdDaemon daemon;
+	private final Socket socket;
+	private final LcdDeviceProfile profile;
+	private final BlockingQueue<String> lines = new ArrayBlockingQueue<String>(WRITE_QUEUE_LINES);
+	private volatile String name;
+	private volatile boolean subscribed = false;
+	private volatile boolean closed = false;
+
+	// the state the client wants shown, and what has changed since it was last published
+	private final String[] rows;
+	private final boolean[] rowChanged;
+	private final LcdBitmap canvas;
+	private boolean canvasChanged = false;
+	private final LedColor[] leds = new LedColor[4];
+	private final boolean[] ledChanged = new boolean[4];
+	private boolean changed = false;
+	private long lastPublish = 0;
+
+	// class logger
+	private static final Logger logger = Logger.getLogger(com.simmetry.lcd.daemon.LcdDaemonSession.class);
+
+	LcdDaemonSession(LcdDaemon daemon, Socket socket, LcdDeviceProfile profile) {
+		this.daemon = daemon;
+		this.socket = socket;
+		this.profile = profile;
+		this.name = socket.getRemoteSocketAddress().toString();
+		this.rows = new String[profile.getTextRows() + 1];
+		this.rowChanged = new boolean[rows.length];
+		this.canvas = new LcdBitmap(profile.getWidth(), profile.getHeight());
+	}
+
+	String getName() {
+		return name;
+	}
+
+	boolean isSubscribed() {
+		return subscribed;
+	}
+
+	/**
+	 * Starts the reader and writer threads.
+	 */
+	void start() {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readCommands();
+			}
+		}, "LcdDaemon-client");
+		reader.setDaemon(true);
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				writeLines();
+			}
+		}, "LcdDaemon-client-writer");
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	/**
+	 * Queues a line for the client.
+	 * @return	False if the client is too far behind and the line was dropped
+	 */
+	boolean send(String line) {
+		if (!lines.offer(line)) {
+			logger.debug("client " + name + " is not reading, dropped: " + line);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Ends the connection; the daemon releases everything the client owned.
+	 */
+	void close() {
+		try {
+			socket.close();
+		}
+		catch (IOException ioeError) {
+			logger.debug(ioeError.toString(), ioeError);
+		}
+	}
+
+	private void readCommands() {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String reply;
+				try {
+					reply = execute(line);
+				}
+				catch (RuntimeException e) {
+					// a malformed number or a missing argument
+					reply = "ERR bad command: " + e.getMessage();
+				}
+				if (reply == null) {
+					break;
+				}
+				// replies wait for room, only key presses are dropped
+				lines.put(reply);
+			}
+		}
+		catch (IOException ioeError) {
+			if (!socket.isClosed()) {
+				logger.debug("client " + name + ": " + ioeError);
+			}
+		}
+		catch (InterruptedException ieError) {
+			Thread.currentThread().interrupt();
+		}
+		closed = true;
+		lines.clear();
+		lines.offer(END_OF_LINES);
+		daemon.sessionClosed(this);
+		close();
+	}
+
+	private void writeLines() {
+		try {
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), "ISO-8859-1");
+			while (true) {
+				String line = lines.take();
+				if (line == END_OF_LINES) {
+					break;
+				}
+				out.write(line);
+				out.write('\n');
+				if (lines.isEmpty()) {
+					out.flush();
+				}
+			}
+		}
+		catch (IOException ioeError) {
+			close();
+		}
+		catch (InterruptedException ieError) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Carries out one command line.
+	 * @return	The reply, or null to end the connection
+	 */
+	private String execute(String line) {
+		String[] words = line.trim().split(" +", 2);
+		String command = words[0].toUpperCase();
+		String rest = words.length > 1 ? words[1] : "";
+		String[] args = rest.length() > 0 ? rest.split(" +") : new String[0];
+
+		if (command.equals("HELLO")) {
+			name = rest.length() > 0 ? rest : name;
+			logger.info("client " + name + " connected");
+			return "OK";
+		}
+		if (command.equals("CLAIM")) {
+			return claim(args);
+		}
+		if (command.equals("RELEASE")) {
+			daemon.releaseAll(this);
+			synchronized (this) {
+				// nothing is left to publish, the daemon blanks what was released
+				Arrays.fill(rows, null);
+				Arrays.fill(rowChanged, false);
+				Arrays.fill(leds, null);
+				Arrays.fill(ledChanged, false);
+				canvas.clear();
+				canvasChanged = false;
+				changed = false;
+			}
+			return "OK";
+		}
+		if (command.equals("TEXT")) {
+			String[] parts = rest.split(" ", 3);
+			int row = Integer.parseInt(parts[0]);
+			if (!daemon.ownsRow(this, row)) {
+				return "ERR row " + row + " is not claimed";
+			}
+			String text = parts.length > 2 ? parts[2] : "";
+			if (text.length() > profile.getTextColumns()) {
+				return "ERR text longer than " + profile.getTextColumns();
+			}
+			setRow(row, align(text, parts[1].toUpperCase()));
+			return "OK";
+		}
+		if (command.equals("PIXEL") || command.equals("LINE") || command.equals("RECT") || command.equals("FILL")) {
+			return draw(command, args);
+		}
+		if (command.equals("CLEAR")) {
+			synchronized (this) {
+				for (int row = 1; row < rows.length; row++) {
+					if (rows[row] != null) {
+						setRow(row, "");
+					}
+				}
+				canvas.clear();
+				canvasChanged = true;
+				changed = true;
+			}
+			return "OK";
+		}
+		if (command.equals("LED")) {
+			int led = Integer.parseInt(args[0]);
+			if (!daemon.ownsLed(this, led)) {
+				return "ERR LED " + led + " is not claimed";
+			}
+			String color = args[1].toUpperCase();
+			synchronized (this) {
+				leds[led] = color.equals("OFF") ? LedColor.NULL : LedColor.valueOf(color);
+				ledChanged[led] = true;
+				changed = true;
+			}
+			return "OK";
+		}
+		if (command.equals("KEYS")) {
+			subscribed = args[0].equalsIgnoreCase("ON");
+			return "OK";
+		}
+		if (command.equals("QUIT")) {
+			return null;
+		}
+		return "ERR unknown command " + command;
+	}
+
+	private String claim(String[] args) {
+		String what = args[0].toUpperCase();
+		String failure;
+		if (what.equals("ROW")) {
+			int first = Integer.parseInt(args[1]);
+			int last = args.length > 2 ? Integer.parseInt(args[2]) : first;
+			failure = daemon.claimRows(this, first, last);
+		}
+		else if (what.equals("AREA")) {
+			failure = daemon.claimArea(new Area(this, Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+					Integer.parseInt(args[3]), Integer.parseInt(args[4])));
+		}
+		else if (what.equals("LED")) {
+			failure = daemon.claimLed(this, Integer.parseInt(args[1]));
+		}
+		else {
+			failure = "cannot claim " + what;
+		}
+		return failure == null ? "OK" : "ERR " + failure;
+	}
+
+	private String draw(String command, String[] args) {
+		if (!daemon.ownsArea(this)) {
+			return "ERR no area is claimed";
+		}
+		boolean black = args[args.length - 1].equalsIgnoreCase("BLACK");
+		int[] v = new int[args.length - 1];
+		for (int i = 0; i < v.length; i++) {
+			v[i] = Integer.parseInt(args[i]);
+		}
+		synchronized (this) {
+			if (command.equals("PIXEL")) {
+				canvas.set(v[0], v[1], black);
+			}
+			else if (command.equals("LINE")) {
+				canvas.drawLine(v[0], v[1], v[2], v[3], black);
+			}
+			else if (command.equals("RECT")) {
+				canvas.drawRectangle(v[0], v[1], v[2], v[3], black);
+			}
+			else {
+				canvas.fillRectangle(v[0], v[1], v[2], v[3], black);
+			}
+			canvasChanged = true;
+			changed = true;
+		}
+		return "OK";
+	}
+
+	private synchronized void setRow(int row, String text) {
+		rows[row] = text;
+		rowChanged[row] = true;
+		changed = true;
+	}
+
+	/**
+	 * @return The text placed in a row the width of the LCD
+	 */
+	private String align(String text, String alignment) {
+		int columns = profile.getTextColumns();
+		int column = 0;
+		if (alignment.equals("RIGHT")) {
+			column = columns - text.length();
+		}
+		else if (alignment.equals("CENTER")) {
+			column = (columns - text.length()) / 2;
+		}
+		StringBuilder row = new StringBuilder(columns);
+		for (int i = 0; i < column; i++) {
+			row.append(' ');
+		}
+		return row.append(text).toString();
+	}
+
+	/**
+	 * @return True if the client has changes and its last publish was long enough ago
+	 */
+	synchronized boolean isDue(long now, long minPublishNanos) {
+		return changed && (lastPublish == 0 || now - lastPublish >= minPublishNanos);
+	}
+
+	/**
+	 * Sends the rows and LEDs that changed, and copies the client's graphics within its areas
+	 * into the frame the daemon draws. The changes count as published even if sending them
+	 * fails, so a client whose state cannot be sent is not tried again every tick.
+	 * @param areas	Every claimed area; only this client's are used
+	 * @return		True if the frame was changed
+	 */
+	synchronized boolean publish(MatrixOrbitalApi api, LcdBitmap frame, List<Area> areas, long now) {
+		if (closed) {
+			return false;
+		}
+		try {
+			return publishChanges(api, frame, areas);
+		}
+		finally {
+			Arrays.fill(rowChanged, false);
+			Arrays.fill(ledChanged, false);
+			canvasChanged = false;
+			changed = false;
+			lastPublish = now;
+		}
+	}
+
+	private boolean publishChanges(MatrixOrbitalApi api, LcdBitmap frame, List<Area> areas) {
+		for (int row = 1; row < rows.length; row++) {
+			if (rowChanged[row] && rows[row] != null && daemon.ownsRow(this, row)) {
+				api.updateRowText(row, rows[row]);
+			}
+		}
+		for (int led = 1; led < leds.length; led++) {
+			if (ledChanged[led] && leds[led] != null && daemon.ownsLed(this, led)) {
+				LcdDaemon.setLed(api, led, leds[led]);
+			}
+		}
+		boolean frameChanged = false;
+		if (canvasChanged) {
+			for (Area area : areas) {
+				if (area.owner != this) {
+					continue;
+				}
+				for (int y = area.y0; y <= area.y1; y++) {
+					for (int x = area.x0; x <= area.x1; x++) {
+						boolean black = canvas.get(x, y);
+						if (frame.get(x, y) != black) {
+							frame.set(x, y, black);
+							frameChanged = true;
+						}
+					}
+				}
+			}
+		}
+		return frameChanged;
+	}
+}
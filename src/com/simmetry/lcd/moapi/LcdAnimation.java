@@ -0,0 +1,218 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A sequence of screens played on the LCD, for boot splashes, spinners and alarm flashes.
+ * The change from each frame to the next is encoded the first time it is played, as an
+ * LcdScreenDelta, and kept; every later cycle of a looping animation sends the kept commands
+ * without encoding anything.
+ *
+ * Frames are timed from when the animation started rather than from when the previous frame
+ * was sent, so the animation keeps its rate however long each frame takes to queue. A frame
+ * that comes due while the previous one is still being written, or while the LCD buffer is
+ * full, is skipped rather than queued behind it; the frame after a skipped one is encoded from
+ * what the LCD shows.
+ */
+public class LcdAnimation {
+
+	private final LcdDeviceProfile profile;
+	private final List<LcdScreenState> frames = new ArrayList<LcdScreenState>();
+	private final List<Long> frameNanos = new ArrayList<Long>();
+	// deltas[i] changes frame i - 1 into frame i, deltas[0] changes the last frame into the first
+	private LcdScreenDelta[] deltas = null;
+
+	private final ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> next = null;
+	private MatrixOrbitalApi api = null;
+	private boolean loop = false;
+	private int frame = 0;
+	private long due = 0;
+	private long framesPlayed = 0;
+	private long framesEncoded = 0;
+	private long framesSkipped = 0;
+
+	// class logger
+	private static final Logger logger = Logger.getLogger(com.simmetry.lcd.moapi.LcdAnimation.class);
+
+	/**
+	 * Creates an animation with no frames.
+	 * @param profile	The model of LCD the frames are for
+	 */
+	public LcdAnimation(LcdDeviceProfile profile) {
+		this.profile = profile;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "LcdAnimation");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Adds a copy of a screen as the next frame.
+	 * @param screen	The frame
+	 * @param millis	How long the frame is shown
+	 */
+	public synchronized void addFrame(LcdScreenState screen, long millis) {
+		if (millis <= 0) {
+			throw new IllegalArgumentException("frame time must be positive: " + millis);
+		}
+		LcdScreenState copy = new LcdScreenState(profile);
+		copy.copyFrom(screen);
+		frames.add(copy);
+		frameNanos.add(Long.valueOf(TimeUnit.MILLISECONDS.toNanos(millis)));
+		deltas = null;
+	}
+
+	/**
+	 * @return The number of frames
+	 */
+	public synchronized int getFrameCount() {
+		return frames.size();
+	}
+
+	/**
+	 * Starts playing the animation from the first frame, stopping it first if it is playing.
+	 * @param api	The LCD to play on
+	 * @param loop	True to play the frames over and over until stop() is called
+	 */
+	public synchronized void play(MatrixOrbitalApi api, boolean loop) {
+		if (frames.isEmpty()) {
+			logger.error("animation has no frames");
+			return;
+		}
+		stop();
+		if (deltas == null) {
+			deltas = new LcdScreenDelta[frames.size()];
+		}
+		this.api = api;
+		this.loop = loop;
+		this.frame = 0;
+		this.due = System.nanoTime();
+		schedule();
+	}
+
+	/**
+	 * Stops playing. The frame shown is left on the LCD.
+	 */
+	public synchronized void stop() {
+		if (next != null) {
+			next.cancel(false);
+			next = null;
+		}
+	}
+
+	/**
+	 * @return True until the last frame of an animation that does not loop has been shown,
+	 * or stop() is called
+	 */
+	public synchronized boolean isPlaying() {
+		return next != null;
+	}
+
+	/**
+	 * Stops playing and ends the thread the animation is played on.
+	 */
+	public synchronized void shutdown() {
+		stop();
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * @return The number of frames sent to the LCD
+	 */
+	public synchronized long getFramesPlayed() {
+		return framesPlayed;
+	}
+
+	/**
+	 * @return The number of frames that had to be encoded when they were played, because the
+	 * change had not been played before or the LCD did not show the frame before it
+	 */
+	public synchronized long getFramesEncoded() {
+		return framesEncoded;
+	}
+
+	/**
+	 * @return The number of frames skipped because the previous one had not been written yet or
+	 * the LCD buffer was full
+	 */
+	public synchronized long getFramesSkipped() {
+		return framesSkipped;
+	}
+
+	private void schedule() {
+		next = scheduler.schedule(new Runnable() {
+			public void run() {
+				try {
+					tick();
+				}
+				catch (RuntimeException e) {
+					logger.error("Animation failed: " + e.getMessage(), e);
+				}
+			}
+		}, Math.max(0, due - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	private synchronized void tick() {
+		if (next == null) {
+			// stopped after this tick was already running
+			return;
+		}
+		if (api.getPendingBytes() > 0 || !api.isFlowing()) {
+			framesSkipped++;
+		}
+		else {
+			send();
+			framesPlayed++;
+		}
+
+		long now = System.nanoTime();
+		due += frameNanos.get(frame).longValue();
+		frame++;
+		if (frame == frames.size()) {
+			if (!loop) {
+				next = null;
+				return;
+			}
+			frame = 0;
+		}
+		if (now - due > frameNanos.get(frame).longValue()) {
+			// more than a frame behind, start timing again rather than rush to catch up
+			due = now;
+		}
+		schedule();
+	}
+
+	private void send() {
+		LcdScreenState previous = frames.get((frame + frames.size() - 1) % frames.size());
+		LcdScreenDelta delta = deltas[frame];
+		boolean encoded = false;
+		if (delta == null || delta.getColorBefore() != api.getDrawingColor()) {
+			delta = new LcdScreenDelta(previous, frames.get(frame), api.getDrawingColor());
+			deltas[frame] = delta;
+			encoded = true;
+		}
+		if (!api.drawScreen(delta)) {
+			// the LCD did not show the previous frame, so the change was encoded from what it shows
+			encoded = true;
+		}
+		if (encoded) {
+			framesEncoded++;
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the bitmaps and fonts used most on the LCD itself. The first time a named asset is used
+ * it is uploaded to the filesystem of the LCD; after that a bitmap is drawn by its reference
+ * number in five bytes, and a font selected in three, instead of being sent again.
+ *
+ * The cache records which assets are on the LCD and how much of the space given to it they
+ * take. When an upload does not fit, or every reference number is in use, the assets used
+ * least recently are deleted from the LCD until it does. A bitmap that cannot be uploaded, because
+ * it is bigger than the whole space or the LCD has no filesystem, is drawn with
+ * MatrixOrbitalApi.drawBitmap() instead, which sends only the pixels that change.
+ *
+ * The cache assumes it is the only user of the files it creates and of the space it is given;
+ * queryFilesystemSpace() tells how much space the LCD has free. The API never drops the commands
+ * that change the filesystem, but when it loses one all the same, because it was refused or the
+ * link failed before it was sent, the cache can no longer tell which of its assets are on the
+ * LCD. It then deletes them all and starts again empty.
+ */
+public class LcdAssetCache {
+
+	// font 1 is the font the LCD starts with
+	private static final int FIRST_FONT_ID = 2;
+	private static final int FIRST_BITMAP_ID = 1;
+
+	private static class Asset {
+		final String name;
+		final byte type;
+		final int refId;
+		final int size;
+		final LcdBitmap bitmap;
+		final byte[] font;
+
+		Asset(String name, byte type, int refId, int size, LcdBitmap bitmap, byte[] font) {
+			this.name = name;
+			this.type = type;
+			this.refId = refId;
+			this.size = size;
+			this.bitmap = bitmap;
+			this.font = font;
+		}
+	}
+
+	private final MatrixOrbitalApi api;
+	private final long capacity;
+	private long used = 0;
+	// the assets on the LCD, least recently used first
+	private final LinkedHashMap<String, Asset> resident = new LinkedHashMap<String, Asset>(16, 0.75f, true);
+	private final boolean[] bitmapIds = new boolean[256];
+	private final boolean[] fontIds = new boolean[256];
+	private String currentFont = null;
+	private long lossesSeen;
+
+	private long hits = 0;
+	private long uploads = 0;
+	private long evictions = 0;
+	private long inlineDraws = 0;
+
+	// class logger
+	private static final Logger logger = Logger.getLogger(com.simmetry.lcd.moapi.LcdAssetCache.class);
+
+	/**
+	 * @param api		The LCD to keep the assets on
+	 * @param capacity	The bytes of the LCD filesystem the cache may use
+	 */
+	public LcdAssetCache(MatrixOrbitalApi api, long capacity) {
+		this.api = api;
+		this.capacity = capacity;
+		this.lossesSeen = api.getFilesystemLosses();
+	}
+
+	/**
+	 * Draws a bitmap, both its BLACK and WHITE pixels, uploading it first if it is not on the
+	 * LCD. A bitmap given under a name already on the LCD with different pixels replaces it.
+	 * @param name		The name of the bitmap
+	 * @param bitmap	The bitmap
+	 * @param x_loc		X location of the left edge of the bitmap
+	 * @param y_loc		Y location of the top of the bitmap
+	 * @return			False if the bitmap does not fit on the screen
+	 */
+	public synchronized boolean drawBitmap(String name, LcdBitmap bitmap, int x_loc, int y_loc) {
+		checkLosses();
+		Asset asset = resident.get(name);
+		if (asset != null && (asset.type != MatrixOrbitalCommands.FILE_TYPE_BITMAP || !asset.bitmap.equals(bitmap))) {
+			delete(asset);
+			asset = null;
+		}
+		if (asset == null) {
+			LcdBitmap copy = new LcdBitmap(bitmap);
+			int size = 2 + (bitmap.getWidth() * bitmap.getHeight() + 7) / 8;
+			asset = upload(new Asset(name, MatrixOrbitalCommands.FILE_TYPE_BITMAP,
+					allocate(MatrixOrbitalCommands.FILE_TYPE_BITMAP, size), size, copy, null));
+		}
+		else {
+			hits++;
+		}
+		if (asset != null) {
+			return api.drawSavedBitmap(asset.refId, asset.bitmap, x_loc, y_loc);
+		}
+
+		synchronized (api) {
+			LcdBitmap target = api.getGraphics();
+			if (!target.contains(x_loc, y_loc) ||
+				!target.contains(x_loc + bitmap.getWidth() - 1, y_loc + bitmap.getHeight() - 1)) {
+				return false;
+			}
+			target.blit(bitmap, x_loc, y_loc, true, true);
+			api.drawBitmap(target);
+		}
+		inlineDraws++;
+		return true;
+	}
+
+	/**
+	 * Selects a font for the text the LCD writes, uploading it first if it is not on the LCD.
+	 * See MatrixOrbitalApi.setCurrentFont() for the text rows.
+	 * @param name	The name of the font
+	 * @param font	The font file
+	 * @return		False if the font could not be put on the LCD
+	 */
+	public synchronized boolean useFont(String name, byte[] font) {
+		checkLosses();
+		Asset asset = resident.get(name);
+		if (asset != null && (asset.type != MatrixOrbitalCommands.FILE_TYPE_FONT || !Arrays.equals(asset.font, font))) {
+			delete(asset);
+			asset = null;
+		}
+		if (asset == null) {
+			asset = upload(new Asset(name, MatrixOrbitalCommands.FILE_TYPE_FONT,
+					allocate(MatrixOrbitalCommands.FILE_TYPE_FONT, font.length), font.length, null, font.clone()));
+			if (asset == null) {
+				return false;
+			}
+		}
+		else {
+			hits++;
+		}
+		currentFont = name;
+		return api.setCurrentFont(asset.refId);
+	}
+
+	/**
+	 * Deletes an asset from the LCD.
+	 * @return	False if the asset was not on the LCD
+	 */
+	public synchronized boolean remove(String name) {
+		checkLosses();
+		Asset asset = resident.get(name);
+		if (asset == null) {
+			return false;
+		}
+		delete(asset);
+		return true;
+	}
+
+	/**
+	 * @return True if the asset is on the LCD
+	 */
+	public synchronized boolean isResident(String name) {
+		checkLosses();
+		return resident.containsKey(name);
+	}
+
+	/**
+	 * @return The number of assets on the LCD
+	 */
+	public synchronized int getResidentCount() {
+		checkLosses();
+		return resident.size();
+	}
+
+	/**
+	 * @return The bytes of the LCD filesystem taken by the assets
+	 */
+	public synchronized long getUsedBytes() {
+		checkLosses();
+		return used;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return The number of times an asset was used while on the LCD
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getUploads() {
+		return uploads;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return The number of bitmaps drawn by sending their pixels, because they could not be uploaded
+	 */
+	public synchronized long getInlineDraws() {
+		return inlineDraws;
+	}
+
+	/**
+	 * Makes room for a file of the given type and size, deleting the assets used least recently.
+	 * @return	The reference number for the file, or 0 if it cannot be made to fit
+	 */
+	private int allocate(byte type, int size) {
+		if (size > capacity) {
+			return 0;
+		}
+		boolean[] ids = ids(type);
+		int first = (type == MatrixOrbitalCommands.FILE_TYPE_FONT) ? FIRST_FONT_ID : FIRST_BITMAP_ID;
+		while (true) {
+			int refId = 0;
+			for (int id = first; id < ids.length && refId == 0; id++) {
+				if (!ids[id]) {
+					refId = id;
+				}
+			}
+			if (refId != 0 && used + size <= capacity) {
+				return refId;
+			}
+			// short of space any asset will do, short of reference numbers only one of the type
+			Asset victim = null;
+			for (Asset asset : resident.values()) {
+				if (refId != 0 || asset.type == type) {
+					victim = asset;
+					break;
+				}
+			}
+			if (victim == null) {
+				return 0;
+			}
+			evictions++;
+			delete(victim);
+		}
+	}
+
+	/**
+	 * Uploads an asset given a reference number by allocate().
+	 * @return	The asset, or null if it has no reference number or could not be uploaded
+	 */
+	private Asset upload(Asset asset) {
+		if (asset.refId == 0) {
+			return null;
+		}
+		boolean queued = (asset.type == MatrixOrbitalCommands.FILE_TYPE_FONT)
+				? api.uploadFont(asset.refId, asset.font)
+				: api.uploadBitmap(asset.refId, asset.bitmap);
+		if (!queued) {
+			logger.debug("asset " + asset.name + " could not be uploaded");
+			// the API counts the refusal as a loss, but the cache knows this file is not there
+			if (api.getFilesystemLosses() == lossesSeen + 1) {
+				lossesSeen++;
+			}
+			return null;
+		}
+		ids(asset.type)[asset.refId] = true;
+		used += asset.size;
+		resident.put(asset.name, asset);
+		uploads++;
+		return asset;
+	}
+
+	private void delete(Asset asset) {
+		if (asset.name.equals(currentFont)) {
+			api.setCurrentFont(1);
+			currentFont = null;
+		}
+		api.deleteFile(asset.type, asset.refId);
+		ids(asset.type)[asset.refId] = false;
+		used -= asset.size;
+		resident.remove(asset.name);
+	}
+
+	/**
+	 * Deletes every asset once the API has lost a command that changes the LCD filesystem,
+	 * which leaves the cache not knowing which of them are on the LCD. Deleting frees the space
+	 * of those that are; an asset uploaded later replaces any file left with its reference number.
+	 */
+	private void checkLosses() {
+		if (api.getFilesystemLosses() == lossesSeen) {
+			return;
+		}
+		logger.warn("LCD filesystem commands were lost, deleting " + resident.size() + " assets");
+		for (Asset asset : new ArrayList<Asset>(resident.values())) {
+			delete(asset);
+		}
+		lossesSeen = api.getFilesystemLosses();
+	}
+
+	private boolean[] ids(byte type) {
+		return (type == MatrixOrbitalCommands.FILE_TYPE_FONT) ? fontIds : bitmapIds;
+	}
+}
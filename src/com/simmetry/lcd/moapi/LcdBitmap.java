@@ -0,0 +1,326 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.util.Arrays;
+
+/**
+ * A host side 1-bit image of the LCD graphics memory. A set bit is a BLACK pixel and
+ * a clear bit is a WHITE pixel. Each row is packed into 64 bit words so that whole rows
+ * can be compared and combined a word at a time.
+ * Coordinates use the same reference system as the LCD drawing commands (see Point).
+ */
+public class LcdBitmap {
+
+	private final int width;
+	private final int height;
+	private final int wordsPerRow;
+	private final long[] words;
+
+	/**
+	 * Creates a blank (all WHITE) bitmap the size of the LCD.
+	 */
+	public LcdBitmap() {
+		this(MatrixOrbitalSpecifications.LCD_WIDTH, MatrixOrbitalSpecifications.LCD_HEIGHT);
+	}
+
+	/**
+	 * Creates a blank (all WHITE) bitmap of the given size.
+	 * @param width		Width in pixels
+	 * @param height	Height in pixels
+	 */
+	public LcdBitmap(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.wordsPerRow = (width + 63) >>> 6;
+		this.words = new long[wordsPerRow * height];
+	}
+
+	/**
+	 * Creates a copy of the given bitmap.
+	 * @param other	The bitmap to copy
+	 */
+	public LcdBitmap(LcdBitmap other) {
+		this(other.width, other.height);
+		System.arraycopy(other.words, 0, words, 0, words.length);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return True if the given location is within the bitmap
+	 */
+	public boolean contains(int x, int y) {
+		return x >= 0 && x < width && y >= 0 && y < height;
+	}
+
+	/**
+	 * @return True if the pixel at the given location is BLACK. Locations outside the bitmap are WHITE.
+	 */
+	public boolean get(int x, int y) {
+		if (!contains(x, y)) {
+			return false;
+		}
+		return (words[y * wordsPerRow + (x >>> 6)] & (1L << (x & 63))) != 0;
+	}
+
+	/**
+	 * Sets the pixel at the given location, locations outside the bitmap are ignored.
+	 * @param black	True for a BLACK pixel, false for WHITE
+	 */
+	public void set(int x, int y, boolean black) {
+		if (!contains(x, y)) {
+			return;
+		}
+		int index = y * wordsPerRow + (x >>> 6);
+		if (black) {
+			words[index] |= (1L << (x & 63));
+		}
+		else {
+			words[index] &= ~(1L << (x & 63));
+		}
+	}
+
+	/**
+	 * Clears the whole bitmap to WHITE.
+	 */
+	public void clear() {
+		Arrays.fill(words, 0L);
+	}
+
+	/**
+	 * Copies the contents of a bitmap of the same size into this bitmap.
+	 * @param other	The bitmap to copy from
+	 */
+	public void copyFrom(LcdBitmap other) {
+		checkSize(other);
+		System.arraycopy(other.words, 0, words, 0, words.length);
+	}
+
+	/**
+	 * @return True if no pixel is BLACK
+	 */
+	public boolean isEmpty() {
+		for (int i = 0; i < words.length; i++) {
+			if (words[i] != 0L) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of BLACK pixels
+	 */
+	public int countSet() {
+		int count = 0;
+		for (int i = 0; i < words.length; i++) {
+			count += Long.bitCount(words[i]);
+		}
+		return count;
+	}
+
+	/**
+	 * Sets this bitmap to the pixels that differ between two bitmaps of its size, so a BLACK
+	 * pixel marks a difference.
+	 */
+	public void difference(LcdBitmap a, LcdBitmap b) {
+		checkSize(a);
+		checkSize(b);
+		for (int i = 0; i < words.length; i++) {
+			words[i] = a.words[i] ^ b.words[i];
+		}
+	}
+
+	/**
+	 * @return The x location of the first BLACK pixel of the row, or -1 if the row is all WHITE
+	 */
+	public int firstSet(int y) {
+		int row = y * wordsPerRow;
+		for (int w = 0; w < wordsPerRow; w++) {
+			if (words[row + w] != 0L) {
+				return (w << 6) + Long.numberOfTrailingZeros(words[row + w]);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The x location of the last BLACK pixel of the row, or -1 if the row is all WHITE
+	 */
+	public int lastSet(int y) {
+		int row = y * wordsPerRow;
+		for (int w = wordsPerRow - 1; w >= 0; w--) {
+			if (words[row + w] != 0L) {
+				return (w << 6) + 63 - Long.numberOfLeadingZeros(words[row + w]);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Fills the rectangle between the two corners (inclusive, in any order). The rectangle
+	 * is clipped to the bitmap.
+	 * @param black	True to fill BLACK, false to fill WHITE
+	 */
+	public void fillRectangle(int x_a, int y_a, int x_b, int y_b, boolean black) {
+		int x0 = Math.max(0, Math.min(x_a, x_b));
+		int x1 = Math.min(width - 1, Math.max(x_a, x_b));
+		int y0 = Math.max(0, Math.min(y_a, y_b));
+		int y1 = Math.min(height - 1, Math.max(y_a, y_b));
+		if (x0 > x1 || y0 > y1) {
+			return;
+		}
+		for (int y = y0; y <= y1; y++) {
+			int row = y * wordsPerRow;
+			for (int w = x0 >>> 6; w <= x1 >>> 6; w++) {
+				long mask = spanMask(w, x0, x1);
+				if (black) {
+					words[row + w] |= mask;
+				}
+				else {
+					words[row + w] &= ~mask;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws the outline of the rectangle between the two corners (inclusive, in any order).
+	 * @param black	True to draw BLACK, false to draw WHITE
+	 */
+	public void drawRectangle(int x_a, int y_a, int x_b, int y_b, boolean black) {
+		fillRectangle(x_a, y_a, x_b, y_a, black);
+		fillRectangle(x_a, y_b, x_b, y_b, black);
+		fillRectangle(x_a, y_a, x_a, y_b, black);
+		fillRectangle(x_b, y_a, x_b, y_b, black);
+	}
+
+	/**
+	 * Draws a line between the two end points (inclusive) using Bresenham's algorithm.
+	 * @param black	True to draw BLACK, false to draw WHITE
+	 */
+	public void drawLine(int x_a, int y_a, int x_b, int y_b, boolean black) {
+		int dx = Math.abs(x_b - x_a);
+		int dy = -Math.abs(y_b - y_a);
+		int sx = x_a < x_b ? 1 : -1;
+		int sy = y_a < y_b ? 1 : -1;
+		int err = dx + dy;
+		int x = x_a;
+		int y = y_a;
+
+		while (true) {
+			set(x, y, black);
+			if (x == x_b && y == y_b) {
+				break;
+			}
+			int e2 = 2 * err;
+			if (e2 >= dy) {
+				err += dy;
+				x += sx;
+			}
+			if (e2 <= dx) {
+				err += dx;
+				y += sy;
+			}
+		}
+	}
+
+	/**
+	 * Draws the BLACK pixels of another bitmap into this one with their upper left corner at
+	 * the given location, clipped to this bitmap.
+	 * @param source	The bitmap to draw
+	 * @param black		True to draw the source pixels BLACK, false to draw them WHITE
+	 * @param opaque	True to also draw the WHITE source pixels, in the opposite color
+	 */
+	public void blit(LcdBitmap source, int x_loc, int y_loc, boolean black, boolean opaque) {
+		int x0 = Math.max(0, -x_loc);
+		int y0 = Math.max(0, -y_loc);
+		int x1 = Math.min(source.width, width - x_loc);
+		int y1 = Math.min(source.height, height - y_loc);
+		for (int y = y0; y < y1; y++) {
+			for (int x = x0; x < x1; x++) {
+				if (source.get(x, y)) {
+					set(x_loc + x, y_loc + y, black);
+				}
+				else if (opaque) {
+					set(x_loc + x, y_loc + y, !black);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return True if every pixel in the rectangle (inclusive) is the given color
+	 */
+	public boolean isFilled(int x0, int y0, int x1, int y1, boolean black) {
+		for (int y = y0; y <= y1; y++) {
+			int row = y * wordsPerRow;
+			for (int w = x0 >>> 6; w <= x1 >>> 6; w++) {
+				long mask = spanMask(w, x0, x1);
+				long bits = words[row + w] & mask;
+				if (black ? bits != mask : bits != 0L) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of 64 bit words each row is packed into
+	 */
+	int getWordsPerRow() {
+		return wordsPerRow;
+	}
+
+	/**
+	 * Returns word 'w' of row 'y'; bit n of the word is the pixel at x = w * 64 + n.
+	 */
+	long getWord(int y, int w) {
+		return words[y * wordsPerRow + w];
+	}
+
+	void setWord(int y, int w, long bits) {
+		words[y * wordsPerRow + w] = bits;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof LcdBitmap)) {
+			return false;
+		}
+		LcdBitmap other = (LcdBitmap)obj;
+		return width == other.width && height == other.height && Arrays.equals(words, other.words);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(words);
+	}
+
+	/**
+	 * Returns the mask of bits in word 'w' of a row that fall between x0 and x1 inclusive.
+	 */
+	static long spanMask(int w, int x0, int x1) {
+		int lo = Math.max(x0 - (w << 6), 0);
+		int hi = Math.min(x1 - (w << 6), 63);
+		long upper = (hi == 63) ? -1L : ((1L << (hi + 1)) - 1);
+		return upper & (-1L << lo);
+	}
+
+	private void checkSize(LcdBitmap other) {
+		if (other.width != width || other.height != height) {
+			throw new IllegalArgumentException("bitmap sizes differ: " + other.width + "x" + other.height +
+					" vs " + width + "x" + height);
+		}
+	}
+}
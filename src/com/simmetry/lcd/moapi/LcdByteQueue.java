@@ -0,0 +1,468 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+/**
+ * A first in, first out queue of bytes kept in a ring buffer, used for the bytes waiting to go
+ * to the LCD and the bytes read back from it. Unlike a queue of Byte objects nothing is
+ * allocated per byte; the buffer only grows, by doubling, when more bytes are queued than it
+ * has ever held before. All methods are synchronized so one thread can add while another takes.
+ *
+ * The queue remembers where each put() or offer() starts and ends, so that the bytes of one
+ * call, normally one or more whole commands, are kept or dropped together. A limit can be set
+ * on the number of bytes held: offer() refuses bytes that would go over it, and
+ * the buffer never grows past the limit. dropOldest() and dropUnsent() make room by removing
+ * whole entries that no byte has been taken from yet; an entry that is partly taken is always
+ * completed, so the LCD never sees half a command.
+ *
+ * An entry may also carry a deadline. poll(dst, offset, max, now) drops every entry whose
+ * deadline has passed when it reaches the front, before any of its bytes are taken, so stale
+ * commands never go out however long they have waited. An entry added with the deadline
+ * NEVER_DROP neither expires nor is removed to make room; dropOldest() and dropUnsent() stop
+ * at it, so the entries behind it are kept as well and keep their place in the count of bytes.
+ *
+ * The time each entry was added is kept too. The entries that poll(dst, offset, max, now)
+ * takes the last byte of are remembered until recordCompleted() passes their time in the
+ * queue to a latency histogram, once the caller has written the bytes out.
+ */
+public class LcdByteQueue {
+
+	// deadline of an entry that never expires
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+	// deadline of an entry that never expires and is never dropped to make room
+	public static final long NEVER_DROP = Long.MIN_VALUE;
+
+	private byte[] buffer;
+	// index of the oldest byte
+	private int head = 0;
+	private int size = 0;
+	// bytes ever added and taken, so a caller can tell when a given byte has been taken
+	private long totalPut = 0;
+	private long totalPolled = 0;
+	// most bytes offer() may hold, and the bookkeeping of what had to be left out
+	private int limit = Integer.MAX_VALUE;
+	private int highWater = 0;
+	private long totalDropped = 0;
+	private long droppedEntries = 0;
+	private long totalExpired = 0;
+	private long expiredEntries = 0;
+	// end of each entry, as a value of totalPut, in a ring of its own; entryStart is where
+	// the oldest entry begins, so it is partly taken when totalPolled is past entryStart
+	private long[] entryEnds = new long[16];
+	// System.nanoTime() deadline of each entry, at the same index as its end
+	private long[] entryDeadlines = new long[16];
+	// System.nanoTime() when each entry was added, at the same index as its end
+	private long[] entryPutTimes = new long[16];
+	private int entryHead = 0;
+	private int entryCount = 0;
+	private long entryStart = 0;
+	// add times of the entries completed by poll(dst, offset, max, now), see recordCompleted();
+	// a caller that never records them keeps only the first COMPLETED_LIMIT
+	private static final int COMPLETED_LIMIT = 1024;
+	private long[] completedPutTimes = new long[16];
+	private int completedCount = 0;
+
+	/**
+	 * @param initialCapacity	The number of bytes the queue holds before it first grows
+	 */
+	public LcdByteQueue(int initialCapacity) {
+		buffer = new byte[Math.max(1, initialCapacity)];
+	}
+
+	/**
+	 * Adds bytes to the end of the queue, whatever the limit.
+	 */
+	public synchronized void put(byte[] b, int offset, int length) {
+		put(b, offset, length, NO_DEADLINE);
+	}
+
+	/**
+	 * Adds bytes to the end of the queue, whatever the limit, as an entry that is dropped
+	 * rather than taken once the deadline has passed.
+	 * @param deadline	The System.nanoTime() after which the bytes are not sent, NO_DEADLINE or NEVER_DROP
+	 */
+	public synchronized void put(byte[] b, int offset, int length, long deadline) {
+		if (length == 0) {
+			return;
+		}
+		ensureCapacity(size + length);
+		int tail = (head + size) % buffer.length;
+		int first = Math.min(length, buffer.length - tail);
+		System.arraycopy(b, offset, buffer, tail, first);
+		System.arraycopy(b, offset + first, buffer, 0, length - first);
+		size += length;
+		totalPut += length;
+		highWater = Math.max(highWater, size);
+		addEntry(totalPut, deadline, System.nanoTime());
+	}
+
+	/**
+	 * Adds bytes to the end of the queue if they fit within the limit.
+	 * @return	True if the bytes were added, false if the queue is too full
+	 */
+	public synchronized boolean offer(byte[] b, int offset, int length) {
+		return offer(b, offset, length, NO_DEADLINE);
+	}
+
+	/**
+	 * Adds bytes to the end of the queue if they fit within the limit.
+	 * @param deadline	The System.nanoTime() after which the bytes are not sent, NO_DEADLINE or NEVER_DROP
+	 * @return			True if the bytes were added, false if the queue is too full
+	 */
+	public synchronized boolean offer(byte[] b, int offset, int length, long deadline) {
+		if (length > limit - size) {
+			return false;
+		}
+		put(b, offset, length, deadline);
+		return true;
+	}
+
+	/**
+	 * Removes the oldest whole entries that have not been started until the given number of
+	 * bytes fit within the limit, or no such entry is left before one added with NEVER_DROP.
+	 * @param length	The number of bytes to make room for
+	 * @return			True if they now fit
+	 */
+	public synchronized boolean dropOldest(int length) {
+		while (length > limit - size) {
+			if (dropEntries(1, false) == 0) {
+				break;
+			}
+		}
+		return length <= limit - size;
+	}
+
+	/**
+	 * Removes every whole entry that has not been started, keeping only the rest of an
+	 * entry that is partly taken, up to the first entry added with NEVER_DROP.
+	 * @return	The number of entries removed
+	 */
+	public synchronized int dropUnsent() {
+		return dropEntries(Integer.MAX_VALUE, false);
+	}
+
+	/**
+	 * Takes up to max bytes from the front of the queue.
+	 * @return	The number of bytes taken
+	 */
+	public synchronized int poll(byte[] dst, int offset, int max) {
+		int length = Math.min(max, size);
+		int first = Math.min(length, buffer.length - head);
+		System.arraycopy(buffer, head, dst, offset, first);
+		System.arraycopy(buffer, 0, dst, offset + first, length - first);
+		head = (head + length) % buffer.length;
+		size -= length;
+		totalPolled += length;
+		removeTakenEntries();
+		return length;
+	}
+
+	/**
+	 * Takes up to max bytes from the front of the queue, first dropping each entry whose
+	 * deadline has passed as it comes to the front.
+	 * @param now	The current System.nanoTime()
+	 * @return		The number of bytes taken
+	 */
+	public synchronized int poll(byte[] dst, int offset, int max, long now) {
+		int taken = 0;
+		while (taken < max) {
+			dropExpired(now);
+			if (entryCount == 0) {
+				break;
+			}
+			int rest = (int)(entryEnds[entryHead] - totalPolled);
+			if (rest <= max - taken) {
+				addCompleted(entryPutTimes[entryHead]);
+			}
+			taken += poll(dst, offset + taken, Math.min(max - taken, rest));
+		}
+		return taken;
+	}
+
+	/**
+	 * Records in the histogram how long each entry completed by poll(dst, offset, max, now)
+	 * since the last call was in the queue, from being added until the given time.
+	 * @param now	The System.nanoTime() the bytes of the entries were written out
+	 */
+	public synchronized void recordCompleted(LcdLatencyHistogram histogram, long now) {
+		for (int i = 0; i < completedCount; i++) {
+			histogram.record(now - completedPutTimes[i]);
+		}
+		completedCount = 0;
+	}
+
+	/**
+	 * Drops the entries at the front of the queue whose deadline has passed, up to the first
+	 * one that has not expired or has been started.
+	 * @param now	The current System.nanoTime()
+	 * @return		The number of entries dropped
+	 */
+	public synchronized int dropExpired(long now) {
+		int dropped = 0;
+		while (entryCount > 0 && totalPolled == entryStart) {
+			long deadline = entryDeadlines[entryHead];
+			if (deadline == NO_DEADLINE || deadline == NEVER_DROP || deadline - now >= 0) {
+				break;
+			}
+			dropped += dropEntries(1, true);
+		}
+		return dropped;
+	}
+
+	/**
+	 * Takes one byte from the front of the queue.
+	 * @return	The byte as 0-255, or -1 if the queue is empty
+	 */
+	public synchronized int poll() {
+		if (size == 0) {
+			return -1;
+		}
+		int b = buffer[head] & 0xFF;
+		head = (head + 1) % buffer.length;
+		size--;
+		totalPolled++;
+		removeTakenEntries();
+		return b;
+	}
+
+	/**
+	 * Waits until every byte has been taken from the queue.
+	 * @param timeoutNanos	The longest time to wait
+	 * @return				True if the queue is empty, false if the time ran out first
+	 * @throws InterruptedException	If the thread is interrupted while waiting
+	 */
+	public synchronized boolean awaitEmpty(long timeoutNanos) throws InterruptedException {
+		long giveUp = System.nanoTime() + timeoutNanos;
+		while (size > 0) {
+			long left = giveUp - System.nanoTime();
+			if (left <= 0) {
+				return false;
+			}
+			wait(left / 1000000, (int)(left % 1000000));
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of bytes in the queue
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The number of bytes the queue holds before it has to grow
+	 */
+	public synchronized int getCapacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return The number of bytes ever added to the queue
+	 */
+	public synchronized long getTotalPut() {
+		return totalPut;
+	}
+
+	/**
+	 * @return The number of bytes ever taken from the queue, counting bytes removed by clear()
+	 * 		   or dropped. Bytes dropped from behind a partly taken entry are counted as taken
+	 * 		   straight away, so a byte is taken once this reaches the value getTotalPut() had
+	 * 		   just after the byte was added.
+	 */
+	public synchronized long getTotalPolled() {
+		return totalPolled;
+	}
+
+	/**
+	 * @return The most bytes offer() lets the queue hold
+	 */
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Sets the most bytes offer() lets the queue hold. Bytes already queued over a new, lower
+	 * limit stay queued; once they are taken the buffer is not grown past the limit again.
+	 * @param limit	The limit in bytes
+	 */
+	public synchronized void setLimit(int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be positive: " + limit);
+		}
+		this.limit = limit;
+	}
+
+	/**
+	 * @return The most bytes the queue has held at once
+	 */
+	public synchronized int getHighWater() {
+		return highWater;
+	}
+
+	/**
+	 * @return The number of bytes ever removed by dropOldest() and dropUnsent()
+	 */
+	public synchronized long getTotalDropped() {
+		return totalDropped;
+	}
+
+	/**
+	 * @return The number of entries ever removed by dropOldest() and dropUnsent()
+	 */
+	public synchronized long getDroppedEntries() {
+		return droppedEntries;
+	}
+
+	/**
+	 * @return The number of bytes ever dropped because their deadline had passed
+	 */
+	public synchronized long getTotalExpired() {
+		return totalExpired;
+	}
+
+	/**
+	 * @return The number of entries ever dropped because their deadline had passed
+	 */
+	public synchronized long getExpiredEntries() {
+		return expiredEntries;
+	}
+
+	/**
+	 * Removes every byte from the queue.
+	 */
+	public synchronized void clear() {
+		head = 0;
+		size = 0;
+		totalPolled = totalPut;
+		entryCount = 0;
+		entryStart = totalPut;
+		notifyAll();
+	}
+
+	private void addEntry(long end, long deadline, long putTime) {
+		if (entryCount == entryEnds.length) {
+			long[] grownEnds = new long[entryEnds.length * 2];
+			long[] grownDeadlines = new long[grownEnds.length];
+			long[] grownPutTimes = new long[grownEnds.length];
+			for (int i = 0; i < entryCount; i++) {
+				grownEnds[i] = entryEnds[(entryHead + i) % entryEnds.length];
+				grownDeadlines[i] = entryDeadlines[(entryHead + i) % entryEnds.length];
+				grownPutTimes[i] = entryPutTimes[(entryHead + i) % entryEnds.length];
+			}
+			entryEnds = grownEnds;
+			entryDeadlines = grownDeadlines;
+			entryPutTimes = grownPutTimes;
+			entryHead = 0;
+		}
+		entryEnds[(entryHead + entryCount) % entryEnds.length] = end;
+		entryDeadlines[(entryHead + entryCount) % entryEnds.length] = deadline;
+		entryPutTimes[(entryHead + entryCount) % entryEnds.length] = putTime;
+		entryCount++;
+	}
+
+	private void addCompleted(long putTime) {
+		if (completedCount == COMPLETED_LIMIT) {
+			return;
+		}
+		if (completedCount == completedPutTimes.length) {
+			long[] grown = new long[completedPutTimes.length * 2];
+			System.arraycopy(completedPutTimes, 0, grown, 0, completedCount);
+			completedPutTimes = grown;
+		}
+		completedPutTimes[completedCount++] = putTime;
+	}
+
+	/**
+	 * Forgets the entries whose last byte has been taken, and wakes threads waiting for room.
+	 */
+	private void removeTakenEntries() {
+		while (entryCount > 0 && entryEnds[entryHead] <= totalPolled) {
+			entryStart = entryEnds[entryHead];
+			entryHead = (entryHead + 1) % entryEnds.length;
+			entryCount--;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Removes up to max whole entries that have not been started, oldest first, stopping at an
+	 * entry added with NEVER_DROP. If the oldest entry is partly taken, the rest of it is moved
+	 * up to just before the first entry kept.
+	 * @param expired	True if the entries are dropped because their deadline has passed
+	 * @return			The number of entries removed
+	 */
+	private int dropEntries(int max, boolean expired) {
+		boolean started = entryCount > 0 && totalPolled > entryStart;
+		int first = started ? 1 : 0;
+		int count = Math.min(max, entryCount - first);
+		for (int i = 0; i < count; i++) {
+			if (entryDeadlines[(entryHead + first + i) % entryEnds.length] == NEVER_DROP) {
+				count = i;
+				break;
+			}
+		}
+		if (count <= 0) {
+			return 0;
+		}
+		long from = started ? entryEnds[entryHead] : entryStart;
+		long to = entryEnds[(entryHead + first + count - 1) % entryEnds.length];
+		int dropped = (int)(to - from);
+
+		if (started) {
+			// move the rest of the started entry forward over the dropped bytes
+			int rest = (int)(from - totalPolled);
+			for (int i = rest - 1; i >= 0; i--) {
+				buffer[(head + dropped + i) % buffer.length] = buffer[(head + i) % buffer.length];
+			}
+			// the started entry now ends where the last dropped one did
+			long deadline = entryDeadlines[entryHead];
+			long putTime = entryPutTimes[entryHead];
+			entryHead = (entryHead + count) % entryEnds.length;
+			entryEnds[entryHead] = to;
+			entryDeadlines[entryHead] = deadline;
+			entryPutTimes[entryHead] = putTime;
+		}
+		else {
+			entryHead = (entryHead + count) % entryEnds.length;
+			entryStart = to;
+		}
+		entryCount -= count;
+		head = (head + dropped) % buffer.length;
+		size -= dropped;
+		totalPolled += dropped;
+		if (expired) {
+			totalExpired += dropped;
+			expiredEntries += count;
+		}
+		else {
+			totalDropped += dropped;
+			droppedEntries += count;
+		}
+		notifyAll();
+		return count;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (needed <= buffer.length) {
+			return;
+		}
+		int capacity = buffer.length;
+		while (capacity < needed) {
+			capacity *= 2;
+		}
+		capacity = Math.max(needed, Math.min(capacity, limit));
+		byte[] grown = new byte[capacity];
+		int first = Math.min(size, buffer.length - head);
+		System.arraycopy(buffer, head, grown, 0, first);
+		System.arraycopy(buffer, 0, grown, first, size - first);
+		buffer = grown;
+		head = 0;
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Describes one model of Matrix Orbital display: its graphics and text geometry, the size of its
+ * receive buffer, the fastest baud rate it supports and the commands it understands. The
+ * MatrixOrbitalApi takes all of its bounds checks, screen sizes and flow control settings from
+ * the active profile, so one API can drive any model in the fleet at that model's best speed.
+ *
+ * Profiles for the models this API was written against are provided. Other models are
+ * described by creating a profile; registering it with its module type code lets
+ * MatrixOrbitalApi.detectDeviceProfile() pick it from the module type the LCD reports.
+ */
+public class LcdDeviceProfile {
+
+	// module type of a profile that cannot be detected, only selected
+	public static final int UNKNOWN_MODULE_TYPE = -1;
+
+	// commands every model understands
+	private static final byte[] TEXT_COMMANDS = {
+		MatrixOrbitalCommands.WARM_RESET, MatrixOrbitalCommands.CLEAR_SCREEN,
+		MatrixOrbitalCommands.RESET_CURSOR, MatrixOrbitalCommands.SET_CURSOR,
+		MatrixOrbitalCommands.SET_BAUD_RATE, MatrixOrbitalCommands.FLOW_CONTROL_ON,
+		MatrixOrbitalCommands.FLOW_CONTROL_OFF, MatrixOrbitalCommands.SAVE_DATA_LOCK,
+		MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF, MatrixOrbitalCommands.GP_OUTPUT_PWR_ON,
+		MatrixOrbitalCommands.SAVE_BACKLIGHT_BRIGHTNESS, MatrixOrbitalCommands.SET_BACKLIGHT_BRIGHTNESS,
+		MatrixOrbitalCommands.SAVE_BACKLIGHT_CONTRAST, MatrixOrbitalCommands.SET_BACKLIGHT_CONTRAST,
+		MatrixOrbitalCommands.READ_VERSION, MatrixOrbitalCommands.READ_MODULE_TYPE };
+
+	// commands of the graphic models on top of the text commands
+	private static final byte[] GRAPHIC_COMMANDS = {
+		MatrixOrbitalCommands.SET_DRAWING_COLOR, MatrixOrbitalCommands.DRAW_PIXEL,
+		MatrixOrbitalCommands.DRAW_LINE, MatrixOrbitalCommands.CONTINUE_LINE,
+		MatrixOrbitalCommands.DRAW_RECTANGLE, MatrixOrbitalCommands.DRAW_SOLID_RECTANGLE,
+		MatrixOrbitalCommands.DRAW_BITMAP, MatrixOrbitalCommands.GET_FILESYSTEM_SPACE,
+		MatrixOrbitalCommands.UPLOAD_FONT, MatrixOrbitalCommands.UPLOAD_BITMAP,
+		MatrixOrbitalCommands.SET_CURRENT_FONT, MatrixOrbitalCommands.DRAW_SAVED_BITMAP,
+		MatrixOrbitalCommands.DELETE_FILE };
+
+	/**
+	 * The GLK19264-7T-1U graphic display, the model described by MatrixOrbitalSpecifications
+	 * and the profile used until another is selected.
+	 */
+	public static final LcdDeviceProfile GLK19264_7T_1U = new LcdDeviceProfile("GLK19264-7T-1U",
+			UNKNOWN_MODULE_TYPE, MatrixOrbitalSpecifications.LCD_WIDTH, MatrixOrbitalSpecifications.LCD_HEIGHT,
+			MatrixOrbitalSpecifications.LAST_LCD_ROW, MatrixOrbitalSpecifications.ROW_LENGTH,
+			256, MatrixOrbitalCommands.BAUD_115200, concat(TEXT_COMMANDS, GRAPHIC_COMMANDS));
+
+	/**
+	 * The LK204-7T-1U 20x4 character display, which has no graphics.
+	 */
+	public static final LcdDeviceProfile LK204_7T_1U = new LcdDeviceProfile("LK204-7T-1U",
+			UNKNOWN_MODULE_TYPE, 0, 0, 4, 20, 256, MatrixOrbitalCommands.BAUD_115200, TEXT_COMMANDS);
+
+	private static final CopyOnWriteArrayList<LcdDeviceProfile> registered = new CopyOnWriteArrayList<LcdDeviceProfile>();
+
+	private final String name;
+	private final int moduleType;
+	private final int width;
+	private final int height;
+	private final int textRows;
+	private final int textColumns;
+	private final int receiveBufferSize;
+	private final byte maxBaud;
+	private final boolean[] supported = new boolean[256];
+
+	/**
+	 * @param name				The model name
+	 * @param moduleType		The code the LCD replies with to READ_MODULE_TYPE, or UNKNOWN_MODULE_TYPE
+	 * @param width				Width of the graphics in pixels, 0 for a text only model
+	 * @param height			Height of the graphics in pixels, 0 for a text only model
+	 * @param textRows			Number of rows of text
+	 * @param textColumns		Number of characters in each row of text
+	 * @param receiveBufferSize	Size in bytes of the receive buffer of the LCD
+	 * @param maxBaud			The fastest baud rate supported, one of the BAUD_ values of MatrixOrbitalCommands
+	 * @param commands			The command bytes the model understands
+	 */
+	public LcdDeviceProfile(String name, int moduleType, int width, int height, int textRows, int textColumns,
+			int receiveBufferSize, byte maxBaud, byte[] commands) {
+		this.name = name;
+		this.moduleType = moduleType;
+		this.width = width;
+		this.height = height;
+		this.textRows = textRows;
+		this.textColumns = textColumns;
+		this.receiveBufferSize = receiveBufferSize;
+		this.maxBaud = maxBaud;
+		for (int i = 0; i < commands.length; i++) {
+			supported[commands[i] & 0xFF] = true;
+		}
+	}
+
+	/**
+	 * Makes a profile available to forModuleType().
+	 */
+	public static void register(LcdDeviceProfile profile) {
+		registered.addIfAbsent(profile);
+	}
+
+	/**
+	 * @return The profile registered for the module type, or null if there is none
+	 */
+	public static LcdDeviceProfile forModuleType(int moduleType) {
+		for (LcdDeviceProfile profile : registered) {
+			if (profile.moduleType == moduleType) {
+				return profile;
+			}
+		}
+		return null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getModuleType() {
+		return moduleType;
+	}
+
+	/**
+	 * @return Width of the graphics in pixels, 0 for a text only model
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return Height of the graphics in pixels, 0 for a text only model
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	public int getTextRows() {
+		return textRows;
+	}
+
+	public int getTextColumns() {
+		return textColumns;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * @return The fastest baud rate supported, one of the BAUD_ values of MatrixOrbitalCommands
+	 */
+	public byte getMaxBaud() {
+		return maxBaud;
+	}
+
+	/**
+	 * @return True if the model understands the given command byte
+	 */
+	public boolean supports(byte command) {
+		return supported[command & 0xFF];
+	}
+
+	/**
+	 * @return True if the model has graphics
+	 */
+	public boolean hasGraphics() {
+		return width > 0 && height > 0 && supports(MatrixOrbitalCommands.DRAW_PIXEL);
+	}
+
+	/**
+	 * The number of free bytes left in the receive buffer at which the LCD asks the host to stop
+	 * sending. An eighth of the buffer leaves room for the bytes already on their way; for a 256
+	 * byte buffer this is the 32 bytes found by tuning (see MatrixOrbitalCommands.FLOW_CONTROL_FULL).
+	 */
+	public int getFlowControlFull() {
+		return Math.max(1, receiveBufferSize / 8);
+	}
+
+	/**
+	 * The number of free bytes in the receive buffer at which the LCD lets the host send again,
+	 * just under half the buffer; 120 bytes for a 256 byte buffer (see FLOW_CONTROL_EMPTY).
+	 */
+	public int getFlowControlEmpty() {
+		return Math.min(255, receiveBufferSize * 15 / 32);
+	}
+
+	/**
+	 * The most bytes to write to the LCD at a time, a quarter of the stop margin so that a few
+	 * chunks can be in flight when the LCD asks the host to stop.
+	 */
+	public int getWriteChunkSize() {
+		return Math.max(1, getFlowControlFull() / 4);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] c = new byte[a.length + b.length];
+		System.arraycopy(a, 0, c, 0, a.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the hot paths of the MatrixOrbitalApi, so that a recording
+ * shows LCD stalls next to GC pauses and the rest of the system:
+ *   com.simmetry.lcd.Enqueue		a command queued for the LCD, with its command byte and size
+ *   com.simmetry.lcd.WriteChunk	a chunk of bytes written to the LCD, timed
+ *   com.simmetry.lcd.FlowStall		the time from the LCD signalling its buffer is full until
+ *   								it signals it has room again
+ *   com.simmetry.lcd.KeyReceived	a key code read from the LCD
+ *   com.simmetry.lcd.KeyDispatch	the button press listeners being called for a key, timed
+ * The events are in the "LCD" category. Enqueue and WriteChunk happen for every command and
+ * are off unless a recording enables them, for example with a custom .jfc file; the others
+ * are rare and on by default. While an event is off each call costs a flag check, since the
+ * event object does not escape and is removed by the JIT. On a Java without jdk.jfr,
+ * AVAILABLE is false and the methods do nothing.
+ */
+public final class LcdFlightEvents {
+
+	// true if this Java has the Flight Recorder API
+	public static final boolean AVAILABLE = isFlightRecorderPresent();
+
+	private LcdFlightEvents() {
+	}
+
+	/**
+	 * Records a command queued for the LCD.
+	 * @param command	The command byte, the second byte of the queued bytes
+	 * @param size		The number of bytes queued
+	 */
+	static void enqueue(byte command, int size) {
+		if (AVAILABLE) {
+			EnqueueEvent event = new EnqueueEvent();
+			if (event.isEnabled()) {
+				event.command = command & 0xFF;
+				event.size = size;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Starts timing a chunk written to the LCD.
+	 * @return	The event to pass to writeChunkEnd(), or null if the event is not recorded
+	 */
+	static Object writeChunkBegin() {
+		if (AVAILABLE) {
+			WriteChunkEvent event = new WriteChunkEvent();
+			if (event.isEnabled()) {
+				event.begin();
+				return event;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records a chunk written to the LCD.
+	 * @param event		The value returned by writeChunkBegin()
+	 * @param bytes		The number of bytes written
+	 */
+	static void writeChunkEnd(Object event, int bytes) {
+		if (event != null) {
+			WriteChunkEvent chunk = (WriteChunkEvent)event;
+			chunk.bytes = bytes;
+			chunk.commit();
+		}
+	}
+
+	/**
+	 * Starts timing a flow control stall, when the LCD signals its buffer is almost full.
+	 * @return	The event to pass to flowStallEnd(), or null if the event is not recorded
+	 */
+	static Object flowStallBegin() {
+		if (AVAILABLE) {
+			FlowStallEvent event = new FlowStallEvent();
+			if (event.isEnabled()) {
+				event.begin();
+				return event;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records a flow control stall, when the LCD signals its buffer is almost empty.
+	 * @param event		The value returned by flowStallBegin()
+	 * @param pending	The number of bytes waiting to be written when the stall ended
+	 */
+	static void flowStallEnd(Object event, int pending) {
+		if (event != null) {
+			FlowStallEvent stall = (FlowStallEvent)event;
+			stall.pending = pending;
+			stall.commit();
+		}
+	}
+
+	/**
+	 * Records a key code read from the LCD.
+	 */
+	static void keyReceived(byte key) {
+		if (AVAILABLE) {
+			KeyReceivedEvent event = new KeyReceivedEvent();
+			if (event.isEnabled()) {
+				event.key = key & 0xFF;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Starts timing the listener calls for a key.
+	 * @return	The event to pass to keyDispatchEnd(), or null if the event is not recorded
+	 */
+	static Object keyDispatchBegin() {
+		if (AVAILABLE) {
+			KeyDispatchEvent event = new KeyDispatchEvent();
+			if (event.isEnabled()) {
+				event.begin();
+				return event;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records the listener calls for a key.
+	 * @param event		The value returned by keyDispatchBegin()
+	 * @param key		The key code
+	 * @param listeners	The number of listeners called
+	 */
+	static void keyDispatchEnd(Object event, byte key, int listeners) {
+		if (event != null) {
+			KeyDispatchEvent dispatch = (KeyDispatchEvent)event;
+			dispatch.key = key & 0xFF;
+			dispatch.listeners = listeners;
+			dispatch.commit();
+		}
+	}
+
+	private static boolean isFlightRecorderPresent() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		}
+		catch (Throwable t) {
+			return false;
+		}
+	}
+
+	@Name("com.simmetry.lcd.Enqueue")
+	@Label("LCD Command Enqueue")
+	@Category("LCD")
+	@Description("A command queued for the LCD")
+	@Enabled(false)
+	@StackTrace(false)
+	static class EnqueueEvent extends Event {
+		@Label("Command")
+		int command;
+		@Label("Size")
+		@DataAmount
+		int size;
+	}
+
+	@Name("com.simmetry.lcd.WriteChunk")
+	@Label("LCD Write Chunk")
+	@Category("LCD")
+	@Description("A chunk of bytes written to the LCD")
+	@Enabled(false)
+	@StackTrace(false)
+	static class WriteChunkEvent extends Event {
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+	}
+
+	@Name("com.simmetry.lcd.FlowStall")
+	@Label("LCD Flow Control Stall")
+	@Category("LCD")
+	@Description("The LCD buffer was almost full and no bytes were written")
+	@StackTrace(false)
+	static class FlowStallEvent extends Event {
+		@Label("Pending Bytes")
+		@Description("Bytes waiting to be written when the stall ended")
+		@DataAmount
+		int pending;
+	}
+
+	@Name("com.simmetry.lcd.KeyReceived")
+	@Label("LCD Key Received")
+	@Category("LCD")
+	@Description("A key code read from the LCD")
+	@StackTrace(false)
+	static class KeyReceivedEvent extends Event {
+		@Label("Key")
+		int key;
+	}
+
+	@Name("com.simmetry.lcd.KeyDispatch")
+	@Label("LCD Key Dispatch")
+	@Category("LCD")
+	@Description("The button press listeners being called for a key")
+	@StackTrace(false)
+	static class KeyDispatchEvent extends Event {
+		@Label("Key")
+		int key;
+		@Label("Listeners")
+		int listeners;
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A font for drawing text at any pixel position with LcdTextRenderer, rather than on the
+ * character grid used by setRowText(). Glyphs are rasterized once from a system font at the
+ * requested size, without anti-aliasing, and kept as 1-bit bitmaps: this is the glyph atlas.
+ * Fonts are shared, so every caller asking for the same family, style and size gets the same
+ * instance and the same atlas.
+ */
+public class LcdFont {
+
+	// the atlas keeps Latin-1 glyphs in an array, anything else in a map
+	private static final int ARRAY_GLYPHS = 256;
+
+	private static final ConcurrentHashMap<String, LcdFont> fonts = new ConcurrentHashMap<String, LcdFont>();
+
+	private final String key;
+	private final Font font;
+	private final int ascent;
+	private final int height;
+	private final LcdBitmap[] glyphs = new LcdBitmap[ARRAY_GLYPHS];
+	private final int[] advances = new int[ARRAY_GLYPHS];
+	private final HashMap<Character, LcdBitmap> otherGlyphs = new HashMap<Character, LcdBitmap>();
+	private final HashMap<Character, Integer> otherAdvances = new HashMap<Character, Integer>();
+
+	/**
+	 * Returns the shared font for the given family, style and size.
+	 * @param family	A font family name, or one of the java.awt.Font logical names such as Font.SANS_SERIF
+	 * @param style		java.awt.Font.PLAIN, BOLD, ITALIC or BOLD|ITALIC
+	 * @param size		The size in pixels
+	 * @return			The font
+	 */
+	public static LcdFont get(String family, int style, int size) {
+		String key = family + "-" + style + "-" + size;
+		LcdFont font = fonts.get(key);
+		if (font == null) {
+			fonts.putIfAbsent(key, new LcdFont(key, new Font(family, style, size)));
+			font = fonts.get(key);
+		}
+		return font;
+	}
+
+	private LcdFont(String key, Font font) {
+		this.key = key;
+		this.font = font;
+		FontMetrics metrics = newGraphics(1, 1).getFontMetrics(font);
+		this.ascent = metrics.getAscent();
+		this.height = metrics.getAscent() + metrics.getDescent();
+	}
+
+	/**
+	 * @return The height in pixels of a line of text, and of every glyph
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The distance in pixels from the top of a line of text to its baseline
+	 */
+	public int getAscent() {
+		return ascent;
+	}
+
+	/**
+	 * @return The width in pixels the given text takes up
+	 */
+	public int getTextWidth(String text) {
+		int width = 0;
+		for (int i = 0; i < text.length(); i++) {
+			width += getAdvance(text.charAt(i));
+		}
+		return width;
+	}
+
+	/**
+	 * Returns the glyph of a character, rasterizing it the first time it is asked for. The
+	 * glyph is the full line height tall, with the baseline at getAscent(). It must not be changed.
+	 */
+	public synchronized LcdBitmap getGlyph(char c) {
+		if (c < ARRAY_GLYPHS) {
+			LcdBitmap glyph = glyphs[c];
+			if (glyph == null) {
+				glyph = rasterize(c);
+				glyphs[c] = glyph;
+			}
+			return glyph;
+		}
+		LcdBitmap glyph = otherGlyphs.get(c);
+		if (glyph == null) {
+			glyph = rasterize(c);
+			otherGlyphs.put(c, glyph);
+		}
+		return glyph;
+	}
+
+	/**
+	 * @return The distance in pixels from the start of a character to the start of the next
+	 */
+	public synchronized int getAdvance(char c) {
+		if (c < ARRAY_GLYPHS) {
+			if (glyphs[c] == null) {
+				getGlyph(c);
+			}
+			return advances[c];
+		}
+		Integer advance = otherAdvances.get(c);
+		if (advance == null) {
+			getGlyph(c);
+			advance = otherAdvances.get(c);
+		}
+		return advance.intValue();
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+
+	private LcdBitmap rasterize(char c) {
+		Graphics2D probe = newGraphics(1, 1);
+		int advance = probe.getFontMetrics(font).charWidth(c);
+		probe.dispose();
+
+		// leave room for glyphs that overhang their advance, such as italics
+		int width = Math.max(1, advance + font.getSize() / 2);
+		BufferedImage image = new BufferedImage(width, Math.max(1, height), BufferedImage.TYPE_BYTE_BINARY);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+		g.setFont(font);
+		g.setColor(java.awt.Color.WHITE);
+		g.drawString(String.valueOf(c), 0, ascent);
+		g.dispose();
+
+		// crop to the last used column, but never narrower than the advance
+		int used = advance;
+		for (int x = width - 1; x >= advance; x--) {
+			boolean column = false;
+			for (int y = 0; y < height && !column; y++) {
+				column = (image.getRGB(x, y) & 0xFFFFFF) != 0;
+			}
+			if (column) {
+				used = x + 1;
+				break;
+			}
+		}
+
+		LcdBitmap glyph = new LcdBitmap(Math.max(1, used), Math.max(1, height));
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < used; x++) {
+				if ((image.getRGB(x, y) & 0xFFFFFF) != 0) {
+					glyph.set(x, y, true);
+				}
+			}
+		}
+
+		if (c < ARRAY_GLYPHS) {
+			advances[c] = advance;
+		}
+		else {
+			otherAdvances.put(c, advance);
+		}
+		return glyph;
+	}
+
+	private static Graphics2D newGraphics(int width, int height) {
+		return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY).createGraphics();
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Turns the difference between the graphics on the LCD and the graphics wanted into LCD
+ * drawing commands, choosing by their cost in bytes since on a serial link bytes are latency.
+ * The changed pixels are split into bands of adjacent changed rows, and for each band the
+ * cheapest of these encodings is sent:
+ * 1) the changed pixels of each color covered with solid rectangles (7 bytes), lines (6) and
+ *    pixels (4) by LcdShapeCover. Lines and pixels use the drawing color, so each change of color costs a
+ *    SET_DRAWING_COLOR (3); both color orders are tried;
+ * 2) one DRAW_BITMAP of the bounding box of the band, 6 bytes plus one bit per pixel.
+ * When the bands together cost more than one DRAW_BITMAP of everything that changed, that is
+ * sent instead. Clearing the screen first (CLEAR_SCREEN, 2 bytes) also wipes the text, so that
+ * choice is left to MatrixOrbitalApi.drawScreen(), which knows the whole screen.
+ */
+public class LcdGraphicsEncoder {
+
+	// size in bytes of a DRAW_BITMAP command before its pixel data
+	static final int BITMAP_HEADER_COST = 6;
+
+	/**
+	 * Writes the commands that change the current graphics into the target graphics.
+	 * @param current		The graphics currently on the LCD
+	 * @param target		The graphics wanted on the LCD, the same size as current
+	 * @param drawingColor	The drawing color currently set on the LCD
+	 * @param out			The stream to write the commands to
+	 * @return				The drawing color set on the LCD once the commands have run
+	 */
+	public static DrawingColor encode(LcdBitmap current, LcdBitmap target, DrawingColor drawingColor,
+			ByteArrayOutputStream out) {
+
+		int height = target.getHeight();
+		LcdBitmap changed = new LcdBitmap(target.getWidth(), height);
+		changed.difference(current, target);
+
+		ByteArrayOutputStream bands = new ByteArrayOutputStream();
+		DrawingColor bandsColor = drawingColor;
+		int minX = Integer.MAX_VALUE, minY = -1, maxX = -1, maxY = -1;
+		int y = 0;
+		while (y < height) {
+			if (changed.firstSet(y) < 0) {
+				y++;
+				continue;
+			}
+			int y0 = y;
+			int x0 = Integer.MAX_VALUE;
+			int x1 = -1;
+			while (y < height && changed.firstSet(y) >= 0) {
+				x0 = Math.min(x0, changed.firstSet(y));
+				x1 = Math.max(x1, changed.lastSet(y));
+				y++;
+			}
+			bandsColor = encodeRegion(current, target, changed, x0, y0, x1, y - 1, bandsColor, bands);
+
+			if (minY < 0) {
+				minY = y0;
+			}
+			maxY = y - 1;
+			minX = Math.min(minX, x0);
+			maxX = Math.max(maxX, x1);
+		}
+		if (maxY < 0) {
+			return drawingColor;
+		}
+
+		if (bitmapCost(minX, minY, maxX, maxY) < bands.size()) {
+			writeBitmap(target, minX, minY, maxX, maxY, out);
+			return drawingColor;
+		}
+		out.write(bands.toByteArray(), 0, bands.size());
+		return bandsColor;
+	}
+
+	/**
+	 * @return The size in bytes of a DRAW_BITMAP of the given area (inclusive)
+	 */
+	static int bitmapCost(int x0, int y0, int x1, int y1) {
+		return BITMAP_HEADER_COST + ((x1 - x0 + 1) * (y1 - y0 + 1) + 7) / 8;
+	}
+
+	/**
+	 * Writes the cheapest encoding of the changed pixels in the given area (inclusive).
+	 * @return	The drawing color set on the LCD once the commands have run
+	 */
+	private static DrawingColor encodeRegion(LcdBitmap current, LcdBitmap target, LcdBitmap changed,
+			int x0, int y0, int x1, int y1, DrawingColor drawingColor, ByteArrayOutputStream out) {
+
+		DrawingColor other = (drawingColor == DrawingColor.BLACK) ? DrawingColor.WHITE : DrawingColor.BLACK;
+
+		ByteArrayOutputStream sameFirst = new ByteArrayOutputStream();
+		DrawingColor sameFirstColor = writeShapes(target, changed, x0, y0, x1, y1, drawingColor, drawingColor, sameFirst);
+		sameFirstColor = writeShapes(target, changed, x0, y0, x1, y1, other, sameFirstColor, sameFirst);
+
+		ByteArrayOutputStream otherFirst = new ByteArrayOutputStream();
+		DrawingColor otherFirstColor = writeShapes(target, changed, x0, y0, x1, y1, other, drawingColor, otherFirst);
+		otherFirstColor = writeShapes(target, changed, x0, y0, x1, y1, drawingColor, otherFirstColor, otherFirst);
+
+		ByteArrayOutputStream shapes = sameFirst;
+		DrawingColor shapesColor = sameFirstColor;
+		if (otherFirst.size() < sameFirst.size()) {
+			shapes = otherFirst;
+			shapesColor = otherFirstColor;
+		}
+
+		if (bitmapCost(x0, y0, x1, y1) < shapes.size()) {
+			writeBitmap(target, x0, y0, x1, y1, out);
+			return drawingColor;
+		}
+		out.write(shapes.toByteArray(), 0, shapes.size());
+		return shapesColor;
+	}
+
+	/**
+	 * Writes a DRAW_BITMAP of the given area (inclusive) of the bitmap.
+	 */
+	static void writeBitmap(LcdBitmap bitmap, int x0, int y0, int x1, int y1, ByteArrayOutputStream out) {
+		out.write(MatrixOrbitalCommands.START_BYTE);
+		out.write(MatrixOrbitalCommands.DRAW_BITMAP);
+		out.write(x0);
+		out.write(y0);
+		out.write(x1 - x0 + 1);
+		out.write(y1 - y0 + 1);
+		writePixels(bitmap, x0, y0, x1, y1, out);
+	}
+
+	/**
+	 * Writes the pixels of the given area (inclusive) of the bitmap as DRAW_BITMAP sends them,
+	 * 8 to a byte, most significant bit first, row after row.
+	 */
+	static void writePixels(LcdBitmap bitmap, int x0, int y0, int x1, int y1, ByteArrayOutputStream out) {
+		int bits = 0;
+		int count = 0;
+		for (int y = y0; y <= y1; y++) {
+			for (int x = x0; x <= x1; x++) {
+				bits = (bits << 1) | (bitmap.get(x, y) ? 1 : 0);
+				if (++count == 8) {
+					out.write(bits);
+					bits = 0;
+					count = 0;
+				}
+			}
+		}
+		if (count > 0) {
+			out.write(bits << (8 - count));
+		}
+	}
+
+	/**
+	 * Covers the pixels in the given area (inclusive) that change to the given color with shapes
+	 * of that color, found by LcdShapeCover.
+	 * @return	The drawing color set on the LCD once the shapes have been drawn
+	 */
+	private static DrawingColor writeShapes(LcdBitmap target, LcdBitmap changed,
+			int x0, int y0, int x1, int y1, DrawingColor color, DrawingColor drawingColor,
+			ByteArrayOutputStream out) {
+
+		int[] shapes = LcdShapeCover.cover(target, changed, color == DrawingColor.BLACK, x0, y0, x1, y1);
+		for (int i = 0; i < shapes.length; i += 4) {
+			drawingColor = writeShape(color, drawingColor, shapes[i], shapes[i + 1], shapes[i + 2], shapes[i + 3], out);
+		}
+		return drawingColor;
+	}
+
+	/**
+	 * Writes the cheapest command that fills the rectangle (inclusive) with the given color.
+	 * @return	The drawing color set on the LCD once the command has run
+	 */
+	static DrawingColor writeShape(DrawingColor color, DrawingColor drawingColor,
+			int x0, int y0, int x1, int y1, ByteArrayOutputStream out) {
+
+		if (x0 != x1 && y0 != y1) {
+			// the solid rectangle carries its own color
+			out.write(MatrixOrbitalCommands.START_BYTE);
+			out.write(MatrixOrbitalCommands.DRAW_SOLID_RECTANGLE);
+			out.write(color == DrawingColor.WHITE ? 0x0 : 0xFE);
+			out.write(x0);
+			out.write(y0);
+			out.write(x1);
+			out.write(y1);
+			return drawingColor;
+		}
+
+		if (color != drawingColor) {
+			out.write(MatrixOrbitalCommands.START_BYTE);
+			out.write(MatrixOrbitalCommands.SET_DRAWING_COLOR);
+			out.write(color == DrawingColor.WHITE ? 0x0 : 0xFE);
+		}
+		if (x0 == x1 && y0 == y1) {
+			out.write(MatrixOrbitalCommands.START_BYTE);
+			out.write(MatrixOrbitalCommands.DRAW_PIXEL);
+			out.write(x0);
+			out.write(y0);
+		}
+		else {
+			out.write(MatrixOrbitalCommands.START_BYTE);
+			out.write(MatrixOrbitalCommands.DRAW_LINE);
+			out.write(x0);
+			out.write(y0);
+			out.write(x1);
+			out.write(y1);
+		}
+		return color;
+	}
+}
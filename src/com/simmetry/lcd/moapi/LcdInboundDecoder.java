@@ -0,0 +1,125 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sorts the bytes read back from the LCD into flow control bytes, key codes and replies to
+ * queries. Queries are answered in the order they were sent, so any number may be outstanding:
+ * the decoder keeps them in a first in, first out list and hands reply bytes to the oldest one.
+ *
+ * The LCD gives no framing, so the decoder only treats a byte as a reply once the query it
+ * answers has actually been written. Before the first reply byte arrives, a flow control byte
+ * that changes the flow state is still taken as flow control, since the LCD may report a full
+ * buffer before it gets round to the query. Once a reply has started every byte belongs to it
+ * until it is complete. A key pressed in the instant between a query being written and its
+ * reply arriving can therefore be taken as the reply; the reply that follows is then either
+ * attributed to the next query or, if none is waiting, reported as an unknown byte.
+ */
+public class LcdInboundDecoder {
+
+	// what decode() found a byte to be
+	public static final int UNKNOWN = 0;
+	public static final int FLOW_STOP = 1;
+	public static final int FLOW_START = 2;
+	public static final int KEY = 3;
+	public static final int REPLY = 4;
+
+	// range of key codes the keypad sends
+	private static final int FIRST_KEY = 65;
+	private static final int LAST_KEY = 72;
+
+	private final LinkedList<LcdQuery<?>> pending = new LinkedList<LcdQuery<?>>();
+	private boolean flowing = true;
+
+	/**
+	 * Adds a query whose reply is expected.
+	 * @param query			The query
+	 * @param sentAfter		The number of outbound bytes that will have been written once the query is written
+	 */
+	public synchronized void expect(LcdQuery<?> query, long sentAfter) {
+		query.setSentAfter(sentAfter);
+		pending.add(query);
+	}
+
+	/**
+	 * Decodes one inbound byte.
+	 * @param b				The byte
+	 * @param bytesWritten	The number of outbound bytes written so far
+	 * @return				What the byte was: UNKNOWN, FLOW_STOP, FLOW_START, KEY or REPLY
+	 */
+	public synchronized int decode(byte b, long bytesWritten) {
+		LcdQuery<?> query = pending.peek();
+		if (query != null && query.isSent(bytesWritten)) {
+			if (query.isReplying() || !isFlowChange(b)) {
+				if (query.accept(b)) {
+					pending.poll();
+				}
+				return REPLY;
+			}
+		}
+
+		if (b == MatrixOrbitalCommands.FLOW_CONTROL_ALMOST_FULL) {
+			flowing = false;
+			return FLOW_STOP;
+		}
+		if (b == MatrixOrbitalCommands.FLOW_CONTROL_ALMOST_EMPTY) {
+			flowing = true;
+			return FLOW_START;
+		}
+		if (b >= FIRST_KEY && b <= LAST_KEY) {
+			return KEY;
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * Fails the oldest query if it was written more than the timeout ago and its reply has
+	 * not been completed, so that a lost reply does not hold up the queries behind it.
+	 * @param bytesWritten	The number of outbound bytes written so far
+	 * @param nowNanos		The current System.nanoTime()
+	 * @param timeoutNanos	How long to wait for a reply once the query has been written
+	 */
+	public synchronized void expire(long bytesWritten, long nowNanos, long timeoutNanos) {
+		LcdQuery<?> query = pending.peek();
+		if (query == null || !query.isSent(bytesWritten)) {
+			return;
+		}
+		if (query.getSentNanos() == 0) {
+			query.setSentNanos(nowNanos);
+		}
+		else if (nowNanos - query.getSentNanos() > timeoutNanos) {
+			pending.poll();
+			query.completeExceptionally(new TimeoutException("no reply from LCD to query 0x" +
+					Integer.toHexString(query.getCommand() & 0xFF)));
+		}
+	}
+
+	/**
+	 * Fails every outstanding query and resets the flow state, used when the link is lost.
+	 * @param reason	Why the queries failed
+	 */
+	public synchronized void reset(String reason) {
+		while (!pending.isEmpty()) {
+			pending.poll().completeExceptionally(new IOException(reason));
+		}
+		flowing = true;
+	}
+
+	/**
+	 * @return The number of queries waiting for a reply
+	 */
+	public synchronized int getPendingQueries() {
+		return pending.size();
+	}
+
+	private boolean isFlowChange(byte b) {
+		return (b == MatrixOrbitalCommands.FLOW_CONTROL_ALMOST_FULL && flowing) ||
+			   (b == MatrixOrbitalCommands.FLOW_CONTROL_ALMOST_EMPTY && !flowing);
+	}
+}
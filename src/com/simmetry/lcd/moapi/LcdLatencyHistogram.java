@@ -0,0 +1,219 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, recorded without locks so that the service thread
+ * of the MatrixOrbitalApi never waits on whoever reads it. Values are counted in buckets that
+ * are exact below 128 ns and cover the rest in steps of at most 1/64 of the value, so every
+ * percentile is within about 1.6% of the value recorded; the maximum is kept exactly. Values
+ * over an hour are counted as an hour.
+ *
+ * snapshot() reads the histogram as it stands. snapshotAndReset() moves the counts out into
+ * the snapshot and starts a new interval, so a monitor calling it every minute gets the
+ * latencies of that minute; a value recorded while it runs lands in one interval or the next,
+ * never in both or neither. The histogram is also a JMX MBean, see LcdLatencyMXBean.
+ */
+public class LcdLatencyHistogram implements LcdLatencyMXBean {
+
+	// values below 2^SUB_BITS have a bucket each, above that each power of two has HALF buckets
+	private static final int SUB_BITS = 7;
+	private static final int HALF = 1 << (SUB_BITS - 1);
+	private static final long HIGHEST = TimeUnit.HOURS.toNanos(1);
+	private static final int BUCKETS = bucketOf(HIGHEST) + 1;
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+
+	/**
+	 * @param name	What is measured, used in the text of the histogram
+	 */
+	public LcdLatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Records one latency.
+	 * @param nanos	The latency in nanoseconds, negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.min(Math.max(0, nanos), HIGHEST);
+		counts.incrementAndGet(bucketOf(value));
+		total.addAndGet(value);
+		long seen = max.get();
+		while (value > seen && !max.compareAndSet(seen, value)) {
+			seen = max.get();
+		}
+	}
+
+	/**
+	 * @return The latencies recorded since the last reset
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(name, copy, total.get(), max.get());
+	}
+
+	/**
+	 * @return The latencies recorded since the last reset, which are then forgotten
+	 */
+	public Snapshot snapshotAndReset() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.getAndSet(i, 0);
+		}
+		return new Snapshot(name, copy, total.getAndSet(0), max.getAndSet(0));
+	}
+
+	/**
+	 * Forgets every latency recorded.
+	 */
+	public void reset() {
+		snapshotAndReset();
+	}
+
+	public long getCount() {
+		return snapshot().getCount();
+	}
+
+	public double getMeanMicros() {
+		return snapshot().getMean() / 1000.0;
+	}
+
+	public double getP50Micros() {
+		return snapshot().getValueAtPercentile(50) / 1000.0;
+	}
+
+	public double getP90Micros() {
+		return snapshot().getValueAtPercentile(90) / 1000.0;
+	}
+
+	public double getP99Micros() {
+		return snapshot().getValueAtPercentile(99) / 1000.0;
+	}
+
+	public double getP999Micros() {
+		return snapshot().getValueAtPercentile(99.9) / 1000.0;
+	}
+
+	public double getMaxMicros() {
+		return max.get() / 1000.0;
+	}
+
+	public String getSummary() {
+		return snapshot().toString();
+	}
+
+	@Override
+	public String toString() {
+		return getSummary();
+	}
+
+	private static int bucketOf(long value) {
+		if (value < 2 * HALF) {
+			return (int)value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * HALF + (int)(value >>> shift);
+	}
+
+	/**
+	 * @return The highest value counted in the bucket
+	 */
+	private static long highestOf(int bucket) {
+		if (bucket < 2 * HALF) {
+			return bucket;
+		}
+		int shift = bucket / HALF - 1;
+		long mantissa = bucket % HALF + HALF;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * The latencies of one interval, which no longer change.
+	 */
+	public static class Snapshot {
+
+		private final String name;
+		private final long[] counts;
+		private final long count;
+		private final long total;
+		private final long max;
+
+		Snapshot(String name, long[] counts, long total, long max) {
+			this.name = name;
+			this.counts = counts;
+			long count = 0;
+			for (int i = 0; i < counts.length; i++) {
+				count += counts[i];
+			}
+			this.count = count;
+			this.total = total;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The largest latency in nanoseconds
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @return The mean latency in nanoseconds
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double)total / count;
+		}
+
+		/**
+		 * @param percentile	The percentile, such as 99.9
+		 * @return				The latency in nanoseconds that the given percentage of the
+		 * 						latencies do not exceed, or 0 if none were recorded
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(highestOf(i), max);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * @return One line with the count, mean, percentiles and maximum in microseconds
+		 */
+		@Override
+		public String toString() {
+			return String.format("%s: count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+					name, count, getMean() / 1000.0, getValueAtPercentile(50) / 1000.0,
+					getValueAtPercentile(90) / 1000.0, getValueAtPercentile(99) / 1000.0,
+					getValueAtPercentile(99.9) / 1000.0, max / 1000.0);
+		}
+	}
+}
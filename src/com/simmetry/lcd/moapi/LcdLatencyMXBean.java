@@ -0,0 +1,34 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+/**
+ * The JMX view of an LcdLatencyHistogram, registered by
+ * MatrixOrbitalApi.registerLatencyMBeans(). The attributes read the histogram as it stands,
+ * in microseconds; reset() starts a new interval.
+ */
+public interface LcdLatencyMXBean {
+
+	public long getCount();
+
+	public double getMeanMicros();
+
+	public double getP50Micros();
+
+	public double getP90Micros();
+
+	public double getP99Micros();
+
+	public double getP999Micros();
+
+	public double getMaxMicros();
+
+	/**
+	 * @return One line with the count, mean, percentiles and maximum
+	 */
+	public String getSummary();
+
+	public void reset();
+}
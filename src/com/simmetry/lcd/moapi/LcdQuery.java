@@ -0,0 +1,87 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A query sent to the LCD whose reply arrives later on the inbound stream. The query is the
+ * future of its own result: it completes when the LcdInboundDecoder has collected all of the
+ * reply bytes, or fails if the reply does not come in time or the link is lost.
+ * @param <T>	The type of the decoded reply
+ */
+public abstract class LcdQuery<T> extends CompletableFuture<T> {
+
+	private final byte command;
+	private final byte[] reply;
+	private int received = 0;
+
+	// the total number of outbound bytes written once the query itself has been written,
+	// before then any inbound byte cannot be part of its reply
+	private long sentAfter = -1;
+	private long sentNanos = 0;
+
+	/**
+	 * @param command		The query command byte, from MatrixOrbitalCommands
+	 * @param replyLength	The number of bytes the LCD replies with
+	 */
+	protected LcdQuery(byte command, int replyLength) {
+		this.command = command;
+		this.reply = new byte[replyLength];
+	}
+
+	/**
+	 * Turns the complete reply into the result of the query.
+	 */
+	protected abstract T decode(byte[] reply);
+
+	public byte getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return True once the first byte of the reply has been received
+	 */
+	boolean isReplying() {
+		return received > 0;
+	}
+
+	/**
+	 * @return True if the query has been written, given the number of outbound bytes written so far
+	 */
+	boolean isSent(long bytesWritten) {
+		return sentAfter >= 0 && bytesWritten >= sentAfter;
+	}
+
+	void setSentAfter(long bytesWritten) {
+		sentAfter = bytesWritten;
+	}
+
+	long getSentNanos() {
+		return sentNanos;
+	}
+
+	void setSentNanos(long nanos) {
+		sentNanos = nanos;
+	}
+
+	/**
+	 * Adds a reply byte, completing the query with the decoded reply after the last byte.
+	 * @return True if that was the last byte of the reply
+	 */
+	boolean accept(byte b) {
+		reply[received++] = b;
+		if (received < reply.length) {
+			return false;
+		}
+		try {
+			complete(decode(reply));
+		}
+		catch (RuntimeException e) {
+			completeExceptionally(e);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,17 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+/*
+ * Sets what the MatrixOrbitalApi does with a command when its outbound queue is full. Queries
+ * and commands that change the LCD filesystem are never dropped to make room, and a query that
+ * is refused fails straight away.
+ */
+public enum LcdQueuePolicy {
+	BLOCK,			// the caller waits for room, up to the block timeout, then the command is refused
+	FAIL_FAST,		// the command is refused straight away
+	DROP_OLDEST,	// the oldest whole commands not yet started are dropped to make room
+	COALESCE		// every command not yet started is replaced by a redraw of the latest screen state
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.util.Arrays;
+
+/**
+ * Draws styled lines, circles, arcs, polygons and fills into an LcdBitmap on the host. The
+ * result is sent to the LCD with MatrixOrbitalApi.drawBitmap(), which only transmits the
+ * pixels that changed using the cheapest encoding, e.g.
+ *
+ *   LcdBitmap graphics = api.getGraphics();
+ *   LcdRasterizer rasterizer = new LcdRasterizer(graphics);
+ *   rasterizer.drawCircle(DrawingColor.BLACK, DrawingStyle.DOTTED, 96, 32, 20);
+ *   api.drawBitmap(graphics);
+ *
+ * The DrawingStyle patterns are:
+ *   SOLID			every pixel
+ *   DASHED			10 pixels on, 10 pixels off
+ *   DASHED_LONG	20 pixels on, 20 pixels off
+ *   DOTTED			alternating pixels
+ * A pattern continues from one segment of a polygon to the next.
+ */
+public class LcdRasterizer {
+
+	private final LcdBitmap canvas;
+
+	// position within the current style pattern, in pixels
+	private int patternStep = 0;
+
+	/**
+	 * @param canvas	The bitmap to draw into
+	 */
+	public LcdRasterizer(LcdBitmap canvas) {
+		this.canvas = canvas;
+	}
+
+	/**
+	 * @return The bitmap being drawn into
+	 */
+	public LcdBitmap getCanvas() {
+		return canvas;
+	}
+
+	/**
+	 * Returns true if the given pixel of a pattern is drawn.
+	 * @param style	The drawing style
+	 * @param step	The pixel number along the path, starting at 0
+	 */
+	public static boolean isPatternOn(DrawingStyle style, int step) {
+		switch (style) {
+			case DASHED:
+				return (step % 20) < 10;
+			case DASHED_LONG:
+				return (step % 40) < 20;
+			case DOTTED:
+				return (step & 1) == 0;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Splits a styled line into the solid runs of its pattern, so that a dashed line can be
+	 * sent as a few native lines instead of pixels.
+	 * @return	The end points of each run, as x_a, y_a, x_b, y_b for each run in turn
+	 */
+	public static int[] patternRuns(DrawingStyle style, int x_loc_a, int y_loc_a, int x_loc_b, int y_loc_b) {
+		int dx = Math.abs(x_loc_b - x_loc_a);
+		int dy = -Math.abs(y_loc_b - y_loc_a);
+		int sx = x_loc_a < x_loc_b ? 1 : -1;
+		int sy = y_loc_a < y_loc_b ? 1 : -1;
+		int err = dx + dy;
+		int x = x_loc_a;
+		int y = y_loc_a;
+		int[] runs = new int[16];
+		int n = 0;
+		int step = 0;
+		boolean inRun = false;
+
+		while (true) {
+			boolean on = isPatternOn(style, step++);
+			if (on && !inRun) {
+				if (n + 4 > runs.length) {
+					runs = Arrays.copyOf(runs, runs.length * 2);
+				}
+				runs[n] = x;
+				runs[n + 1] = y;
+				n += 4;
+			}
+			if (on) {
+				runs[n - 2] = x;
+				runs[n - 1] = y;
+			}
+			inRun = on;
+			if (x == x_loc_b && y == y_loc_b) {
+				break;
+			}
+			int e2 = 2 * err;
+			if (e2 >= dy) {
+				err += dy;
+				x += sx;
+			}
+			if (e2 <= dx) {
+				err += dx;
+				y += sy;
+			}
+		}
+		return Arrays.copyOf(runs, n);
+	}
+
+	/**
+	 * Draws a line between the two end points (inclusive) in the given style.
+	 */
+	public void drawLine(DrawingColor color, DrawingStyle style, int x_loc_a, int y_loc_a, int x_loc_b, int y_loc_b) {
+		patternStep = 0;
+		line(color == DrawingColor.BLACK, style, x_loc_a, y_loc_a, x_loc_b, y_loc_b, false);
+	}
+
+	/**
+	 * Draws the outline of a closed polygon in the given style.
+	 * @param xs	The X locations of the vertices
+	 * @param ys	The Y locations of the vertices
+	 * @param count	The number of vertices
+	 */
+	public void drawPolygon(DrawingColor color, DrawingStyle style, int[] xs, int[] ys, int count) {
+		patternStep = 0;
+		boolean black = (color == DrawingColor.BLACK);
+		for (int i = 0; i < count; i++) {
+			int j = (i + 1) % count;
+			// every segment after the first skips its start point, which ended the previous one
+			line(black, style, xs[i], ys[i], xs[j], ys[j], i > 0);
+		}
+	}
+
+	/**
+	 * Fills a polygon using the even-odd rule, a pixel is filled when its center is inside.
+	 * @param xs	The X locations of the vertices
+	 * @param ys	The Y locations of the vertices
+	 * @param count	The number of vertices
+	 */
+	public void fillPolygon(DrawingColor color, int[] xs, int[] ys, int count) {
+		boolean black = (color == DrawingColor.BLACK);
+		int minY = Integer.MAX_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		for (int i = 0; i < count; i++) {
+			minY = Math.min(minY, ys[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+		minY = Math.max(minY, 0);
+		maxY = Math.min(maxY, canvas.getHeight() - 1);
+
+		int[] crossings = new int[count];
+		for (int y = minY; y <= maxY; y++) {
+			double scan = y + 0.5;
+			int n = 0;
+			for (int i = 0; i < count; i++) {
+				int j = (i + 1) % count;
+				double ya = ys[i];
+				double yb = ys[j];
+				if ((ya <= scan && yb > scan) || (yb <= scan && ya > scan)) {
+					double x = xs[i] + (scan - ya) * (xs[j] - xs[i]) / (yb - ya);
+					crossings[n++] = (int)Math.ceil(x - 0.5);
+				}
+			}
+			Arrays.sort(crossings, 0, n);
+			for (int k = 0; k + 1 < n; k += 2) {
+				if (crossings[k + 1] - 1 >= crossings[k]) {
+					canvas.fillRectangle(crossings[k], y, crossings[k + 1] - 1, y, black);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws the outline of a circle in the given style.
+	 * @param x_center	X location of the center
+	 * @param y_center	Y location of the center
+	 * @param radius	Radius in pixels
+	 */
+	public void drawCircle(DrawingColor color, DrawingStyle style, int x_center, int y_center, int radius) {
+		drawArc(color, style, x_center, y_center, radius, 0, 360);
+	}
+
+	/**
+	 * Draws part of the outline of a circle in the given style. Angles are in degrees,
+	 * counter-clockwise from the positive X axis, and the arc runs from the start angle to
+	 * the end angle in that direction.
+	 * @param x_center		X location of the center
+	 * @param y_center		Y location of the center
+	 * @param radius		Radius in pixels
+	 * @param startDegrees	Angle the arc starts at
+	 * @param endDegrees	Angle the arc ends at
+	 */
+	public void drawArc(DrawingColor color, DrawingStyle style, int x_center, int y_center, int radius,
+			int startDegrees, int endDegrees) {
+
+		boolean black = (color == DrawingColor.BLACK);
+		int sweep = endDegrees - startDegrees;
+		boolean full = sweep >= 360 || sweep <= -360;
+		double start = Math.toRadians(((startDegrees % 360) + 360) % 360);
+		double span = Math.toRadians(((sweep % 360) + 360) % 360);
+
+		// Walk the circle counter-clockwise one pixel at a time so the style pattern follows
+		// the outline. The midpoint algorithm gives the pixels of one octant in order; the
+		// other octants are its mirror images, so collect the first octant and replay it.
+		int[] ox = new int[radius + 2];
+		int[] oy = new int[radius + 2];
+		int n = 0;
+		int x = radius;
+		int y = 0;
+		int err = 1 - radius;
+		while (x >= y) {
+			ox[n] = x;
+			oy[n] = y;
+			n++;
+			y++;
+			if (err < 0) {
+				err += 2 * y + 1;
+			}
+			else {
+				x--;
+				err += 2 * (y - x) + 1;
+			}
+		}
+
+		int step = 0;
+		for (int octant = 0; octant < 8; octant++) {
+			boolean reverse = (octant & 1) == 1;
+			for (int k = 0; k < n; k++) {
+				int i = reverse ? n - 1 - k : k;
+				// skip the points shared by neighbouring octants: the 45 degree points, the axis
+				// points the reversed octants end on, and the start point when the circle closes
+				boolean shared = reverse ? (i == n - 1 && ox[i] == oy[i]) || (octant == 7 && i == 0)
+						: (i == 0 && octant > 0);
+				if (shared) {
+					continue;
+				}
+				int px, py;
+				switch (octant) {
+					case 0: px = ox[i]; py = oy[i]; break;
+					case 1: px = oy[i]; py = ox[i]; break;
+					case 2: px = -oy[i]; py = ox[i]; break;
+					case 3: px = -ox[i]; py = oy[i]; break;
+					case 4: px = -ox[i]; py = -oy[i]; break;
+					case 5: px = -oy[i]; py = -ox[i]; break;
+					case 6: px = oy[i]; py = -ox[i]; break;
+					default: px = ox[i]; py = -oy[i]; break;
+				}
+				if (!full) {
+					double angle = Math.atan2(py, px);
+					double offset = angle - start;
+					while (offset < 0) {
+						offset += 2 * Math.PI;
+					}
+					if (offset > span) {
+						continue;
+					}
+				}
+				if (isPatternOn(style, step++)) {
+					canvas.set(x_center + px, y_center + py, black);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills a circle, including its outline.
+	 * @param x_center	X location of the center
+	 * @param y_center	Y location of the center
+	 * @param radius	Radius in pixels
+	 */
+	public void fillCircle(DrawingColor color, int x_center, int y_center, int radius) {
+		boolean black = (color == DrawingColor.BLACK);
+		int x = radius;
+		int y = 0;
+		int err = 1 - radius;
+		while (x >= y) {
+			canvas.fillRectangle(x_center - x, y_center + y, x_center + x, y_center + y, black);
+			canvas.fillRectangle(x_center - x, y_center - y, x_center + x, y_center - y, black);
+			canvas.fillRectangle(x_center - y, y_center + x, x_center + y, y_center + x, black);
+			canvas.fillRectangle(x_center - y, y_center - x, x_center + y, y_center - x, black);
+			y++;
+			if (err < 0) {
+				err += 2 * y + 1;
+			}
+			else {
+				x--;
+				err += 2 * (y - x) + 1;
+			}
+		}
+	}
+
+	/**
+	 * Fills the area of same colored pixels connected (left, right, up and down) to the
+	 * given location with the given color.
+	 */
+	public void floodFill(DrawingColor color, int x_loc, int y_loc) {
+		if (!canvas.contains(x_loc, y_loc)) {
+			return;
+		}
+		boolean black = (color == DrawingColor.BLACK);
+		boolean from = canvas.get(x_loc, y_loc);
+		if (from == black) {
+			return;
+		}
+
+		// Scanline fill: fill the whole run a seed is on, then push one seed for each run of
+		// fillable pixels directly above and below it.
+		int width = canvas.getWidth();
+		int height = canvas.getHeight();
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = y_loc * width + x_loc;
+
+		while (top > 0) {
+			int seed = stack[--top];
+			int y = seed / width;
+			int x = seed % width;
+			if (canvas.get(x, y) != from) {
+				continue;
+			}
+			int x0 = x;
+			while (x0 > 0 && canvas.get(x0 - 1, y) == from) {
+				x0--;
+			}
+			int x1 = x;
+			while (x1 < width - 1 && canvas.get(x1 + 1, y) == from) {
+				x1++;
+			}
+			canvas.fillRectangle(x0, y, x1, y, black);
+
+			for (int ny = y - 1; ny <= y + 1; ny += 2) {
+				if (ny < 0 || ny >= height) {
+					continue;
+				}
+				boolean inRun = false;
+				for (int nx = x0; nx <= x1; nx++) {
+					boolean fillable = canvas.get(nx, ny) == from;
+					if (fillable && !inRun) {
+						if (top == stack.length) {
+							stack = Arrays.copyOf(stack, stack.length * 2);
+						}
+						stack[top++] = ny * width + nx;
+					}
+					inRun = fillable;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws a line with Bresenham's algorithm, advancing the style pattern by one for every
+	 * pixel on the path.
+	 * @param skipFirst	True if the first point is not drawn or counted
+	 */
+	private void line(boolean black, DrawingStyle style, int x_a, int y_a, int x_b, int y_b, boolean skipFirst) {
+		int dx = Math.abs(x_b - x_a);
+		int dy = -Math.abs(y_b - y_a);
+		int sx = x_a < x_b ? 1 : -1;
+		int sy = y_a < y_b ? 1 : -1;
+		int err = dx + dy;
+		int x = x_a;
+		int y = y_a;
+		boolean first = true;
+
+		while (true) {
+			if (!(first && skipFirst)) {
+				if (isPatternOn(style, patternStep++)) {
+					canvas.set(x, y, black);
+				}
+			}
+			first = false;
+			if (x == x_b && y == y_b) {
+				break;
+			}
+			int e2 = 2 * err;
+			if (e2 >= dy) {
+				err += dy;
+				x += sx;
+			}
+			if (e2 <= dx) {
+				err += dx;
+				y += sy;
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Renders a scene to the LCD at a fixed maximum frame rate. Producers change the scene as often
+ * as they like through update(); on every frame tick the newest scene is compared with what the
+ * LCD shows and only the differences are sent, using MatrixOrbitalApi.drawScreen().
+ * A frame is only sent once the previous one has been written and the LCD is accepting data.
+ * Ticks that find the link still busy are skipped, so a slow link or a full LCD buffer never
+ * builds up a backlog of stale frames: the next frame that is sent is always the newest scene.
+ */
+public class LcdRenderLoop {
+
+	/**
+	 * A change to the scene, run while the scene is locked.
+	 */
+	public interface SceneUpdate {
+		void update(LcdScreenState scene);
+	}
+
+	private final MatrixOrbitalApi api;
+	private final LcdScreenState scene;
+	private final LcdScreenState frame;
+	private final ScheduledExecutorService scheduler;
+	private boolean dirty = false;
+	private long framesRendered = 0;
+	private long framesSkipped = 0;
+
+	// class logger
+	private static final Logger logger = Logger.getLogger(com.simmetry.lcd.moapi.LcdRenderLoop.class);
+
+	/**
+	 * Starts rendering to the LCD. The scene starts blank, the size of the device profile of the LCD.
+	 * @param api				The LCD to render to
+	 * @param framesPerSecond	The most frames to send in a second
+	 */
+	public LcdRenderLoop(MatrixOrbitalApi api, int framesPerSecond) {
+		if (framesPerSecond <= 0) {
+			throw new IllegalArgumentException("frame rate must be positive: " + framesPerSecond);
+		}
+		this.scene = new LcdScreenState(api.getDeviceProfile());
+		this.frame = new LcdScreenState(api.getDeviceProfile());
+		this.api = api;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "LcdRenderLoop");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = 1000000000L / framesPerSecond;
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					tick();
+				}
+				catch (RuntimeException e) {
+					logger.error("Render failed: " + e.getMessage(), e);
+				}
+			}
+		}, period, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Changes the scene. The change is shown on the next frame that is sent; several updates
+	 * between two frames are sent together as one.
+	 * @param update	The change to make
+	 */
+	public void update(SceneUpdate update) {
+		synchronized (scene) {
+			update.update(scene);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Stops rendering. Anything already queued for the LCD is still sent.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * @return The number of frames sent to the LCD
+	 */
+	public synchronized long getFramesRendered() {
+		return framesRendered;
+	}
+
+	/**
+	 * @return The number of frame ticks that had a changed scene but were skipped because the
+	 * previous frame had not been written yet or the LCD buffer was full
+	 */
+	public synchronized long getFramesSkipped() {
+		return framesSkipped;
+	}
+
+	private void tick() {
+		synchronized (scene) {
+			if (!dirty) {
+				return;
+			}
+			if (api.getPendingBytes() > 0 || !api.isFlowing()) {
+				synchronized (this) {
+					framesSkipped++;
+				}
+				return;
+			}
+			frame.copyFrom(scene);
+			dirty = false;
+		}
+
+		// producers may carry on changing the scene while this frame is diffed and queued
+		api.drawScreen(frame);
+		synchronized (this) {
+			framesRendered++;
+		}
+	}
+}
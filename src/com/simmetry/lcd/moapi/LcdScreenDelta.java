@@ -0,0 +1,89 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The commands that change one screen into another, encoded once so they can be sent many
+ * times: either only what differs between the screens, or CLEAR_SCREEN followed by a redraw of
+ * the whole screen, whichever is shorter. MatrixOrbitalApi.drawScreen() encodes one of these
+ * for every call; LcdAnimation keeps them to replay the same changes without encoding again.
+ *
+ * The screens are not copied, so a delta only describes them while they are left unchanged.
+ */
+public class LcdScreenDelta {
+
+	private final LcdScreenState from;
+	private final LcdScreenState to;
+	private final DrawingColor colorBefore;
+	private final DrawingColor colorAfter;
+	private final byte[] commands;
+
+	/**
+	 * @param from			The screen the LCD shows
+	 * @param to			The screen to change it into
+	 * @param drawingColor	The drawing color set on the LCD
+	 */
+	public LcdScreenDelta(LcdScreenState from, LcdScreenState to, DrawingColor drawingColor) {
+		this.from = from;
+		this.to = to;
+		this.colorBefore = drawingColor;
+
+		ByteArrayOutputStream changes = new ByteArrayOutputStream();
+		DrawingColor changesColor = to.writeChangeCommands(from, drawingColor, changes);
+
+		ByteArrayOutputStream redraw = new ByteArrayOutputStream();
+		redraw.write(MatrixOrbitalCommands.START_BYTE);
+		redraw.write(MatrixOrbitalCommands.CLEAR_SCREEN);
+		DrawingColor redrawColor = to.writeRestoreCommands(drawingColor, redraw);
+
+		if (redraw.size() < changes.size()) {
+			commands = redraw.toByteArray();
+			colorAfter = redrawColor;
+		}
+		else if (changes.size() > 0) {
+			commands = changes.toByteArray();
+			colorAfter = changesColor;
+		}
+		else {
+			commands = new byte[0];
+			colorAfter = drawingColor;
+		}
+	}
+
+	public LcdScreenState getFrom() {
+		return from;
+	}
+
+	public LcdScreenState getTo() {
+		return to;
+	}
+
+	/**
+	 * @return The drawing color the commands were encoded for
+	 */
+	public DrawingColor getColorBefore() {
+		return colorBefore;
+	}
+
+	/**
+	 * @return The drawing color set on the LCD once the commands have run
+	 */
+	public DrawingColor getColorAfter() {
+		return colorAfter;
+	}
+
+	/**
+	 * @return The number of bytes the change takes on the wire
+	 */
+	public int size() {
+		return commands.length;
+	}
+
+	byte[] getCommands() {
+		return commands;
+	}
+}
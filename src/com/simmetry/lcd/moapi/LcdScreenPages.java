@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Named screens kept on the host, for menus and other sets of pages that are switched between.
+ * Each page is an LcdScreenState, text rows and graphics, and one page at a time is shown on
+ * the LCD. Showing a page sends it with MatrixOrbitalApi.drawScreen(), so only the difference
+ * between the screen the LCD shows and the page is sent instead of clearing the screen and
+ * drawing the page again. Pages that are not shown can be changed as often as needed without
+ * sending anything; changes to the page that is shown are sent straight away, again as the
+ * difference only.
+ */
+public class LcdScreenPages {
+
+	private final MatrixOrbitalApi api;
+	private final Map<String, LcdScreenState> pages = new LinkedHashMap<String, LcdScreenState>();
+	private String shown = null;
+
+	// class logger
+	private static final Logger logger = Logger.getLogger(com.simmetry.lcd.moapi.LcdScreenPages.class);
+
+	/**
+	 * @param api	The LCD the pages are shown on; pages are the size of its device profile
+	 */
+	public LcdScreenPages(MatrixOrbitalApi api) {
+		this.api = api;
+	}
+
+	/**
+	 * Changes a page, creating it blank if there is no page of that name. If the page is shown
+	 * the change is sent to the LCD, otherwise nothing is sent until the page is shown.
+	 * @param name		The name of the page
+	 * @param update	The change to make
+	 */
+	public synchronized void update(String name, LcdRenderLoop.SceneUpdate update) {
+		LcdScreenState page = pages.get(name);
+		if (page == null) {
+			page = new LcdScreenState(api.getDeviceProfile());
+			pages.put(name, page);
+		}
+		update.update(page);
+		if (name.equals(shown)) {
+			api.drawScreen(page);
+		}
+	}
+
+	/**
+	 * Shows a page on the LCD, sending only what differs from the screen shown now.
+	 * @param name	The name of the page
+	 * @return		False if there is no page of that name
+	 */
+	public synchronized boolean show(String name) {
+		LcdScreenState page = pages.get(name);
+		if (page == null) {
+			logger.error("no LCD page named " + name);
+			return false;
+		}
+		api.drawScreen(page);
+		shown = name;
+		return true;
+	}
+
+	/**
+	 * @return The name of the page shown, or null if none has been shown
+	 */
+	public synchronized String getShown() {
+		return shown;
+	}
+
+	/**
+	 * Returns a copy of a page, so it can be read without holding up updates.
+	 * @param name	The name of the page
+	 * @return		A copy of the page, or null if there is no page of that name
+	 */
+	public synchronized LcdScreenState getPage(String name) {
+		LcdScreenState page = pages.get(name);
+		if (page == null) {
+			return null;
+		}
+		LcdScreenState copy = new LcdScreenState(api.getDeviceProfile());
+		copy.copyFrom(page);
+		return copy;
+	}
+
+	/**
+	 * @return The names of the pages, in the order they were created
+	 */
+	public synchronized List<String> getPageNames() {
+		return new ArrayList<String>(pages.keySet());
+	}
+
+	/**
+	 * Forgets a page. The LCD is left as it is if the page is shown.
+	 * @param name	The name of the page
+	 * @return		False if there is no page of that name
+	 */
+	public synchronized boolean remove(String name) {
+		if (name.equals(shown)) {
+			shown = null;
+		}
+		return pages.remove(name) != null;
+	}
+}
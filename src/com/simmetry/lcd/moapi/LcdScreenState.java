@@ -0,0 +1,240 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * The host side record of what the LCD is currently showing: the character grid written
+ * with the text commands and the graphics drawn with the drawing primitives. The
+ * MatrixOrbitalApi keeps one of these up to date as commands are queued, so that the
+ * screen can be put back after the link to the LCD has been lost.
+ */
+public class LcdScreenState {
+
+	// cost in bytes of a SET_CURSOR command, used to decide when a run of text
+	// is cheaper to split than to send the spaces between the words
+	private static final int SET_CURSOR_COST = 4;
+
+	private final char[][] rows;
+	private final LcdBitmap graphics;
+
+	public LcdScreenState() {
+		this(LcdDeviceProfile.GLK19264_7T_1U);
+	}
+
+	/**
+	 * Creates a blank screen the size of the given model of LCD.
+	 */
+	public LcdScreenState(LcdDeviceProfile profile) {
+		rows = new char[profile.getTextRows()][profile.getTextColumns()];
+		graphics = new LcdBitmap(profile.getWidth(), profile.getHeight());
+		clear();
+	}
+
+	/**
+	 * Clears all text and graphics, matching the LCD CLEAR_SCREEN command.
+	 */
+	public void clear() {
+		for (int i = 0; i < rows.length; i++) {
+			Arrays.fill(rows[i], ' ');
+		}
+		graphics.clear();
+	}
+
+	/**
+	 * Records text written at the given column and row (both starting at 1). Characters that
+	 * fall outside the character grid are ignored.
+	 */
+	public void writeText(int column, int row, byte[] text, int offset, int length) {
+		if (row < 1 || row > rows.length) {
+			return;
+		}
+		char[] line = rows[row - 1];
+		for (int i = 0; i < length; i++) {
+			int c = column - 1 + i;
+			if (c >= 0 && c < line.length) {
+				line[c] = (char)(text[offset + i] & 0xFF);
+			}
+		}
+	}
+
+	/**
+	 * Records text written at the given column and row (both starting at 1).
+	 */
+	public void writeText(int column, int row, String text) {
+		byte[] b = new byte[text.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte)text.charAt(i);
+		}
+		writeText(column, row, b, 0, b.length);
+	}
+
+	/**
+	 * @param row	The row, starting at 1
+	 * @return		The text currently recorded for the row, always ROW_LENGTH characters
+	 */
+	public String getRowText(int row) {
+		return new String(rows[row - 1]);
+	}
+
+	/**
+	 * @return The graphics recorded for the screen
+	 */
+	public LcdBitmap getGraphics() {
+		return graphics;
+	}
+
+	/**
+	 * Copies the contents of another screen state into this one.
+	 */
+	public void copyFrom(LcdScreenState other) {
+		for (int i = 0; i < rows.length; i++) {
+			System.arraycopy(other.rows[i], 0, rows[i], 0, rows[i].length);
+		}
+		graphics.copyFrom(other.graphics);
+	}
+
+	/**
+	 * Writes the shortest command sequence this class knows of that redraws the recorded
+	 * screen on an LCD that has just been cleared. Graphics are sent first using the
+	 * LcdGraphicsEncoder, then the text is sent in runs that skip any stretch of blanks
+	 * long enough to pay for another SET_CURSOR.
+	 * @param drawingColor	The drawing color currently set on the LCD
+	 * @param out			The stream to write the commands to
+	 * @return				The drawing color set on the LCD once the commands have run
+	 */
+	public DrawingColor writeRestoreCommands(DrawingColor drawingColor, ByteArrayOutputStream out) {
+		DrawingColor color = LcdGraphicsEncoder.encode(new LcdBitmap(graphics.getWidth(), graphics.getHeight()),
+				graphics, drawingColor, out);
+		writeText(out);
+		return color;
+	}
+
+	/**
+	 * Writes the commands that change the current screen into this one: the graphics are
+	 * encoded with the LcdGraphicsEncoder and each row of text is sent with writeRowChanges().
+	 * @param current		The screen currently on the LCD
+	 * @param drawingColor	The drawing color currently set on the LCD
+	 * @param out			The stream to write the commands to
+	 * @return				The drawing color set on the LCD once the commands have run
+	 */
+	public DrawingColor writeChangeCommands(LcdScreenState current, DrawingColor drawingColor,
+			ByteArrayOutputStream out) {
+		DrawingColor color = LcdGraphicsEncoder.encode(current.graphics, graphics, drawingColor, out);
+		for (int r = 0; r < rows.length; r++) {
+			writeRowChanges(r + 1, current.rows[r], rows[r], out);
+		}
+		return color;
+	}
+
+	/**
+	 * Writes the text commands that change what a row shows into what it should show. Only the
+	 * characters that differ are sent, and differing characters close together are sent as one
+	 * span: a span is only split where the matching characters between them cost more than
+	 * another SET_CURSOR.
+	 * @param row		The row, starting at 1
+	 * @param shown		The characters the row shows, ROW_LENGTH of them
+	 * @param wanted	The characters the row should show, ROW_LENGTH of them
+	 * @param out		The stream to write the commands to
+	 */
+	static void writeRowChanges(int row, char[] shown, char[] wanted, ByteArrayOutputStream out) {
+		int c = 0;
+		while (c < wanted.length) {
+			if (wanted[c] == shown[c]) {
+				c++;
+				continue;
+			}
+			int end = c;
+			int same = 0;
+			for (int probe = c + 1; probe < wanted.length && same < SET_CURSOR_COST; probe++) {
+				if (wanted[probe] != shown[probe]) {
+					end = probe;
+					same = 0;
+				}
+				else {
+					same++;
+				}
+			}
+			out.write(MatrixOrbitalCommands.START_BYTE);
+			out.write(MatrixOrbitalCommands.SET_CURSOR);
+			out.write(c + 1);
+			out.write(row);
+			for (int i = c; i <= end; i++) {
+				out.write((byte)wanted[i]);
+			}
+			c = end + 1;
+		}
+	}
+
+	/**
+	 * @return True if no row has any text
+	 */
+	public boolean isTextBlank() {
+		for (int r = 0; r < rows.length; r++) {
+			for (int c = 0; c < rows[r].length; c++) {
+				if (rows[r][c] != ' ') {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof LcdScreenState)) {
+			return false;
+		}
+		LcdScreenState other = (LcdScreenState)obj;
+		return Arrays.deepEquals(rows, other.rows) && graphics.equals(other.graphics);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.deepHashCode(rows) + graphics.hashCode();
+	}
+
+	private void writeText(ByteArrayOutputStream out) {
+		for (int r = 0; r < rows.length; r++) {
+			char[] line = rows[r];
+			int c = 0;
+			while (c < line.length) {
+				if (line[c] == ' ') {
+					c++;
+					continue;
+				}
+				// extend the run over any gap of blanks that is cheaper to send than a new cursor
+				int end = c;
+				int probe = c + 1;
+				while (probe < line.length) {
+					if (line[probe] != ' ') {
+						end = probe;
+						probe++;
+					}
+					else {
+						int gap = probe;
+						while (gap < line.length && line[gap] == ' ') {
+							gap++;
+						}
+						if (gap == line.length || gap - probe >= SET_CURSOR_COST) {
+							break;
+						}
+						probe = gap;
+					}
+				}
+				out.write(MatrixOrbitalCommands.START_BYTE);
+				out.write(MatrixOrbitalCommands.SET_CURSOR);
+				out.write(c + 1);
+				out.write(r + 1);
+				for (int i = c; i <= end; i++) {
+					out.write((byte)line[i]);
+				}
+				c = end + 1;
+			}
+		}
+	}
+}
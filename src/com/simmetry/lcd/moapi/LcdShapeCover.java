@@ -0,0 +1,189 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+/**
+ * Covers the pixels that change to one color with few solid rectangles and horizontal or
+ * vertical lines, so that a typical screen change becomes a handful of 6 and 7 byte commands.
+ * A shape may also cover pixels that are already the target color, which lets shapes grow over
+ * unchanged parts of a figure. The work is done on the 64 bit row words of LcdBitmap: runs are
+ * found with bit scans and covered pixels are cleared a word at a time, so covering a whole
+ * 192x64 screen takes well under a millisecond.
+ *
+ * Each shape starts at the first uncovered changed pixel in scan order. Two shapes are tried
+ * there: one grown right along the row and then down, one grown down the column and then right.
+ * The one that covers more of the pixels still to be changed is kept.
+ */
+public class LcdShapeCover {
+
+	private final int wordsPerRow;
+	private final int x0;
+	private final int y0;
+	private final int x1;
+	private final int y1;
+	// pixels of the area that are the target color, which any shape may cover
+	private final long[] allowed;
+	// changed pixels of the target color that no shape covers yet
+	private final long[] pending;
+
+	private int[] shapes = new int[32];
+	private int count = 0;
+
+	/**
+	 * Returns the shapes that cover the pixels in the given area (inclusive) that change to
+	 * the given color. No shape reaches outside the area.
+	 * @param target	The graphics wanted on the LCD
+	 * @param changed	The pixels that differ between the LCD and the target, see LcdBitmap.difference()
+	 * @param black		True to cover the pixels that change to BLACK, false for WHITE
+	 * @return			The shapes, four values each: x0, y0, x1, y1 (inclusive)
+	 */
+	public static int[] cover(LcdBitmap target, LcdBitmap changed, boolean black,
+			int x0, int y0, int x1, int y1) {
+		LcdShapeCover cover = new LcdShapeCover(target, changed, black, x0, y0, x1, y1);
+		cover.run();
+		int[] result = new int[cover.count * 4];
+		System.arraycopy(cover.shapes, 0, result, 0, result.length);
+		return result;
+	}
+
+	private LcdShapeCover(LcdBitmap target, LcdBitmap changed, boolean black,
+			int x0, int y0, int x1, int y1) {
+		this.wordsPerRow = target.getWordsPerRow();
+		this.x0 = Math.max(0, x0);
+		this.y0 = Math.max(0, y0);
+		this.x1 = Math.min(target.getWidth() - 1, x1);
+		this.y1 = Math.min(target.getHeight() - 1, y1);
+		this.allowed = new long[wordsPerRow * target.getHeight()];
+		this.pending = new long[allowed.length];
+
+		for (int y = this.y0; y <= this.y1; y++) {
+			for (int w = this.x0 >>> 6; w <= this.x1 >>> 6; w++) {
+				long span = LcdBitmap.spanMask(w, this.x0, this.x1);
+				long bits = target.getWord(y, w);
+				long color = (black ? bits : ~bits) & span;
+				allowed[y * wordsPerRow + w] = color;
+				pending[y * wordsPerRow + w] = color & changed.getWord(y, w);
+			}
+		}
+	}
+
+	private void run() {
+		if (x0 > x1 || y0 > y1) {
+			return;
+		}
+		for (int y = y0; y <= y1; y++) {
+			int row = y * wordsPerRow;
+			for (int w = x0 >>> 6; w <= x1 >>> 6; w++) {
+				while (pending[row + w] != 0L) {
+					int x = (w << 6) + Long.numberOfTrailingZeros(pending[row + w]);
+
+					// grown along the row first
+					int rowRight = runEnd(y, x);
+					int rowBottom = y;
+					while (rowBottom < y1 && isAllowed(rowBottom + 1, x, rowRight)) {
+						rowBottom++;
+					}
+
+					// grown down the column first
+					int columnBottom = y;
+					while (columnBottom < y1 && isAllowed(columnBottom + 1, x, x)) {
+						columnBottom++;
+					}
+					int columnRight = x;
+					while (columnRight < x1 && isColumnAllowed(columnRight + 1, y, columnBottom)) {
+						columnRight++;
+					}
+
+					if (countPending(x, y, columnRight, columnBottom) > countPending(x, y, rowRight, rowBottom)) {
+						add(x, y, columnRight, columnBottom);
+					}
+					else {
+						add(x, y, rowRight, rowBottom);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records a shape and clears the pixels it covers from the pending pixels.
+	 */
+	private void add(int left, int top, int right, int bottom) {
+		if (count * 4 == shapes.length) {
+			int[] grown = new int[shapes.length * 2];
+			System.arraycopy(shapes, 0, grown, 0, shapes.length);
+			shapes = grown;
+		}
+		shapes[count * 4] = left;
+		shapes[count * 4 + 1] = top;
+		shapes[count * 4 + 2] = right;
+		shapes[count * 4 + 3] = bottom;
+		count++;
+
+		for (int y = top; y <= bottom; y++) {
+			for (int w = left >>> 6; w <= right >>> 6; w++) {
+				pending[y * wordsPerRow + w] &= ~LcdBitmap.spanMask(w, left, right);
+			}
+		}
+	}
+
+	/**
+	 * @return The last x of the run of allowed pixels on row y that starts at x
+	 */
+	private int runEnd(int y, int x) {
+		int row = y * wordsPerRow;
+		int w = x >>> 6;
+		long gaps = ~allowed[row + w] & (-1L << (x & 63));
+		while (gaps == 0L && w + 1 < wordsPerRow) {
+			w++;
+			gaps = ~allowed[row + w];
+		}
+		if (gaps == 0L) {
+			return x1;
+		}
+		return Math.min(x1, (w << 6) + Long.numberOfTrailingZeros(gaps) - 1);
+	}
+
+	/**
+	 * @return True if every pixel of row y from left to right (inclusive) is allowed
+	 */
+	private boolean isAllowed(int y, int left, int right) {
+		int row = y * wordsPerRow;
+		for (int w = left >>> 6; w <= right >>> 6; w++) {
+			long span = LcdBitmap.spanMask(w, left, right);
+			if ((allowed[row + w] & span) != span) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if every pixel of column x from top to bottom (inclusive) is allowed
+	 */
+	private boolean isColumnAllowed(int x, int top, int bottom) {
+		long bit = 1L << (x & 63);
+		int w = x >>> 6;
+		for (int y = top; y <= bottom; y++) {
+			if ((allowed[y * wordsPerRow + w] & bit) == 0L) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The number of pending pixels in the rectangle (inclusive)
+	 */
+	private int countPending(int left, int top, int right, int bottom) {
+		int total = 0;
+		for (int y = top; y <= bottom; y++) {
+			for (int w = left >>> 6; w <= right >>> 6; w++) {
+				total += Long.bitCount(pending[y * wordsPerRow + w] & LcdBitmap.spanMask(w, left, right));
+			}
+		}
+		return total;
+	}
+}
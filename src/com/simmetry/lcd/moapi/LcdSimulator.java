@@ -0,0 +1,793 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An in-process stand-in for a Matrix Orbital LCD, for running the MatrixOrbitalApi without
+ * hardware: connect the API to getInputStream() and getOutputStream() with
+ * MatrixOrbitalApi.connect(InputStream, OutputStream).
+ *
+ * The bytes written to it are decoded as the LCD decodes them. Text goes into the character
+ * grid at the cursor and the drawing commands into the graphics, kept apart as the API's own
+ * LcdScreenState keeps them, so the two can be compared. The backlight, the general purpose
+ * outputs and the flow control settings are kept, and the queries are answered. Files uploaded
+ * are kept in a filesystem of the size set with setFilesystemFree(), so saved bitmaps can be
+ * drawn and fonts selected; an upload that does not fit is refused. Commands the
+ * model does not understand and arguments off the screen are counted as protocol errors.
+ *
+ * Each byte received takes ten bits at the baud rate in effect, which gives the time the
+ * traffic would take on the wire. setHolding() stops the LCD from taking bytes out of its
+ * receive buffer, so flow control and overruns can be seen: while the buffer has less room
+ * than the FLOW_CONTROL_ON threshold every byte received is answered with
+ * FLOW_CONTROL_ALMOST_FULL, as the hardware does, and bytes that do not fit are lost.
+ */
+public class LcdSimulator {
+
+	private final LcdDeviceProfile profile;
+	private final LcdScreenState screen;
+	// bytes the LCD sends back to the host
+	private final LcdByteQueue toHost = new LcdByteQueue(64);
+	// receive buffer of the LCD, only used while holding
+	private final LcdByteQueue received;
+	private final byte[] receivedByte = new byte[1];
+	private final byte[] sentByte = new byte[1];
+	private final InputStream inputStream = new HostInputStream();
+	private final OutputStream outputStream = new HostOutputStream();
+	private boolean closed = false;
+	private boolean holding = false;
+
+	// decoder state: the command being collected and the bytes it still needs
+	private boolean inCommand = false;
+	private byte command;
+	private final byte[] arguments;
+	private int argumentCount = 0;
+	private int argumentsNeeded = 0;
+
+	// display state
+	private int cursorColumn = 1;
+	private int cursorRow = 1;
+	private boolean black = true;
+	private int lineX = 0;
+	private int lineY = 0;
+	private int brightness = 0xFF;
+	private int contrast = 0x80;
+	private final boolean[] outputs = new boolean[7];
+	private boolean flowControl = false;
+	private int flowFull = 0;
+	private int flowEmpty = 0;
+	private boolean stopSent = false;
+	private int baud = 19200;
+
+	// replies to the queries
+	private int version = 0x19;
+	private int moduleType;
+	private long filesystemFree = 16384;
+
+	// the filesystem, by file type and reference number, and the font selected
+	private final Map<Integer, byte[]> files = new HashMap<Integer, byte[]>();
+	private int currentFont = 1;
+
+	// counters
+	private long bytesReceived = 0;
+	private long commandsReceived = 0;
+	private long textBytes = 0;
+	private long protocolErrors = 0;
+	private long overruns = 0;
+	private long wireNanos = 0;
+
+	/**
+	 * Creates a stand-in for the GLK19264-7T-1U.
+	 */
+	public LcdSimulator() {
+		this(LcdDeviceProfile.GLK19264_7T_1U);
+	}
+
+	/**
+	 * @param profile	The model of LCD to stand in for
+	 */
+	public LcdSimulator(LcdDeviceProfile profile) {
+		this.profile = profile;
+		this.screen = new LcdScreenState(profile);
+		this.received = new LcdByteQueue(profile.getReceiveBufferSize());
+		this.arguments = new byte[3 + 0xFFFF];
+		this.moduleType = Math.max(0, profile.getModuleType());
+	}
+
+	/**
+	 * @return The stream of bytes the LCD sends to the host
+	 */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	/**
+	 * @return The stream the host writes commands to
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	public LcdDeviceProfile getDeviceProfile() {
+		return profile;
+	}
+
+	/**
+	 * @return The text and graphics on the screen; the caller must not change it
+	 */
+	public synchronized LcdScreenState getScreen() {
+		return screen;
+	}
+
+	/**
+	 * @param row	The row, starting at 1
+	 * @return		The text on the row
+	 */
+	public synchronized String getRowText(int row) {
+		return screen.getRowText(row);
+	}
+
+	/**
+	 * @return A copy of the graphics on the screen
+	 */
+	public synchronized LcdBitmap getGraphics() {
+		return new LcdBitmap(screen.getGraphics());
+	}
+
+	/**
+	 * @return The backlight brightness, 0-255
+	 */
+	public synchronized int getBrightness() {
+		return brightness;
+	}
+
+	/**
+	 * @return The contrast, 0-255
+	 */
+	public synchronized int getContrast() {
+		return contrast;
+	}
+
+	/**
+	 * @param output	The general purpose output, 1-6
+	 * @return			True if the output is on
+	 */
+	public synchronized boolean isOutputOn(int output) {
+		return outputs[output];
+	}
+
+	/**
+	 * Reads the color of an LED from its two outputs, as listed in MatrixOrbitalCommands.
+	 * @param led	ONE, TWO or THREE
+	 * @return		The color, or NULL if the LED is off
+	 */
+	public synchronized LedColor getLedColor(LedNumber led) {
+		int second;
+		switch (led) {
+			case ONE:
+				second = MatrixOrbitalCommands.GP_OUTPUT_ONE;
+				break;
+			case TWO:
+				second = MatrixOrbitalCommands.GP_OUTPUT_THREE;
+				break;
+			case THREE:
+				second = MatrixOrbitalCommands.GP_OUTPUT_FIVE;
+				break;
+			default:
+				throw new IllegalArgumentException("not a single LED: " + led);
+		}
+		boolean first = outputs[second + 1];
+		if (first && outputs[second]) {
+			return LedColor.NULL;
+		}
+		if (first) {
+			return LedColor.RED;
+		}
+		return outputs[second] ? LedColor.GREEN : LedColor.YELLOW;
+	}
+
+	public synchronized DrawingColor getDrawingColor() {
+		return black ? DrawingColor.BLACK : DrawingColor.WHITE;
+	}
+
+	public synchronized boolean isFlowControlOn() {
+		return flowControl;
+	}
+
+	/**
+	 * @return The free bytes at which the LCD asks the host to stop, as set by FLOW_CONTROL_ON
+	 */
+	public synchronized int getFlowControlFull() {
+		return flowFull;
+	}
+
+	/**
+	 * @return The free bytes at which the LCD lets the host send again, as set by FLOW_CONTROL_ON
+	 */
+	public synchronized int getFlowControlEmpty() {
+		return flowEmpty;
+	}
+
+	/**
+	 * @return The baud rate last set with SET_BAUD_RATE, 19200 until then
+	 */
+	public synchronized int getBaud() {
+		return baud;
+	}
+
+	/**
+	 * Sets the reply to READ_VERSION.
+	 */
+	public synchronized void setVersion(int version) {
+		this.version = version;
+	}
+
+	/**
+	 * Sets the reply to READ_MODULE_TYPE, by default the module type of the profile.
+	 */
+	public synchronized void setModuleType(int moduleType) {
+		this.moduleType = moduleType;
+	}
+
+	/**
+	 * Sets the free space of the filesystem, the reply to GET_FILESYSTEM_SPACE. Uploads take
+	 * their size from it and deletes give it back.
+	 */
+	public synchronized void setFilesystemFree(long bytes) {
+		this.filesystemFree = bytes;
+	}
+
+	/**
+	 * @return The free space of the filesystem in bytes
+	 */
+	public synchronized long getFilesystemFree() {
+		return filesystemFree;
+	}
+
+	/**
+	 * @param type	FILE_TYPE_FONT or FILE_TYPE_BITMAP of MatrixOrbitalCommands
+	 * @return		True if a file of the type is saved under the reference number
+	 */
+	public synchronized boolean hasFile(byte type, int refId) {
+		return files.containsKey(fileKey(type, refId));
+	}
+
+	/**
+	 * @return The number of files saved
+	 */
+	public synchronized int getFileCount() {
+		return files.size();
+	}
+
+	/**
+	 * @return The reference number of the font selected, 1 for the font the LCD starts with
+	 */
+	public synchronized int getCurrentFont() {
+		return currentFont;
+	}
+
+	/**
+	 * Sends the code of a key press to the host.
+	 * @param key	The key code, one of the KEYPAD_ values of MatrixOrbitalCommands
+	 */
+	public synchronized void pressKey(byte key) {
+		send(key);
+	}
+
+	/**
+	 * Stops or restarts the LCD taking bytes out of its receive buffer. When it restarts the
+	 * buffer is emptied and, if the host was asked to stop, FLOW_CONTROL_ALMOST_EMPTY is sent.
+	 * @param holding	True to let received bytes pile up in the buffer
+	 */
+	public synchronized void setHolding(boolean holding) {
+		this.holding = holding;
+		if (!holding) {
+			while (received.poll(receivedByte, 0, 1) > 0) {
+				process(receivedByte[0]);
+			}
+			if (stopSent) {
+				stopSent = false;
+				send(MatrixOrbitalCommands.FLOW_CONTROL_ALMOST_EMPTY);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of bytes received from the host
+	 */
+	public synchronized long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * @return The number of commands received from the host, not counting text
+	 */
+	public synchronized long getCommandsReceived() {
+		return commandsReceived;
+	}
+
+	/**
+	 * @return The number of characters of text received from the host
+	 */
+	public synchronized long getTextBytes() {
+		return textBytes;
+	}
+
+	/**
+	 * @return The number of unknown commands and arguments off the screen received
+	 */
+	public synchronized long getProtocolErrors() {
+		return protocolErrors;
+	}
+
+	/**
+	 * @return The number of bytes lost because the receive buffer was full
+	 */
+	public synchronized long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * @return The time in nanoseconds the bytes received would take on a serial line at the
+	 * 		   baud rates in effect as they were sent, ten bits to a byte
+	 */
+	public synchronized long getWireNanos() {
+		return wireNanos;
+	}
+
+	/**
+	 * Clears the counters, leaving the display as it is.
+	 */
+	public synchronized void resetCounters() {
+		bytesReceived = 0;
+		commandsReceived = 0;
+		textBytes = 0;
+		protocolErrors = 0;
+		overruns = 0;
+		wireNanos = 0;
+	}
+
+	private synchronized void receive(byte b) throws IOException {
+		if (closed) {
+			throw new IOException("LCD simulator closed");
+		}
+		bytesReceived++;
+		wireNanos += 10000000000L / baud;
+		if (!holding) {
+			process(b);
+			return;
+		}
+		int free = profile.getReceiveBufferSize() - received.size();
+		if (free == 0) {
+			overruns++;
+			return;
+		}
+		receivedByte[0] = b;
+		received.put(receivedByte, 0, 1);
+		if (flowControl && free - 1 < flowFull) {
+			stopSent = true;
+			send(MatrixOrbitalCommands.FLOW_CONTROL_ALMOST_FULL);
+		}
+	}
+
+	/**
+	 * Decodes one byte taken from the receive buffer.
+	 */
+	private void process(byte b) {
+		if (!inCommand) {
+			if (b == MatrixOrbitalCommands.START_BYTE) {
+				inCommand = true;
+				argumentsNeeded = -1;
+			}
+			else {
+				writeCharacter(b);
+			}
+			return;
+		}
+		if (argumentsNeeded < 0) {
+			command = b;
+			argumentCount = 0;
+			argumentsNeeded = argumentLength(b);
+			if (argumentsNeeded < 0) {
+				protocolErrors++;
+				argumentsNeeded = 0;
+			}
+		}
+		else {
+			arguments[argumentCount++] = b;
+			if (command == MatrixOrbitalCommands.DRAW_BITMAP && argumentCount == 4) {
+				argumentsNeeded = 4 + ((arguments[2] & 0xFF) * (arguments[3] & 0xFF) + 7) / 8;
+			}
+			else if ((command == MatrixOrbitalCommands.UPLOAD_BITMAP || command == MatrixOrbitalCommands.UPLOAD_FONT)
+					&& argumentCount == 3) {
+				argumentsNeeded = 3 + ((arguments[1] & 0xFF) | ((arguments[2] & 0xFF) << 8));
+			}
+		}
+		if (argumentCount == argumentsNeeded) {
+			inCommand = false;
+			commandsReceived++;
+			if (!profile.supports(command)) {
+				protocolErrors++;
+			}
+			execute();
+		}
+	}
+
+	/**
+	 * @return The number of argument bytes of the command, the first four for DRAW_BITMAP and
+	 * 		   the first three for an upload, or -1 for a command this class does not know
+	 */
+	private static int argumentLength(byte command) {
+		switch (command) {
+			case MatrixOrbitalCommands.WARM_RESET:
+			case MatrixOrbitalCommands.CLEAR_SCREEN:
+			case MatrixOrbitalCommands.RESET_CURSOR:
+			case MatrixOrbitalCommands.FLOW_CONTROL_OFF:
+			case MatrixOrbitalCommands.READ_VERSION:
+			case MatrixOrbitalCommands.READ_MODULE_TYPE:
+			case MatrixOrbitalCommands.GET_FILESYSTEM_SPACE:
+				return 0;
+			case MatrixOrbitalCommands.SET_BAUD_RATE:
+			case MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF:
+			case MatrixOrbitalCommands.GP_OUTPUT_PWR_ON:
+			case MatrixOrbitalCommands.SAVE_BACKLIGHT_BRIGHTNESS:
+			case MatrixOrbitalCommands.SET_BACKLIGHT_BRIGHTNESS:
+			case MatrixOrbitalCommands.SAVE_BACKLIGHT_CONTRAST:
+			case MatrixOrbitalCommands.SET_BACKLIGHT_CONTRAST:
+			case MatrixOrbitalCommands.SET_DRAWING_COLOR:
+			case MatrixOrbitalCommands.SET_CURRENT_FONT:
+				return 1;
+			case MatrixOrbitalCommands.SET_CURSOR:
+			case MatrixOrbitalCommands.FLOW_CONTROL_ON:
+			case MatrixOrbitalCommands.SAVE_DATA_LOCK:
+			case MatrixOrbitalCommands.DRAW_PIXEL:
+			case MatrixOrbitalCommands.CONTINUE_LINE:
+			case MatrixOrbitalCommands.DELETE_FILE:
+				return 2;
+			case MatrixOrbitalCommands.UPLOAD_FONT:
+			case MatrixOrbitalCommands.UPLOAD_BITMAP:
+			case MatrixOrbitalCommands.DRAW_SAVED_BITMAP:
+				return 3;
+			case MatrixOrbitalCommands.DRAW_LINE:
+			case MatrixOrbitalCommands.DRAW_BITMAP:
+				return 4;
+			case MatrixOrbitalCommands.DRAW_RECTANGLE:
+			case MatrixOrbitalCommands.DRAW_SOLID_RECTANGLE:
+				return 5;
+			default:
+				return -1;
+		}
+	}
+
+	private int argument(int i) {
+		return arguments[i] & 0xFF;
+	}
+
+	private void execute() {
+		switch (command) {
+			case MatrixOrbitalCommands.WARM_RESET:
+				screen.clear();
+				cursorColumn = 1;
+				cursorRow = 1;
+				black = true;
+				flowControl = false;
+				break;
+			case MatrixOrbitalCommands.CLEAR_SCREEN:
+				screen.clear();
+				cursorColumn = 1;
+				cursorRow = 1;
+				break;
+			case MatrixOrbitalCommands.RESET_CURSOR:
+				cursorColumn = 1;
+				cursorRow = 1;
+				break;
+			case MatrixOrbitalCommands.SET_CURSOR:
+				cursorColumn = argument(0);
+				cursorRow = argument(1);
+				if (cursorColumn < 1 || cursorColumn > profile.getTextColumns() ||
+					cursorRow < 1 || cursorRow > profile.getTextRows()) {
+					protocolErrors++;
+				}
+				break;
+			case MatrixOrbitalCommands.SET_BAUD_RATE:
+				baud = baudOf(arguments[0]);
+				break;
+			case MatrixOrbitalCommands.FLOW_CONTROL_ON:
+				flowControl = true;
+				flowFull = argument(0);
+				flowEmpty = argument(1);
+				break;
+			case MatrixOrbitalCommands.FLOW_CONTROL_OFF:
+				flowControl = false;
+				break;
+			case MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF:
+			case MatrixOrbitalCommands.GP_OUTPUT_PWR_ON:
+				if (argument(0) < 1 || argument(0) > 6) {
+					protocolErrors++;
+				}
+				else {
+					outputs[argument(0)] = command == MatrixOrbitalCommands.GP_OUTPUT_PWR_ON;
+				}
+				break;
+			case MatrixOrbitalCommands.SAVE_BACKLIGHT_BRIGHTNESS:
+			case MatrixOrbitalCommands.SET_BACKLIGHT_BRIGHTNESS:
+				brightness = argument(0);
+				break;
+			case MatrixOrbitalCommands.SAVE_BACKLIGHT_CONTRAST:
+			case MatrixOrbitalCommands.SET_BACKLIGHT_CONTRAST:
+				contrast = argument(0);
+				break;
+			case MatrixOrbitalCommands.SET_DRAWING_COLOR:
+				black = argument(0) != 0;
+				break;
+			case MatrixOrbitalCommands.DRAW_PIXEL:
+				checkOnScreen(argument(0), argument(1));
+				screen.getGraphics().set(argument(0), argument(1), black);
+				break;
+			case MatrixOrbitalCommands.DRAW_LINE:
+				checkOnScreen(argument(0), argument(1));
+				checkOnScreen(argument(2), argument(3));
+				screen.getGraphics().drawLine(argument(0), argument(1), argument(2), argument(3), black);
+				lineX = argument(2);
+				lineY = argument(3);
+				break;
+			case MatrixOrbitalCommands.CONTINUE_LINE:
+				checkOnScreen(argument(0), argument(1));
+				screen.getGraphics().drawLine(lineX, lineY, argument(0), argument(1), black);
+				lineX = argument(0);
+				lineY = argument(1);
+				break;
+			case MatrixOrbitalCommands.DRAW_RECTANGLE:
+				checkOnScreen(argument(1), argument(2));
+				checkOnScreen(argument(3), argument(4));
+				screen.getGraphics().drawRectangle(argument(1), argument(2), argument(3), argument(4), argument(0) != 0);
+				break;
+			case MatrixOrbitalCommands.DRAW_SOLID_RECTANGLE:
+				checkOnScreen(argument(1), argument(2));
+				checkOnScreen(argument(3), argument(4));
+				screen.getGraphics().fillRectangle(argument(1), argument(2), argument(3), argument(4), argument(0) != 0);
+				break;
+			case MatrixOrbitalCommands.DRAW_BITMAP:
+				drawBitmap();
+				break;
+			case MatrixOrbitalCommands.UPLOAD_FONT:
+				saveFile(MatrixOrbitalCommands.FILE_TYPE_FONT);
+				break;
+			case MatrixOrbitalCommands.UPLOAD_BITMAP:
+				saveFile(MatrixOrbitalCommands.FILE_TYPE_BITMAP);
+				break;
+			case MatrixOrbitalCommands.DRAW_SAVED_BITMAP:
+				drawSavedBitmap();
+				break;
+			case MatrixOrbitalCommands.SET_CURRENT_FONT:
+				if (argument(0) != 1 && !files.containsKey(fileKey(MatrixOrbitalCommands.FILE_TYPE_FONT, argument(0)))) {
+					protocolErrors++;
+				}
+				else {
+					currentFont = argument(0);
+				}
+				break;
+			case MatrixOrbitalCommands.DELETE_FILE:
+				byte[] deleted = files.remove(fileKey(arguments[0], argument(1)));
+				if (deleted == null) {
+					protocolErrors++;
+				}
+				else {
+					filesystemFree += deleted.length;
+				}
+				break;
+			case MatrixOrbitalCommands.READ_VERSION:
+				send((byte)version);
+				break;
+			case MatrixOrbitalCommands.READ_MODULE_TYPE:
+				send((byte)moduleType);
+				break;
+			case MatrixOrbitalCommands.GET_FILESYSTEM_SPACE:
+				for (int i = 0; i < 4; i++) {
+					send((byte)(filesystemFree >>> (8 * i)));
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Draws the pixels of a DRAW_BITMAP, packed 8 to a byte, most significant bit first, row
+	 * after row; a set bit is BLACK and a clear bit WHITE.
+	 */
+	private void drawBitmap() {
+		int x0 = argument(0);
+		int y0 = argument(1);
+		int width = argument(2);
+		int height = argument(3);
+		checkOnScreen(x0, y0);
+		checkOnScreen(x0 + width - 1, y0 + height - 1);
+		LcdBitmap graphics = screen.getGraphics();
+		for (int i = 0; i < width * height; i++) {
+			boolean set = (arguments[4 + i / 8] & (0x80 >>> (i % 8))) != 0;
+			graphics.set(x0 + i % width, y0 + i / width, set);
+		}
+	}
+
+	/**
+	 * Saves an uploaded file, replacing the file of the same type and reference number. A file
+	 * too big for the free space is refused and counted as a protocol error.
+	 */
+	private void saveFile(byte type) {
+		Integer key = fileKey(type, argument(0));
+		int size = argumentCount - 3;
+		byte[] old = files.remove(key);
+		if (old != null) {
+			filesystemFree += old.length;
+		}
+		if (argument(0) < 1 || size > filesystemFree) {
+			protocolErrors++;
+			return;
+		}
+		byte[] file = new byte[size];
+		System.arraycopy(arguments, 3, file, 0, size);
+		files.put(key, file);
+		filesystemFree -= size;
+	}
+
+	/**
+	 * Draws a bitmap file: its width, its height and the pixels packed as for DRAW_BITMAP.
+	 */
+	private void drawSavedBitmap() {
+		byte[] file = files.get(fileKey(MatrixOrbitalCommands.FILE_TYPE_BITMAP, argument(0)));
+		if (file == null) {
+			protocolErrors++;
+			return;
+		}
+		int x0 = argument(1);
+		int y0 = argument(2);
+		int width = file[0] & 0xFF;
+		int height = file[1] & 0xFF;
+		checkOnScreen(x0, y0);
+		checkOnScreen(x0 + width - 1, y0 + height - 1);
+		LcdBitmap graphics = screen.getGraphics();
+		for (int i = 0; i < width * height; i++) {
+			boolean set = (file[2 + i / 8] & (0x80 >>> (i % 8))) != 0;
+			graphics.set(x0 + i % width, y0 + i / width, set);
+		}
+	}
+
+	private static Integer fileKey(byte type, int refId) {
+		return Integer.valueOf(((type & 0xFF) << 8) | refId);
+	}
+
+	/**
+	 * Writes a character at the cursor and moves the cursor on, wrapping at the end of the
+	 * row and at the bottom of the screen.
+	 */
+	private void writeCharacter(byte b) {
+		textBytes++;
+		receivedByte[0] = b;
+		screen.writeText(cursorColumn, cursorRow, receivedByte, 0, 1);
+		cursorColumn++;
+		if (cursorColumn > profile.getTextColumns()) {
+			cursorColumn = 1;
+			cursorRow = cursorRow % profile.getTextRows() + 1;
+		}
+	}
+
+	private void checkOnScreen(int x, int y) {
+		if (!screen.getGraphics().contains(x, y)) {
+			protocolErrors++;
+		}
+	}
+
+	private void send(byte b) {
+		sentByte[0] = b;
+		toHost.put(sentByte, 0, 1);
+		notifyAll();
+	}
+
+	/**
+	 * @return The baud rate of a BAUD_ value of MatrixOrbitalCommands
+	 */
+	private static int baudOf(byte speed) {
+		switch (speed) {
+			case MatrixOrbitalCommands.BAUD_9600:
+				return 9600;
+			case MatrixOrbitalCommands.BAUD_14400:
+				return 14400;
+			case MatrixOrbitalCommands.BAUD_28800:
+				return 28800;
+			case MatrixOrbitalCommands.BAUD_38400:
+				return 38400;
+			case MatrixOrbitalCommands.BAUD_57600:
+				return 57600;
+			case MatrixOrbitalCommands.BAUD_76800:
+				return 76800;
+			case MatrixOrbitalCommands.BAUD_115200:
+				return 115200;
+			default:
+				return 19200;
+		}
+	}
+
+	private synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * The bytes the LCD sends to the host. read() waits for a byte, available() does not.
+	 */
+	private class HostInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			synchronized (LcdSimulator.this) {
+				while (toHost.isEmpty()) {
+					if (closed) {
+						return -1;
+					}
+					try {
+						LcdSimulator.this.wait();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("interrupted");
+					}
+				}
+				return toHost.poll();
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int first = read();
+			if (first < 0) {
+				return -1;
+			}
+			b[off] = (byte)first;
+			return 1 + toHost.poll(b, off + 1, len - 1);
+		}
+
+		@Override
+		public int available() {
+			return toHost.size();
+		}
+
+		@Override
+		public void close() {
+			LcdSimulator.this.close();
+		}
+	}
+
+	/**
+	 * The bytes the host writes to the LCD.
+	 */
+	private class HostOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			receive((byte)b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (LcdSimulator.this) {
+				for (int i = off; i < off + len; i++) {
+					receive(b[i]);
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			LcdSimulator.this.close();
+		}
+	}
+}
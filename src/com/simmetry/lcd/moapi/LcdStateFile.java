@@ -0,0 +1,231 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The state recorded by a MatrixOrbitalApi, kept in a memory-mapped file so it outlives the
+ * process: see MatrixOrbitalApi.restoreState(). Saving copies the state into the mapped pages,
+ * which the operating system writes to the file even if the process is killed.
+ *
+ * The header describes the geometry of the screen and whether the state is settled, that is
+ * saved with no commands left to send, so it is what the LCD shows. The API clears the settled
+ * flag as soon as it queues a command and sets it again with the next save. A CRC over the
+ * state catches a file left half written by a crash of the machine.
+ */
+class LcdStateFile {
+
+	private static final int MAGIC = 0x4C434453; // "LCDS"
+	private static final int FORMAT = 1;
+
+	// header
+	private static final int MAGIC_AT = 0;
+	private static final int FORMAT_AT = 4;
+	private static final int WIDTH_AT = 8;
+	private static final int HEIGHT_AT = 12;
+	private static final int ROWS_AT = 16;
+	private static final int COLUMNS_AT = 20;
+	private static final int SETTLED_AT = 24;
+	private static final int CRC_AT = 28;
+	// the replies to READ_VERSION and READ_MODULE_TYPE when last probed, -1 if never
+	private static final int VERSION_AT = 32;
+	private static final int MODULE_TYPE_AT = 36;
+
+	// state, covered by the CRC
+	private static final int STATE_AT = 40;
+	private static final int DRAWING_COLOR_AT = 40;
+	private static final int BRIGHTNESS_AT = 44;
+	private static final int CONTRAST_AT = 48;
+	private static final int LED_COLORS_AT = 52;
+	private static final int LED_POWERS_AT = 55;
+	private static final int TEXT_AT = 64;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+	private final int width;
+	private final int height;
+	private final int rows;
+	private final int columns;
+	private final int graphicsAt;
+	private final boolean valid;
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Maps the file, creating it if need be. A file that is not a state file for a screen of
+	 * the profile's geometry is started again, unsettled.
+	 */
+	LcdStateFile(File path, LcdDeviceProfile profile) throws IOException {
+		this.width = profile.getWidth();
+		this.height = profile.getHeight();
+		this.rows = profile.getTextRows();
+		this.columns = profile.getTextColumns();
+		this.graphicsAt = TEXT_AT + rows * columns;
+		int size = graphicsAt + height * ((width + 63) >>> 6) * 8;
+
+		file = new RandomAccessFile(path, "rw");
+		boolean sized = file.length() == size;
+		try {
+			map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		catch (IOException ioeError) {
+			file.close();
+			throw ioeError;
+		}
+
+		valid = sized && map.getInt(MAGIC_AT) == MAGIC && map.getInt(FORMAT_AT) == FORMAT &&
+				map.getInt(WIDTH_AT) == width && map.getInt(HEIGHT_AT) == height &&
+				map.getInt(ROWS_AT) == rows && map.getInt(COLUMNS_AT) == columns &&
+				map.getInt(CRC_AT) == checksum();
+		if (!valid) {
+			map.put(SETTLED_AT, (byte)0);
+			map.putInt(MAGIC_AT, MAGIC);
+			map.putInt(FORMAT_AT, FORMAT);
+			map.putInt(WIDTH_AT, width);
+			map.putInt(HEIGHT_AT, height);
+			map.putInt(ROWS_AT, rows);
+			map.putInt(COLUMNS_AT, columns);
+			map.putInt(VERSION_AT, -1);
+			map.putInt(MODULE_TYPE_AT, -1);
+		}
+	}
+
+	/**
+	 * @return True if the file held a state, saved when nothing was left to send, when it was opened
+	 */
+	boolean isSettled() {
+		return valid && map.get(SETTLED_AT) == 1;
+	}
+
+	/**
+	 * @return True if the replies match those recorded with setProbe()
+	 */
+	boolean matchesProbe(int version, int moduleType) {
+		return version >= 0 && map.getInt(VERSION_AT) == version && map.getInt(MODULE_TYPE_AT) == moduleType;
+	}
+
+	void setProbe(int version, int moduleType) {
+		map.putInt(VERSION_AT, version);
+		map.putInt(MODULE_TYPE_AT, moduleType);
+	}
+
+	/**
+	 * Marks the state as no longer what the LCD shows, until the next save.
+	 */
+	void markChanging() {
+		map.put(SETTLED_AT, (byte)0);
+	}
+
+	/**
+	 * Saves the state and marks it settled. A screen of another geometry, after the device
+	 * profile was changed, is not saved.
+	 * @param ledColors	The colors of LEDs one to three
+	 * @param ledPowers	The power of LEDs one to three
+	 */
+	void save(LcdScreenState screen, DrawingColor drawingColor, int brightness, int contrast,
+			LedColor[] ledColors, LedPower[] ledPowers) {
+		LcdBitmap graphics = screen.getGraphics();
+		if (graphics.getWidth() != width || graphics.getHeight() != height) {
+			return;
+		}
+		map.put(SETTLED_AT, (byte)0);
+		map.putInt(DRAWING_COLOR_AT, drawingColor.ordinal());
+		map.putInt(BRIGHTNESS_AT, brightness);
+		map.putInt(CONTRAST_AT, contrast);
+		for (int i = 0; i < 3; i++) {
+			map.put(LED_COLORS_AT + i, (byte)ledColors[i].ordinal());
+			map.put(LED_POWERS_AT + i, (byte)ledPowers[i].ordinal());
+		}
+		for (int r = 0; r < rows; r++) {
+			String text = screen.getRowText(r + 1);
+			for (int c = 0; c < columns; c++) {
+				map.put(TEXT_AT + r * columns + c, (byte)text.charAt(c));
+			}
+		}
+		int at = graphicsAt;
+		for (int y = 0; y < height; y++) {
+			for (int w = 0; w < graphics.getWordsPerRow(); w++) {
+				map.putLong(at, graphics.getWord(y, w));
+				at += 8;
+			}
+		}
+		map.putInt(CRC_AT, checksum());
+		map.put(SETTLED_AT, (byte)1);
+	}
+
+	/**
+	 * Loads the text and graphics saved into the screen.
+	 */
+	void load(LcdScreenState screen) {
+		byte[] text = new byte[columns];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				text[c] = map.get(TEXT_AT + r * columns + c);
+			}
+			screen.writeText(1, r + 1, text, 0, columns);
+		}
+		LcdBitmap graphics = screen.getGraphics();
+		int at = graphicsAt;
+		for (int y = 0; y < height; y++) {
+			for (int w = 0; w < graphics.getWordsPerRow(); w++) {
+				graphics.setWord(y, w, map.getLong(at));
+				at += 8;
+			}
+		}
+	}
+
+	DrawingColor getDrawingColor() {
+		return DrawingColor.values()[map.getInt(DRAWING_COLOR_AT)];
+	}
+
+	int getBrightness() {
+		return map.getInt(BRIGHTNESS_AT);
+	}
+
+	int getContrast() {
+		return map.getInt(CONTRAST_AT);
+	}
+
+	/**
+	 * @param led	0 to 2 for LEDs one to three
+	 */
+	LedColor getLedColor(int led) {
+		return LedColor.values()[map.get(LED_COLORS_AT + led)];
+	}
+
+	/**
+	 * @param led	0 to 2 for LEDs one to three
+	 */
+	LedPower getLedPower(int led) {
+		return LedPower.values()[map.get(LED_POWERS_AT + led)];
+	}
+
+	/**
+	 * Writes the mapped pages to the file and closes it.
+	 */
+	void close() {
+		map.force();
+		try {
+			file.close();
+		}
+		catch (IOException ioeError) {
+			// the mapping stays valid until it is collected, and it has been forced
+		}
+	}
+
+	private int checksum() {
+		ByteBuffer state = map.duplicate();
+		state.position(STATE_AT);
+		crc.reset();
+		crc.update(state);
+		return (int)crc.getValue();
+	}
+}
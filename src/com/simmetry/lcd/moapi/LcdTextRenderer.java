@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Draws text in an LcdFont at any pixel position of an LcdBitmap. Whole rendered strings are
+ * kept in a least recently used cache, so a label that is drawn again costs one copy into the
+ * bitmap; sent with MatrixOrbitalApi.drawBitmap() an unchanged label then costs nothing on the
+ * wire and a changed one only its differing pixels.
+ */
+public class LcdTextRenderer {
+
+	// number of rendered strings kept when no size is given
+	public static final int DEFAULT_CACHE_SIZE = 64;
+
+	private final LinkedHashMap<String, LcdBitmap> cache;
+	private long hits = 0;
+	private long misses = 0;
+
+	public LcdTextRenderer() {
+		this(DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param cacheSize	The number of rendered strings to keep
+	 */
+	public LcdTextRenderer(final int cacheSize) {
+		// an access ordered LinkedHashMap drops its least recently used entry
+		cache = new LinkedHashMap<String, LcdBitmap>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, LcdBitmap> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the text rendered in the given font, from the cache if it has been rendered
+	 * recently. The bitmap is as wide as the text and as tall as the font; it must not be changed.
+	 */
+	public synchronized LcdBitmap render(LcdFont font, String text) {
+		String key = font.toString() + '\u0000' + text;
+		LcdBitmap rendered = cache.get(key);
+		if (rendered != null) {
+			hits++;
+			return rendered;
+		}
+		misses++;
+
+		// a glyph may reach past its advance, so the last glyph can widen the text
+		int width = 0;
+		int x = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			width = Math.max(width, x + font.getGlyph(c).getWidth());
+			x += font.getAdvance(c);
+			width = Math.max(width, x);
+		}
+		rendered = new LcdBitmap(Math.max(1, width), Math.max(1, font.getHeight()));
+		x = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			rendered.blit(font.getGlyph(c), x, 0, true, false);
+			x += font.getAdvance(c);
+		}
+		cache.put(key, rendered);
+		return rendered;
+	}
+
+	/**
+	 * Draws text into a bitmap with the upper left corner of the text at the given location.
+	 * @param canvas	The bitmap to draw into
+	 * @param font		The font
+	 * @param text		The text
+	 * @param x_loc		X location of the left edge of the text
+	 * @param y_loc		Y location of the top of the text
+	 * @param color		The color of the text
+	 * @param opaque	True to also fill the background of the text in the opposite color
+	 */
+	public void drawText(LcdBitmap canvas, LcdFont font, String text, int x_loc, int y_loc,
+			DrawingColor color, boolean opaque) {
+		canvas.blit(render(font, text), x_loc, y_loc, color == DrawingColor.BLACK, opaque);
+	}
+
+	/**
+	 * @return The number of render() calls answered from the cache
+	 */
+	public synchronized long getCacheHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of render() calls that had to render the text
+	 */
+	public synchronized long getCacheMisses() {
+		return misses;
+	}
+}
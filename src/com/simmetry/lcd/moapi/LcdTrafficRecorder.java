@@ -0,0 +1,134 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.io.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records the traffic between the MatrixOrbitalApi and the LCD to a compact binary log, so
+ * that the workload of a display in the field can be replayed offline with LcdTrafficReplay.
+ *
+ * The log starts with a header:
+ *   4 bytes  MAGIC ("LCDT")
+ *   1 byte   VERSION
+ *   8 bytes  wall clock time the recording started, in milliseconds since the epoch
+ * followed by one record per chunk of bytes written to or read from the LCD:
+ *   1 byte   record type, OUTBOUND or INBOUND
+ *   varint   nanoseconds since the previous record (since the header for the first)
+ *   varint   payload length
+ *   n bytes  payload
+ * Varints are unsigned, 7 bits per byte, least significant group first, high bit set on
+ * every byte but the last. A typical 8 byte write costs 11 bytes of log.
+ */
+public class LcdTrafficRecorder implements Closeable {
+
+	public static final int MAGIC = 0x4C434454; // "LCDT"
+	public static final byte VERSION = 1;
+	public static final byte OUTBOUND = 0x01;
+	public static final byte INBOUND = 0x02;
+
+	private final DataOutputStream out;
+	private long lastNanos;
+	private long records = 0;
+	private boolean closed = false;
+
+	// class logger
+	private static final Logger logger = Logger.getLogger(com.simmetry.lcd.moapi.LcdTrafficRecorder.class);
+
+	/**
+	 * Creates a recorder that writes a new log to the given file, replacing any existing file.
+	 * @param file	The log file
+	 * @throws IOException if the file can not be created
+	 */
+	public LcdTrafficRecorder(File file) throws IOException {
+		this(new FileOutputStream(file));
+	}
+
+	/**
+	 * Creates a recorder that writes the log to the given stream.
+	 * @param stream	The stream to write the log to, it is closed when the recorder is closed
+	 * @throws IOException if the header can not be written
+	 */
+	public LcdTrafficRecorder(OutputStream stream) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeLong(System.currentTimeMillis());
+		lastNanos = System.nanoTime();
+	}
+
+	/**
+	 * Records bytes written to the LCD.
+	 */
+	public void recordOutbound(byte[] b, int offset, int length) {
+		record(OUTBOUND, b, offset, length);
+	}
+
+	/**
+	 * Records bytes read from the LCD.
+	 */
+	public void recordInbound(byte[] b, int offset, int length) {
+		record(INBOUND, b, offset, length);
+	}
+
+	/**
+	 * @return The number of records written so far
+	 */
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Flushes any buffered records to the log.
+	 * @throws IOException if the log can not be written
+	 */
+	public synchronized void flush() throws IOException {
+		if (!closed) {
+			out.flush();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			out.close();
+		}
+	}
+
+	private synchronized void record(byte type, byte[] b, int offset, int length) {
+		if (closed || length <= 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		try {
+			out.writeByte(type);
+			writeVarint(now - lastNanos);
+			writeVarint(length);
+			out.write(b, offset, length);
+			lastNanos = now;
+			records++;
+		}
+		catch (IOException ioeError) {
+			// A failing recorder must never take the LCD link down with it, so stop recording
+			logger.error("traffic recording stopped: " + ioeError.toString(), ioeError);
+			closed = true;
+			try {
+				out.close();
+			}
+			catch (IOException ignore) {
+			}
+		}
+	}
+
+	private void writeVarint(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+}
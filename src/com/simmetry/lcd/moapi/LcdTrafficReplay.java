@@ -0,0 +1,252 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the outbound traffic of a log written by LcdTrafficRecorder into a transport, either
+ * at the recorded speed, a multiple of it, or as fast as the transport will take it.
+ *
+ * The log is read through memory mapped windows of the file rather than the heap, so captures
+ * of many gigabytes can be replayed with a constant, small memory footprint. Pacing is measured
+ * from the start of the replay rather than from record to record, so the time lost in sleeping
+ * and writing does not accumulate over a long replay.
+ *
+ * Usage: LcdTrafficReplay logFile [speed] [host:port]
+ *   speed		1 for the recorded speed, N for N times faster, 0 for maximum speed (default 1)
+ *   host:port	an ethernet to serial converter or device stand-in to replay into; without it
+ *				the traffic is replayed into a sink and only the throughput is reported
+ */
+public class LcdTrafficReplay {
+
+	// Speed value that replays without any pacing
+	public static final double MAXIMUM_SPEED = 0.0;
+
+	// Size of each memory mapped window of the log
+	private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+	// Size of the fixed log header, see LcdTrafficRecorder
+	private static final int HEADER_SIZE = 13;
+
+	private final File file;
+	private final double speed;
+
+	private long recordedStartMillis = 0;
+	private long outboundRecords = 0;
+	private long outboundBytes = 0;
+	private long inboundRecords = 0;
+	private long elapsedNanos = 0;
+
+	/**
+	 * @param file	The log file to replay
+	 * @param speed	Speed multiplier, 1.0 for the recorded speed or MAXIMUM_SPEED for no pacing
+	 */
+	public LcdTrafficReplay(File file, double speed) {
+		if (speed < 0.0) {
+			throw new IllegalArgumentException("speed must not be negative: " + speed);
+		}
+		this.file = file;
+		this.speed = speed;
+	}
+
+	/**
+	 * Writes every outbound record of the log to the given transport, pacing the writes
+	 * according to the replay speed. Inbound records are counted but not replayed.
+	 * @param transport	The stream to write the LCD traffic to
+	 * @throws IOException if the log can not be read, is not a traffic log, or the transport fails
+	 */
+	public void replay(OutputStream transport) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException(file + " is too short to be a traffic log");
+			}
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != LcdTrafficRecorder.MAGIC) {
+				throw new IOException(file + " is not a traffic log");
+			}
+			byte version = header.get();
+			if (version != LcdTrafficRecorder.VERSION) {
+				throw new IOException(file + " has unsupported traffic log version " + version);
+			}
+			recordedStartMillis = header.getLong();
+
+			byte[] payload = new byte[256];
+			long position = HEADER_SIZE;
+			long recordedNanos = 0;
+			long start = System.nanoTime();
+			MappedByteBuffer window = null;
+			long windowStart = 0;
+
+			while (position < size) {
+				// Map a new window whenever the next record might run past the end of the current
+				// one. A record header is at most 21 bytes, the payload length is checked below.
+				if (window == null || position + 21 > windowStart + window.limit()) {
+					windowStart = position;
+					window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+							Math.min(WINDOW_SIZE, size - windowStart));
+				}
+				window.position((int)(position - windowStart));
+
+				byte type = window.get();
+				long delta = readVarint(window);
+				long recordLength = readVarint(window);
+				if (recordLength < 0 || recordLength > Integer.MAX_VALUE) {
+					throw new IOException(file + " has a record with a bad length: " + recordLength);
+				}
+				int length = (int)recordLength;
+				if (window.remaining() < length) {
+					if (windowStart + window.limit() >= size) {
+						throw new IOException(file + " ends in the middle of a record");
+					}
+					if (length > WINDOW_SIZE - 21) {
+						throw new IOException(file + " has a record larger than the replay window");
+					}
+					// remap so that the whole record is in the window and read it again
+					window = null;
+					continue;
+				}
+
+				recordedNanos += delta;
+				if (type == LcdTrafficRecorder.OUTBOUND) {
+					if (payload.length < length) {
+						payload = new byte[Math.max(length, payload.length * 2)];
+					}
+					window.get(payload, 0, length);
+					if (speed != MAXIMUM_SPEED) {
+						waitUntil(start + (long)(recordedNanos / speed));
+					}
+					transport.write(payload, 0, length);
+					outboundRecords++;
+					outboundBytes += length;
+				}
+				else {
+					window.position(window.position() + length);
+					inboundRecords++;
+				}
+				position = windowStart + window.position();
+			}
+
+			transport.flush();
+			elapsedNanos = System.nanoTime() - start;
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException(file + " ends in the middle of a record");
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return The wall clock time the replayed log was recorded, in milliseconds since the epoch
+	 */
+	public long getRecordedStartMillis() {
+		return recordedStartMillis;
+	}
+
+	/**
+	 * @return The number of outbound records written to the transport
+	 */
+	public long getOutboundRecords() {
+		return outboundRecords;
+	}
+
+	/**
+	 * @return The number of outbound bytes written to the transport
+	 */
+	public long getOutboundBytes() {
+		return outboundBytes;
+	}
+
+	/**
+	 * @return The number of inbound records found in the log
+	 */
+	public long getInboundRecords() {
+		return inboundRecords;
+	}
+
+	/**
+	 * @return The time the last replay took, in nanoseconds
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	private static long readVarint(ByteBuffer buffer) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed varint in traffic log");
+	}
+
+	private static void waitUntil(long deadlineNanos) {
+		long remaining;
+		while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: LcdTrafficReplay logFile [speed] [host:port]");
+			return;
+		}
+
+		try {
+			double speed = (args.length > 1) ? Double.parseDouble(args[1]) : 1.0;
+			LcdTrafficReplay replay = new LcdTrafficReplay(new File(args[0]), speed);
+
+			Socket socket = null;
+			OutputStream transport;
+			if (args.length > 2) {
+				int colon = args[2].lastIndexOf(':');
+				socket = new Socket(args[2].substring(0, colon), Integer.parseInt(args[2].substring(colon + 1)));
+				transport = new BufferedOutputStream(socket.getOutputStream());
+			}
+			else {
+				transport = new OutputStream() {
+					public void write(int b) {
+					}
+					public void write(byte[] b, int off, int len) {
+					}
+				};
+			}
+
+			try {
+				replay.replay(transport);
+			}
+			finally {
+				if (socket != null) {
+					socket.close();
+				}
+			}
+
+			double seconds = replay.getElapsedNanos() / 1e9;
+			System.out.println("replayed " + replay.getOutboundBytes() + " bytes in " +
+					replay.getOutboundRecords() + " records (" + replay.getInboundRecords() +
+					" inbound records skipped) in " + seconds + " s, " +
+					(long)(replay.getOutboundBytes() / Math.max(seconds, 1e-9)) + " bytes/s");
+		}
+		catch (Exception e) {
+			System.out.println(e);
+		}
+	}
+}
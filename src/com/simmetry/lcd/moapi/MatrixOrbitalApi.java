@@ -13,10 +13,17 @@ import gnu.io.SerialPort;
 import gnu.io.UnsupportedCommOperationException;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.log4j.Logger;
 
 
@@ -35,13 +42,15 @@ import com.simmetry.lcd.events.*;
 //    that the LCD is not quick to indicate the buffer full case. This means you have to tune the parameters:
 //    FLOW_CONTROL_FULL and FLOW_CONTROL_EMPTY in the MatrixOrbitalCommands class, and the 'sleep_time_millis' value set
 //    in this.run() method.
+//    The values found for the 256 byte buffer are now derived from the receive buffer size of the LcdDeviceProfile,
+//    so other models get thresholds scaled to their buffer.
 // 2) We're using the default baud rate of 19200. Conjecture is that there is no benefit to trying to use a higher
 //    baud rate. The receipt of the flow control flags seem to indicate that at the default baud rate we can easily exceed
 //    buffer, so increasing the baud rate will only allow us to overflow the buffer faster. The various baud rates that
 //    are supported by the LCD are likely only to allow for integration with serial devices that only operate at specific
 //    baud rates, rather than any benefit to operating at 115000.
 //
-public class MatrixOrbitalApi implements Runnable {
+public class MatrixOrbitalApi implements Runnable, AutoCloseable {
     
     // Variables For Socket Communication
     private String ipAddress = ""; // IP Address of Device
@@ -55,21 +64,86 @@ public class MatrixOrbitalApi implements Runnable {
     
     // Serial Communications
     private SerialPort serialPort;
-	private boolean connected = false;
-	private boolean flowing = true;
+	private volatile boolean connected = false;
+	private volatile boolean flowing = true;
+	// the Flight Recorder event timing the current flow control stall, see LcdFlightEvents
+	private Object flowStall = null;
+	
+	// Reconnection after a link failure. The connection parameters of the last successful
+	// connect are kept so that the service thread can re-open the same link, retrying with
+	// an exponential backoff between RECONNECT_MIN_MILLIS and RECONNECT_MAX_MILLIS.
+	private static final int CONNECTION_NONE = 0;
+	private static final int CONNECTION_SERIAL = 1;
+	private static final int CONNECTION_IP = 2;
+	private static final int CONNECTION_STREAM = 3;
+	private static final long RECONNECT_MIN_MILLIS = 250;
+	private static final long RECONNECT_MAX_MILLIS = 30000;
+	// longest wait for a serial port to be free or a socket to connect
+	private static final int LINK_OPEN_TIMEOUT_MILLIS = 2000;
+	private int connectionType = CONNECTION_NONE;
+	private String serialPortName = null;
+	private byte serialSpeed = MatrixOrbitalCommands.BAUD_19200;
+	private volatile boolean autoReconnect = true;
+	private long reconnectDelayMillis = RECONNECT_MIN_MILLIS;
+	private long nextReconnectMillis = 0;
+    
+    // Containers for input/output to/from the socket streams. Commands are encoded by the
+    // MatrixOrbitalCodec into the reusable command buffer and then copied into inputBytes,
+    // so sending a command allocates nothing.
+    private static final int QUEUE_INITIAL_CAPACITY = 4096;
+    
+    // Bound on the bytes waiting for the LCD, so that an LCD that stops reading cannot fill
+    // the heap, and what to do with a command that does not fit, see setOutboundQueuePolicy().
+    // When commands are refused or dropped the LCD no longer shows the recorded screen state,
+    // so the screen is redrawn from it once the queue has drained (resyncPending).
+    private static final int QUEUE_DEFAULT_LIMIT = 65536;
+    private volatile LcdQueuePolicy queuePolicy = LcdQueuePolicy.COALESCE;
+    private volatile long queueBlockNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile int roomWaiters = 0;
+    private long refusedCommands = 0;
+    private long coalescedQueues = 0;
+    private volatile boolean resyncPending = false;
     
-    // Containers for input/output to/from the socket streams
-    //private Queue<Byte> inputBytes = new LinkedList<Byte>();
-    //private Queue<Byte> outputBytes = new LinkedList<Byte>();
-    private ConcurrentLinkedQueue<Byte> inputBytes = new ConcurrentLinkedQueue<Byte>();
-    private ConcurrentLinkedQueue<Byte> outputBytes = new ConcurrentLinkedQueue<Byte>();
+    // Deadline given to the commands queued inside sendWithDeadline(), see there. Commands
+    // still waiting when it passes are dropped by the service thread instead of being sent.
+    private long commandDeadline = LcdByteQueue.NO_DEADLINE;
+    private long expiredSeen = 0;
+    
+    // Commands that change the LCD filesystem are never dropped, since the recorded screen state
+    // does not hold the files and a redraw cannot bring them back. Losing one all the same, when
+    // it is refused or cleared from the queue unsent, is counted for LcdAssetCache.
+    private long filesystemQueuedTo = 0;
+    private long filesystemLosses = 0;
+    private LcdByteQueue inputBytes = new LcdByteQueue(QUEUE_INITIAL_CAPACITY);
+    private LcdByteQueue outputBytes = new LcdByteQueue(QUEUE_INITIAL_CAPACITY);
+    private ByteBuffer command = ByteBuffer.allocate(MatrixOrbitalCodec.MAX_COMMAND_LENGTH * 2);
+    private byte[] readChunk = new byte[64];
+    // LED blink commands are encoded by the service thread, which must not wait for the API
+    // lock while a caller holding it waits for the queue to drain
+    private final ByteBuffer blinkCommand = ByteBuffer.allocate(18);
+    
+    // Sorts the bytes read from the LCD into flow control, key codes and query replies
+    private static final long QUERY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private LcdInboundDecoder inboundDecoder = new LcdInboundDecoder();
+    
+    // Latency of commands from being queued until written to the LCD, and of key codes from
+    // being read until every listener has returned; keyArrival is when the bytes being
+    // handled were read. See getEnqueueToWireLatency() and getKeyToListenerLatency().
+    private final LcdLatencyHistogram enqueueToWire = new LcdLatencyHistogram("enqueue-to-wire");
+    private final LcdLatencyHistogram keyToListener = new LcdLatencyHistogram("keypress-to-listener");
+    private long keyArrival = 0;
+    private ObjectName[] latencyMBeans = null;
     
     // Container for event listeners when buttons are pressed
     private Vector<LcdButtonPressEventListener> eventListenerVector =
     	new Vector<LcdButtonPressEventListener>();
     
     // Class Threads
-    private Thread serviceThread = new Thread(this); // Thread to monitor socket
+    private volatile Thread serviceThread = null; // Thread to monitor socket, created by startServiceThread()
+    // how long close() waits for queued commands by default, and for the service thread to stop
+    private static final long CLOSE_DRAIN_MILLIS = 2000;
+    private static final long SERVICE_STOP_MILLIS = 1000;
+    private volatile boolean virtualThreads = false;
     
     // Used to keep track of the colors of the individual LEDs
     private LedColor ledOneColor = LedColor.GREEN;
@@ -86,18 +160,33 @@ public class MatrixOrbitalApi implements Runnable {
     private int ledTwoFreq = 0;
     private int ledThreeFreq = 0;
     
+    // Used to keep track of the last known display settings so they can be restored
+    // after a reconnect, -1 means the setting has never been sent
+    private int brightnessLevel = -1;
+    private int contrastLevel = -1;
+    private DrawingColor drawingColor = DrawingColor.BLACK;
+    private LcdScreenState screenState = new LcdScreenState();
+    
+    // Optional file the recorded state is saved to whenever the queue has drained, so the next
+    // process can carry on from it, see restoreState()
+    private volatile LcdStateFile stateFile = null;
+    private volatile boolean stateDirty = false;
+    private LcdTextRenderer textRenderer = new LcdTextRenderer();
+    
+    // Optional capture of all traffic to and from the LCD, see setTrafficRecorder()
+    private volatile LcdTrafficRecorder trafficRecorder = null;
+    private volatile byte[] writeChunk = new byte[8];
+    
+    // The model of LCD being driven. Bounds checks, the screen state and the flow control
+    // settings all follow the profile, see setDeviceProfile().
+    private volatile LcdDeviceProfile profile = LcdDeviceProfile.GLK19264_7T_1U;
+    
     // class logger
     private static final Logger logger = Logger.getLogger(com.simmetry.lcd.moapi.MatrixOrbitalApi.class);
     
     
     public MatrixOrbitalApi() {
-        
-        // This thread runs in the background to manage communications to and
-        // from the Matrix Orbital LCD and to execute events that are caused by
-        // data returned from the LCD. We set this thread as daemon so when 
-        // we shutdown, the program does not wait for the thread to stop prior
-        // to exiting the main program.
-        serviceThread.setDaemon(true);
+        inputBytes.setLimit(QUEUE_DEFAULT_LIMIT);
     }
     
     /**
@@ -125,6 +214,39 @@ public class MatrixOrbitalApi implements Runnable {
 	 * @return TRUE if connect is successful, FALSE if not
 	 */
 	public boolean connect(String portName, byte speed) {
+		// connecting again replaces the current link and releases its port
+		this.releaseLink();
+		
+		startServiceThread();
+		boolean conn = openSerial(portName, speed, false);
+		
+		// remember the link so that it can be re-opened if it fails
+		connectionType = CONNECTION_SERIAL;
+		serialPortName = portName;
+		serialSpeed = speed;
+		
+		return conn;
+	}
+	
+	/**
+	 * Connects the LCD via serial comm as the given model of LCD, at the fastest baud rate
+	 * the model supports.
+	 * @param portName	The port name for the connection
+	 * @param profile	The model of LCD on the port
+	 * @return TRUE if connect is successful, FALSE if not
+	 */
+	public boolean connect(String portName, LcdDeviceProfile profile) {
+		this.setDeviceProfile(profile);
+		return connect(portName, profile.getMaxBaud());
+	}
+	
+	/**
+	 * Opens the serial port and brings the LCD up to the requested baud rate. The port is opened
+	 * without holding the API lock, see installLink().
+	 * @param restore	True when reconnecting after a link failure
+	 * @return TRUE if the port was opened, FALSE if not
+	 */
+	private boolean openSerial(String portName, byte speed, boolean restore) {
 		CommPortIdentifier portIdentifier;
 		boolean conn = false;
 		int baud = 19200;
@@ -156,32 +278,38 @@ public class MatrixOrbitalApi implements Runnable {
 				break;
 		}
 
+		SerialPort port = null;
 		try {
 			portIdentifier = CommPortIdentifier.getPortIdentifier(portName);
 			if (portIdentifier.isCurrentlyOwned()) {
 				logger.info("Error: Port is currently in use");
 			} else {
-				serialPort = (SerialPort) portIdentifier.open("Controller_LCD", 2000);
-				serialPort.setSerialPortParams(default_baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-				//serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_XONXOFF_OUT);
+				port = (SerialPort) portIdentifier.open("Controller_LCD", LINK_OPEN_TIMEOUT_MILLIS);
+				port.setSerialPortParams(default_baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+				//port.setFlowControlMode(SerialPort.FLOWCONTROL_XONXOFF_OUT);
 
-				apiReader = serialPort.getInputStream();
-				apiWriter = serialPort.getOutputStream();
-				connected = true;
+				InputStream in = port.getInputStream();
+				OutputStream out = port.getOutputStream();
 				
-				//
-				// test code
-				//
+				// the baud rate change is written straight away at the speed the LCD starts at,
+				// rather than queued, and only then does the port follow it
 				if(baud != default_baud){
-					this.setBaudRate(speed);
+					ByteBuffer b = ByteBuffer.allocate(3);
+					MatrixOrbitalCodec.encodeCommand(b, MatrixOrbitalCommands.SET_BAUD_RATE, speed & 0xFF);
+					out.write(b.array(), 0, b.position());
+					out.flush();
+					LcdTrafficRecorder recorder = trafficRecorder;
+					if (recorder != null) {
+						recorder.recordOutbound(b.array(), 0, b.position());
+					}
 					Thread.sleep(100);
-					serialPort.setSerialPortParams(baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+					port.setSerialPortParams(baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
 				}
 				
-				logger.info("connection on " + portName + " established");
-				conn = true;
-				
-				this.setFlowControlOn();
+				conn = installLink(port, null, in, out, restore);
+				if (conn) {
+					logger.info("connection on " + portName + " established");
+				}
 			}
 		} catch (NoSuchPortException e) {
 			logger.error("the connection to " + portName + " could not be made", e);
@@ -194,24 +322,420 @@ public class MatrixOrbitalApi implements Runnable {
 		} catch (InterruptedException e) {
 			logger.error("Thread exception on " + portName, e);
 		}
+		
+		// a port that was opened but could not be set up must not stay locked
+		if (!conn && port != null) {
+			port.close();
+		}
 
-        serviceThread.start();
         return conn;
 	}
 	
+	/**
+	 * Makes an opened port or socket the link to the LCD. Opening a link can take seconds, so it
+	 * is done without the API lock, which is only taken here to swap in the streams. When
+	 * reconnecting, anything queued was meant for the failed link: it is replaced by a restore
+	 * of the display state, which records all of its changes. A reconnect overtaken by close()
+	 * or a new connect is not installed.
+	 * @param port		The serial port, or null; flow control is turned on for a serial port
+	 * @param socket	The socket, or null
+	 * @param restore	True when reconnecting after a link failure
+	 * @return			False if the link was not installed, and should be closed by the caller
+	 */
+	private synchronized boolean installLink(SerialPort port, Socket socket, InputStream in, OutputStream out,
+			boolean restore) {
+		if (restore) {
+			if (serviceThread != Thread.currentThread() || connectionType == CONNECTION_NONE) {
+				return false;
+			}
+			clearOutboundQueue();
+			outputBytes.clear();
+		}
+		serialPort = port;
+		apiSocket = socket;
+		apiReader = in;
+		apiWriter = out;
+		flowing = true;
+		connected = true;
+		if (port != null) {
+			this.setFlowControlOn();
+		}
+		if (restore) {
+			enqueue(restoreCommands());
+			resyncPending = false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Starts the service thread if it is not already running. The thread keeps running
+	 * across reconnects, so connecting again must not start it a second time. It runs until
+	 * it is no longer the service thread, see releaseLink().
+	 */
+	private synchronized void startServiceThread() {
+		if (serviceThread == null || !serviceThread.isAlive()) {
+			serviceThread = this.newServiceThread();
+			serviceThread.start();
+		}
+	}
+	
+	/**
+	 * Creates the thread that runs in the background to manage communications to and from
+	 * the Matrix Orbital LCD and to execute events that are caused by data returned from the
+	 * LCD. The thread is a daemon so when we shutdown, the program does not wait for the thread
+	 * to stop prior to exiting the main program. Virtual threads are always daemons.
+	 */
+	private Thread newServiceThread() {
+		if (virtualThreads) {
+			Thread thread = newVirtualThread(this, "MatrixOrbitalApi");
+			if (thread != null) {
+				return thread;
+			}
+			logger.info("virtual threads are not available, using a platform thread");
+		}
+		Thread thread = new Thread(this, "MatrixOrbitalApi");
+		thread.setDaemon(true);
+		return thread;
+	}
+	
+	/**
+	 * Runs the service thread, which reads from and writes to the LCD and calls the button
+	 * press listeners, as a virtual thread instead of a platform thread. The service thread
+	 * does not block on the link: it wakes every 4 ms to poll it, whichever kind of thread it
+	 * is. A virtual thread only saves the memory and stack of a platform thread per LCD, not
+	 * the CPU of those wakeups, and while it is inside a synchronized method of this class it
+	 * still holds its platform thread. Virtual threads need Java 21; on older Java a platform
+	 * thread is used. Takes effect the next time the service thread is started, so call before
+	 * connecting.
+	 * @param enabled	True to use a virtual thread
+	 */
+	public void setVirtualThreads(boolean enabled) {
+		virtualThreads = enabled;
+	}
+	
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	/**
+	 * @return True if this Java can run the service thread as a virtual thread
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return VIRTUAL_BUILDER != null;
+	}
+	
+	// Thread.ofVirtual() and Thread.Builder.name()/unstarted(), looked up by reflection so that
+	// this class still builds and runs on Java versions without virtual threads
+	private static final Object VIRTUAL_BUILDER;
+	private static final Method VIRTUAL_NAME;
+	private static final Method VIRTUAL_UNSTARTED;
+	static {
+		Object builder = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			name = builderClass.getMethod("name", String.class);
+			unstarted = builderClass.getMethod("unstarted", Runnable.class);
+			builder = Thread.class.getMethod("ofVirtual").invoke(null);
+		}
+		catch (Exception e) {
+			builder = null;
+		}
+		VIRTUAL_BUILDER = builder;
+		VIRTUAL_NAME = name;
+		VIRTUAL_UNSTARTED = unstarted;
+	}
+	
+	/**
+	 * @return A new, unstarted virtual thread, or null if virtual threads are not available
+	 */
+	private static Thread newVirtualThread(Runnable task, String name) {
+		if (VIRTUAL_BUILDER == null) {
+			return null;
+		}
+		try {
+			synchronized (VIRTUAL_BUILDER) {
+				// a builder is not thread safe, and name() changes it in place
+				VIRTUAL_NAME.invoke(VIRTUAL_BUILDER, name);
+				return (Thread)VIRTUAL_UNSTARTED.invoke(VIRTUAL_BUILDER, task);
+			}
+		}
+		catch (Exception e) {
+			logger.error("virtual thread could not be created", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Enables or disables automatic reconnection after a link failure. It is enabled by default.
+	 * While enabled, the service thread re-opens the last connection with an increasing
+	 * delay between attempts, and once it succeeds restores the last known display state.
+	 * @param enabled	True to reconnect automatically
+	 */
+	public void setAutoReconnect(boolean enabled) {
+		autoReconnect = enabled;
+	}
+	
+	/**
+	 * Starts or stops recording the traffic to and from the LCD. Every chunk written to the
+	 * LCD and every batch of bytes read from it is passed to the recorder as it happens.
+	 * The recorder is not closed when it is replaced or removed.
+	 * @param recorder	The recorder to use, or null to stop recording
+	 */
+	public void setTrafficRecorder(LcdTrafficRecorder recorder) {
+		trafficRecorder = recorder;
+	}
+	
+	/**
+	 * @return The number of bytes queued for the LCD that have not been written yet
+	 */
+	public int getPendingBytes() {
+		return inputBytes.size();
+	}
+	
+	/**
+	 * Sets the most bytes that may wait to be written to the LCD. Once the limit is reached
+	 * new commands are handled by the queue policy. The default is 64 KB, over half a minute
+	 * of output at 19200 baud.
+	 * @param bytes	The limit in bytes
+	 */
+	public void setOutboundQueueLimit(int bytes) {
+		inputBytes.setLimit(bytes);
+	}
+	
+	public int getOutboundQueueLimit() {
+		return inputBytes.getLimit();
+	}
+	
+	/**
+	 * Sets what happens to a command that does not fit in the outbound queue:
+	 * BLOCK waits up to the block timeout for room and then refuses the command; FAIL_FAST
+	 * refuses it at once; DROP_OLDEST drops the oldest whole commands not yet started to make
+	 * room; COALESCE (the default) replaces every command not yet started with a redraw of the
+	 * latest recorded screen, which needs far fewer bytes than the history it replaces.
+	 * Methods that return a boolean return false for a refused command. Whenever commands are
+	 * refused or dropped, the screen is redrawn from the recorded state once the queue drains.
+	 * BLOCK waits without holding the API lock, so other threads and button press listeners
+	 * carry on meanwhile. Commands sent from a button press listener are never blocked, since
+	 * the listener runs on the thread that drains the queue; BLOCK refuses them at once instead.
+	 * @param policy	The policy
+	 */
+	public void setOutboundQueuePolicy(LcdQueuePolicy policy) {
+		queuePolicy = policy;
+	}
+	
+	public LcdQueuePolicy getOutboundQueuePolicy() {
+		return queuePolicy;
+	}
+	
+	/**
+	 * Sets how long the BLOCK policy waits for room in the outbound queue.
+	 * @param millis	The longest wait in milliseconds
+	 */
+	public void setOutboundBlockTimeout(long millis) {
+		queueBlockNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+	
+	/**
+	 * @return The bytes of heap held by the outbound queue buffer
+	 */
+	public int getOutboundQueueCapacity() {
+		return inputBytes.getCapacity();
+	}
+	
+	/**
+	 * @return The most bytes that have waited to be written to the LCD at once
+	 */
+	public int getOutboundQueueHighWater() {
+		return inputBytes.getHighWater();
+	}
+	
+	/**
+	 * @return The number of commands refused because the outbound queue was full
+	 */
+	public synchronized long getRefusedCommands() {
+		return refusedCommands;
+	}
+	
+	/**
+	 * @return The number of queued commands dropped, by DROP_OLDEST or replaced by COALESCE
+	 */
+	public long getDroppedCommands() {
+		return inputBytes.getDroppedEntries();
+	}
+	
+	/**
+	 * @return The number of queued bytes dropped, by DROP_OLDEST or replaced by COALESCE
+	 */
+	public long getDroppedBytes() {
+		return inputBytes.getTotalDropped();
+	}
+	
+	/**
+	 * @return The number of times COALESCE has replaced the queue with a redraw
+	 */
+	public synchronized long getCoalescedQueues() {
+		return coalescedQueues;
+	}
+	
+	/**
+	 * @return The number of commands dropped because their deadline passed before they were sent
+	 */
+	public long getExpiredCommands() {
+		return inputBytes.getExpiredEntries();
+	}
+	
+	/**
+	 * @return The number of times commands that change the LCD filesystem were refused, or were
+	 * cleared from the queue before they were sent because the link failed or was closed
+	 */
+	public synchronized long getFilesystemLosses() {
+		return filesystemLosses;
+	}
+	
+	/**
+	 * @return The number of bytes dropped because their deadline passed before they were sent
+	 */
+	public long getExpiredBytes() {
+		return inputBytes.getTotalExpired();
+	}
+	
+	/**
+	 * The time from a command being queued until its last byte has been written and flushed to
+	 * the LCD, including any time spent waiting for flow control. Commands that are dropped
+	 * or expire are not counted.
+	 * @return The live histogram, see LcdLatencyHistogram.snapshotAndReset() for intervals
+	 */
+	public LcdLatencyHistogram getEnqueueToWireLatency() {
+		return enqueueToWire;
+	}
+	
+	/**
+	 * The time from a key code being read from the LCD until every button press listener has
+	 * returned from the event, including the time taken by the keys read before it.
+	 * @return The live histogram, see LcdLatencyHistogram.snapshotAndReset() for intervals
+	 */
+	public LcdLatencyHistogram getKeyToListenerLatency() {
+		return keyToListener;
+	}
+	
+	/**
+	 * @return Both latency histograms as text, one line each
+	 */
+	public String getLatencyReport() {
+		return enqueueToWire.getSummary() + "\n" + keyToListener.getSummary();
+	}
+	
+	/**
+	 * Registers the latency histograms with the platform MBean server, as
+	 * com.simmetry.lcd:type=Latency,display=(display),name=enqueue-to-wire and
+	 * name=keypress-to-listener, so they can be watched with jconsole or any JMX monitor.
+	 * They stay registered until unregisterLatencyMBeans() is called, also after close().
+	 * @param display	A name for this LCD, unique among those registered in the JVM
+	 * @return			True if the MBeans were registered
+	 */
+	public synchronized boolean registerLatencyMBeans(String display) {
+		unregisterLatencyMBeans();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		LcdLatencyHistogram[] histograms = { enqueueToWire, keyToListener };
+		ObjectName[] names = new ObjectName[histograms.length];
+		try {
+			for (int i = 0; i < histograms.length; i++) {
+				names[i] = new ObjectName("com.simmetry.lcd:type=Latency,display=" + ObjectName.quote(display)
+						+ ",name=" + histograms[i].getName());
+				server.registerMBean(histograms[i], names[i]);
+			}
+		}
+		catch (JMException jmError) {
+			logger.error("latency MBeans could not be registered", jmError);
+			latencyMBeans = names;
+			unregisterLatencyMBeans();
+			return false;
+		}
+		latencyMBeans = names;
+		return true;
+	}
+	
+	/**
+	 * Removes the MBeans registered by registerLatencyMBeans(), if any.
+	 */
+	public synchronized void unregisterLatencyMBeans() {
+		if (latencyMBeans == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (int i = 0; i < latencyMBeans.length; i++) {
+			try {
+				if (latencyMBeans[i] != null && server.isRegistered(latencyMBeans[i])) {
+					server.unregisterMBean(latencyMBeans[i]);
+				}
+			}
+			catch (JMException jmError) {
+				logger.error("latency MBean could not be unregistered", jmError);
+			}
+		}
+		latencyMBeans = null;
+	}
+	
+	/**
+	 * Runs the given calls to this API with a deadline on every command they queue. A command
+	 * that has not started to go out when its deadline passes is dropped rather than sent, which
+	 * suits updates that are only worth showing for a short time, such as a clock tick, a live
+	 * reading or an LED flash. Since the recorded screen state still holds the dropped changes,
+	 * the screen is redrawn from it once the queue has drained, so the LCD catches up with the
+	 * latest state instead of replaying stale ones. Other threads wait while the calls run.
+	 * Calls may be nested; the earlier deadline applies. Queries and commands that change the
+	 * LCD filesystem never expire.
+	 * @param maxAgeMillis	How long from now the commands stay worth sending
+	 * @param commands		The calls to this API
+	 */
+	public void sendWithMaxAge(long maxAgeMillis, Runnable commands) {
+		this.sendWithDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxAgeMillis), commands);
+	}
+	
+	/**
+	 * Runs the given calls to this API with a deadline on every command they queue, see
+	 * sendWithMaxAge().
+	 * @param deadlineNanos	The System.nanoTime() after which the commands are not sent
+	 * @param commands		The calls to this API
+	 */
+	public synchronized void sendWithDeadline(long deadlineNanos, Runnable commands) {
+		long outer = commandDeadline;
+		if (outer == LcdByteQueue.NO_DEADLINE || deadlineNanos - outer < 0) {
+			commandDeadline = deadlineNanos;
+		}
+		try {
+			commands.run();
+		}
+		finally {
+			commandDeadline = outer;
+		}
+	}
+	
+	/**
+	 * @return False while the LCD has signalled through flow control that its buffer is full
+	 */
+	public boolean isFlowing() {
+		return flowing;
+	}
+	
+	/**
+	 * @return True if the link to the LCD is currently open
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+	
 	
     /**
      * Performs a warm reset on the LCD hardware.
      */
     public synchronized void warmReset() {
     	
-    	byte[] b = new byte[2];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.WARM_RESET;
-        
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+    	MatrixOrbitalCodec.encodeWarmReset(command());
+        enqueue(command);
+        screenState.clear();
     }
 	
 	///
@@ -222,15 +746,8 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public synchronized void setFlowControlOn() {
     	
-    	byte[] b = new byte[4];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.FLOW_CONTROL_ON;
-        b[2] = MatrixOrbitalCommands.FLOW_CONTROL_FULL;
-        b[3] = MatrixOrbitalCommands.FLOW_CONTROL_EMPTY;
-        
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+    	MatrixOrbitalCodec.encodeFlowControlOn(command(), profile.getFlowControlFull(), profile.getFlowControlEmpty());
+        enqueue(command);
     }
     
     /**
@@ -238,28 +755,16 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public synchronized void setFlowControlOff() {
     	
-    	byte[] b = new byte[2];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.FLOW_CONTROL_OFF;
-        
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+    	MatrixOrbitalCodec.encodeFlowControlOff(command());
+        enqueue(command);
     }
     
     /*
      * Sets a remembered lock on the filesystem
      */
     public synchronized void setLockFilesystem(){
-    	byte[] b = new byte[4];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.SAVE_DATA_LOCK;
-        b[2] = MatrixOrbitalCommands.SET_DATA_LOCK;
-        b[3] = MatrixOrbitalCommands.LOCK_FILESYSTEM;
-        
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+    	MatrixOrbitalCodec.encodeLockFilesystem(command());
+        enqueue(command);
     }
     
     /**
@@ -276,14 +781,128 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public synchronized void setBaudRate(byte baudRate) {
     	
-    	byte[] b = new byte[3];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.SET_BAUD_RATE;
-        b[2] = baudRate;
-        
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+    	MatrixOrbitalCodec.encodeCommand(command(), MatrixOrbitalCommands.SET_BAUD_RATE, baudRate & 0xFF);
+        enqueue(command);
+    }
+    
+    ///
+    /// This section provides Device Profile functions
+    ///
+    /**
+     * Selects the model of LCD being driven. The screen state is reset to a blank screen of the
+     * new size, and the flow control settings sent from now on (see setFlowControlOn()) and the
+     * size of the chunks written to the LCD follow the new profile. Call before connecting, or
+     * follow with setFlowControlOn() and clearScreen() when changing the profile of a live LCD.
+     * @param profile	The model of LCD
+     */
+    public synchronized void setDeviceProfile(LcdDeviceProfile profile) {
+    	this.profile = profile;
+    	screenState = new LcdScreenState(profile);
+    	command = ByteBuffer.allocate((profile.getTextColumns() + 4) * 2);
+    	writeChunk = new byte[profile.getWriteChunkSize()];
+    	logger.info("device profile " + profile.getName());
+    }
+    
+    /**
+     * @return The model of LCD being driven, GLK19264_7T_1U unless another was selected
+     */
+    public LcdDeviceProfile getDeviceProfile() {
+    	return profile;
+    }
+    
+    /**
+     * Asks the LCD for its module type and selects the profile registered for it with
+     * LcdDeviceProfile.register(). The current profile is kept if the LCD does not answer in
+     * time or no profile is registered for its module type.
+     * This waits for the reply, so it must not be called from a button press listener, which
+     * runs on the thread that reads the reply.
+     * @param timeoutMillis	How long to wait for the LCD to answer
+     * @return				The profile now selected
+     */
+    public LcdDeviceProfile detectDeviceProfile(long timeoutMillis) {
+    	try {
+    		int moduleType = this.queryModuleType().get(timeoutMillis, TimeUnit.MILLISECONDS).intValue();
+    		LcdDeviceProfile detected = LcdDeviceProfile.forModuleType(moduleType);
+    		if (detected == null) {
+    			logger.info("no device profile registered for module type " + moduleType);
+    		}
+    		else if (detected != profile) {
+    			this.setDeviceProfile(detected);
+    			this.setFlowControlOn();
+    			this.clearScreen();
+    		}
+    	}
+    	catch (Exception e) {
+    		logger.error("the module type could not be read", e);
+    	}
+    	return profile;
+    }
+    
+    ///
+    /// This section provides the queries answered by the LCD
+    ///
+    
+    /**
+     * Asks the LCD for its firmware version. Queries can be sent one after another without
+     * waiting; the replies are matched to them in order as they arrive.
+     * @return	The version byte, for example 0x19 for version 1.9
+     */
+    public Future<Integer> queryVersion() {
+    	return this.sendQuery(new LcdQuery<Integer>(MatrixOrbitalCommands.READ_VERSION, 1) {
+    		protected Integer decode(byte[] reply) {
+    			return Integer.valueOf(reply[0] & 0xFF);
+    		}
+    	});
+    }
+    
+    /**
+     * Asks the LCD for its module type.
+     * @return	The module type code, as listed in the Matrix Orbital manual
+     */
+    public Future<Integer> queryModuleType() {
+    	return this.sendQuery(new LcdQuery<Integer>(MatrixOrbitalCommands.READ_MODULE_TYPE, 1) {
+    		protected Integer decode(byte[] reply) {
+    			return Integer.valueOf(reply[0] & 0xFF);
+    		}
+    	});
+    }
+    
+    /**
+     * Asks the LCD how much of its filesystem is free.
+     * @return	The free space in bytes
+     */
+    public Future<Long> queryFilesystemSpace() {
+    	return this.sendQuery(new LcdQuery<Long>(MatrixOrbitalCommands.GET_FILESYSTEM_SPACE, 4) {
+    		protected Long decode(byte[] reply) {
+    			return Long.valueOf((reply[0] & 0xFFL) | ((reply[1] & 0xFFL) << 8) |
+    					((reply[2] & 0xFFL) << 16) | ((reply[3] & 0xFFL) << 24));
+    		}
+    	});
+    }
+    
+    /**
+     * Queues a query and registers it with the inbound decoder, which completes it when the
+     * reply arrives. If the LCD is not connected, or the queue policy refuses the query, it
+     * fails straight away.
+     * @param query	The query
+     * @return		The query, as the future of its reply
+     */
+    private synchronized <T> Future<T> sendQuery(LcdQuery<T> query) {
+    	if (!connected) {
+    		query.completeExceptionally(new IOException("LCD not connected"));
+    		return query;
+    	}
+    	// a query never expires or is dropped, or the decoder would take the next byte the LCD
+    	// sends as the reply to a query that was never written
+    	MatrixOrbitalCodec.encodeCommand(command(), query.getCommand());
+    	boolean queued = enqueue(command.array(), 0, command.position(), LcdByteQueue.NEVER_DROP);
+    	command.clear();
+    	if (!queued) {
+    		query.completeExceptionally(new IOException("outbound queue full, query refused"));
+    		return query;
+    	}
+    	inboundDecoder.expect(query, inputBytes.getTotalPut());
+    	return query;
     }
     
     ///
@@ -466,10 +1085,32 @@ public class MatrixOrbitalApi implements Runnable {
      * @param led	The LED number to be updated (defined in the com.simmetry.lcd.enums package)
      */
     private synchronized void updateLed(LedNumber led) {
+        this.encodeLed(command(), led);
+        enqueue(command);
+    }
+    
+    /**
+     * Called from the service thread to send a blink step of the given LED. The API lock is not
+     * taken; if the queue is full the step is skipped and the next one sends the LED state.
+     * @param led	The LED number to be updated
+     */
+    private void blinkLed(LedNumber led) {
+    	blinkCommand.clear();
+    	this.encodeLed(blinkCommand, led);
+    	inputBytes.offer(blinkCommand.array(), 0, blinkCommand.position());
+    }
+    
+    /**
+     * Encodes the commands that set the given LED to match the attribute settings.
+     * @param out	The buffer to encode the commands into
+     * @param led	The LED number to be updated (defined in the com.simmetry.lcd.enums package)
+     */
+    private void encodeLed(ByteBuffer out, LedNumber led) {
         
-        byte[] b = new byte[6];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[3] = MatrixOrbitalCommands.START_BYTE;
+        byte firstOutput = 0;
+        byte secondOutput = 0;
+        byte firstPower = 0;
+        byte secondPower = 0;
         
         LedColor color = LedColor.NULL;
         LedPower power = LedPower.NULL;
@@ -478,47 +1119,46 @@ public class MatrixOrbitalApi implements Runnable {
             case ONE:
                 color = ledOneColor;
                 power = ledOnePower;
-                b[2] = MatrixOrbitalCommands.GP_OUTPUT_TWO;
-                b[5] = MatrixOrbitalCommands.GP_OUTPUT_ONE;
+                firstOutput = MatrixOrbitalCommands.GP_OUTPUT_TWO;
+                secondOutput = MatrixOrbitalCommands.GP_OUTPUT_ONE;
                 break;
             case TWO:
                 color = ledTwoColor;
                 power = ledTwoPower;
-                b[2] = MatrixOrbitalCommands.GP_OUTPUT_FOUR;
-                b[5] = MatrixOrbitalCommands.GP_OUTPUT_THREE;
+                firstOutput = MatrixOrbitalCommands.GP_OUTPUT_FOUR;
+                secondOutput = MatrixOrbitalCommands.GP_OUTPUT_THREE;
                 break;
             case THREE:
                 color = ledThreeColor;
                 power = ledThreePower;
-                b[2] = MatrixOrbitalCommands.GP_OUTPUT_SIX;
-                b[5] = MatrixOrbitalCommands.GP_OUTPUT_FIVE;
+                firstOutput = MatrixOrbitalCommands.GP_OUTPUT_SIX;
+                secondOutput = MatrixOrbitalCommands.GP_OUTPUT_FIVE;
                 break;
         }
         
         if (power == LedPower.OFF) {
-            b[1] = MatrixOrbitalCommands.GP_OUTPUT_PWR_ON;
-            b[4] = MatrixOrbitalCommands.GP_OUTPUT_PWR_ON;
+            firstPower = MatrixOrbitalCommands.GP_OUTPUT_PWR_ON;
+            secondPower = MatrixOrbitalCommands.GP_OUTPUT_PWR_ON;
         }
         else {
             switch (color) {
                 case GREEN:
-                    b[1] = MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF;
-                    b[4] = MatrixOrbitalCommands.GP_OUTPUT_PWR_ON;
+                    firstPower = MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF;
+                    secondPower = MatrixOrbitalCommands.GP_OUTPUT_PWR_ON;
                     break;
                 case YELLOW:
-                    b[1] = MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF;
-                    b[4] = MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF;
+                    firstPower = MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF;
+                    secondPower = MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF;
                     break;
                 case RED:
-                    b[1] = MatrixOrbitalCommands.GP_OUTPUT_PWR_ON;
-                    b[4] = MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF;
+                    firstPower = MatrixOrbitalCommands.GP_OUTPUT_PWR_ON;
+                    secondPower = MatrixOrbitalCommands.GP_OUTPUT_PWR_OFF;
                     break;
             }
         }
         
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+        MatrixOrbitalCodec.encodeCommand(out, firstPower, firstOutput & 0xFF);
+        MatrixOrbitalCodec.encodeCommand(out, secondPower, secondOutput & 0xFF);
     }
     
     ///
@@ -529,13 +1169,9 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public synchronized void clearScreen() {
     	
-    	byte[] b = new byte[2];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.CLEAR_SCREEN;
-        
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+    	MatrixOrbitalCodec.encodeClearScreen(command());
+        enqueue(command);
+        screenState.clear();
     }
     
     /**
@@ -544,28 +1180,26 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public synchronized void setBacklightBrightness(BrightnessLevel level) {
     	
-    	byte[] b = new byte[3];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.SET_BACKLIGHT_BRIGHTNESS;
+    	byte value = MatrixOrbitalCommands.BACKLIGHT_OFF;
         
         switch (level) {
 	        case OFF:
-	            b[2] = MatrixOrbitalCommands.BACKLIGHT_OFF;
+	            value = MatrixOrbitalCommands.BACKLIGHT_OFF;
 	            break;
 	        case LOW:
-	            b[2] = MatrixOrbitalCommands.BACKLIGHT_LOW;
+	            value = MatrixOrbitalCommands.BACKLIGHT_LOW;
 	            break;
 	        case MEDIUM:
-	            b[2] = MatrixOrbitalCommands.BACKLIGHT_MEDIUM;
+	            value = MatrixOrbitalCommands.BACKLIGHT_MEDIUM;
 	            break;
 	        case HIGH:
-	            b[2] = MatrixOrbitalCommands.BACKLIGHT_HIGH;
+	            value = MatrixOrbitalCommands.BACKLIGHT_HIGH;
 	            break;
 	    }
         
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+        MatrixOrbitalCodec.encodeCommand(command(), MatrixOrbitalCommands.SET_BACKLIGHT_BRIGHTNESS, value & 0xFF);
+        enqueue(command);
+        brightnessLevel = value & 0xFF;
     }
     
     /**
@@ -578,16 +1212,13 @@ public class MatrixOrbitalApi implements Runnable {
     	// convert the int level (percent) to a floating 0.0 - 1.0 factor
     	float flevel = (((float)level)/100.0f);
     	
-    	// create the byte array, including calculating the brightness level using the factor
-    	byte[] b = new byte[3];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.SET_BACKLIGHT_BRIGHTNESS;
-        b[2] = (byte)((int)(flevel * 255.0f));
+    	// encode the command, including calculating the brightness level using the factor
+    	int value = ((int)(flevel * 255.0f)) & 0xFF;
+        MatrixOrbitalCodec.encodeCommand(command(), MatrixOrbitalCommands.SET_BACKLIGHT_BRIGHTNESS, value);
         
-        // write the byte array to the serial interface to the LCD
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+        // write the command to the serial interface to the LCD
+        enqueue(command);
+        brightnessLevel = value;
     }
     
     /**
@@ -600,16 +1231,13 @@ public class MatrixOrbitalApi implements Runnable {
     	// convert the int level (percent) to a floating 0.0 - 1.0 factor
     	float flevel = (((float)level)/100.0f);
     	
-    	// create the byte array, including calculating the brightness level using the factor
-    	byte[] b = new byte[3];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.SAVE_BACKLIGHT_BRIGHTNESS;
-        b[2] = (byte)((int)(flevel * 255.0f));
+    	// encode the command, including calculating the brightness level using the factor
+    	int value = ((int)(flevel * 255.0f)) & 0xFF;
+        MatrixOrbitalCodec.encodeCommand(command(), MatrixOrbitalCommands.SAVE_BACKLIGHT_BRIGHTNESS, value);
         
-        // write the byte array to the serial interface to the LCD
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+        // write the command to the serial interface to the LCD
+        enqueue(command);
+        brightnessLevel = value;
     }
     
     /**
@@ -622,16 +1250,13 @@ public class MatrixOrbitalApi implements Runnable {
     	// convert the int level (percent) to a floating 0.0 - 1.0 factor
     	float flevel = (((float)level)/100.0f);
     	
-    	// create the byte array, including calculating the contrast level using the factor
-    	byte[] b = new byte[3];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.SET_BACKLIGHT_CONTRAST;
-        b[2] = (byte)((int)(flevel * 255.0f));
+    	// encode the command, including calculating the contrast level using the factor
+    	int value = ((int)(flevel * 255.0f)) & 0xFF;
+        MatrixOrbitalCodec.encodeCommand(command(), MatrixOrbitalCommands.SET_BACKLIGHT_CONTRAST, value);
         
-        // write the byte array to the serial interface to the LCD
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+        // write the command to the serial interface to the LCD
+        enqueue(command);
+        contrastLevel = value;
     }
     
     /**
@@ -644,16 +1269,13 @@ public class MatrixOrbitalApi implements Runnable {
     	// convert the int level (percent) to a floating 0.0 - 1.0 factor
     	float flevel = (((float)level)/100.0f);
     	
-    	// create the byte array, including calculating the contrast level using the factor
-    	byte[] b = new byte[3];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.SAVE_BACKLIGHT_CONTRAST;
-        b[2] = (byte)((int)(flevel * 255.0f));
+    	// encode the command, including calculating the contrast level using the factor
+    	int value = ((int)(flevel * 255.0f)) & 0xFF;
+        MatrixOrbitalCodec.encodeCommand(command(), MatrixOrbitalCommands.SAVE_BACKLIGHT_CONTRAST, value);
         
-        // write the byte array to the serial interface to the LCD
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+        // write the command to the serial interface to the LCD
+        enqueue(command);
+        contrastLevel = value;
     }
     
  
@@ -665,13 +1287,8 @@ public class MatrixOrbitalApi implements Runnable {
      * Moves the Cursor to the home position (upper left hand corner).
      */
     public synchronized void moveCursorHome(){
-    	byte[] b = new byte[2];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.RESET_CURSOR;
-        
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+    	MatrixOrbitalCodec.encodeCursorHome(command());
+        enqueue(command);
     }
     
     /**
@@ -692,8 +1309,8 @@ public class MatrixOrbitalApi implements Runnable {
     	
     	// Before attempting to write to the row, first check to make sure that
     	// the request is within the parameters of the LCD module.
-    	if (!(row < MatrixOrbitalSpecifications.FIRST_LCD_ROW || row > MatrixOrbitalSpecifications.LAST_LCD_ROW) ||
-    	    !(text.length() > MatrixOrbitalSpecifications.ROW_LENGTH)) {
+    	if (!(row < 1 || row > profile.getTextRows()) &&
+    	    !(text.length() > profile.getTextColumns())) {
     		
     		// Calculate the starting column based on the alignment and length
     		// of the text that needs to be written
@@ -704,11 +1321,11 @@ public class MatrixOrbitalApi implements Runnable {
 	    			column = 1;
 	    			break;
 	    		case RIGHT:
-	    			column = (MatrixOrbitalSpecifications.ROW_LENGTH -
+	    			column = (profile.getTextColumns() -
 	    					     text.length()) + 1;
 	    			break;
 	    		case CENTER:
-	    			column = ((MatrixOrbitalSpecifications.ROW_LENGTH -
+	    			column = ((profile.getTextColumns() -
    					             text.length()) / 2) + 1;
 	    			break;
     		}
@@ -718,49 +1335,27 @@ public class MatrixOrbitalApi implements Runnable {
     		// the minimum number of characters that need to be sent based on
     		// the length of the input text. We also need to calculate where
     		// to begin writing the text if we are going to clear the row.
-            byte[] b;
-            int startText;
+            ByteBuffer b = command();
+            int startColumn;
             
             if (clearRow) {
-            	b = new byte[MatrixOrbitalSpecifications.ROW_LENGTH + 4];
+            	startColumn = 1;
+            	MatrixOrbitalCodec.encodeSetCursor(b, startColumn, row);
             	
-                for (int i = 0; i < b.length; i++) {
-                    b[i] = (byte)' ';
+                for (int i = 1; i <= profile.getTextColumns(); i++) {
+                	int index = i - column;
+                    b.put(index >= 0 && index < text.length() ? (byte)text.charAt(index) : (byte)' ');
                 }
-                
-                startText = (column - 1) + 4;
             }
             else {
-            	b = new byte[text.length() + 4];
-            	
-            	startText = 4;
-            }
-
-            b[0] = MatrixOrbitalCommands.START_BYTE;
-            b[1] = MatrixOrbitalCommands.SET_CURSOR;
-            
-            if (clearRow) {
-            	b[2] = (byte)1;
-            }
-            else {
-                b[2] = (byte)column;            	
-            }
-
-            b[3] = (byte)row;
-            
-            int stopText = startText + text.length();
-            if( stopText > startText + MatrixOrbitalSpecifications.ROW_LENGTH)
-            	stopText = startText + MatrixOrbitalSpecifications.ROW_LENGTH;
-            
-            for (int i = startText; i < stopText; i++) {
-                b[i] = (byte)text.charAt(i-startText);
+            	startColumn = column;
+            	MatrixOrbitalCodec.encodeText(b, startColumn, row, text, 0,
+            			Math.min(text.length(), profile.getTextColumns()));
             }
             
-            for (int i = 0; i < b.length; i++) {
-                inputBytes.add(new Byte(b[i]));
-            }
+            screenState.writeText(startColumn, row, b.array(), 4, b.position() - 4);
             
-    		return true;
+    		return enqueue(b);
     	}
     	
     	return false;
@@ -776,31 +1371,140 @@ public class MatrixOrbitalApi implements Runnable {
     	this.setRowText(row, "", TextAlignment.CENTER, true);
     }
     
+    /**
+     * Writes the given text to the given row starting at the given column, leaving the rest of
+     * the row as it is. Characters that would fall past the end of the row are not sent.
+     * @param row		The row to write the text to
+     * @param column	The column to start at, the first column is 1
+     * @param text		The text string to write
+     * @return			True if the write is sucessful, false if the row or column is out of range
+     */
+    public synchronized boolean setRowTextAt(int row, int column, String text) {
+    	if (row < 1 || row > profile.getTextRows() ||
+    		column < 1 || column > profile.getTextColumns()) {
+    		return false;
+    	}
+    	
+    	int length = Math.min(text.length(), profile.getTextColumns() - column + 1);
+    	MatrixOrbitalCodec.encodeText(command(), column, row, text, 0, length);
+    	
+    	screenState.writeText(column, row, command.array(), 4, length);
+    	return enqueue(command);
+    }
+    
+    /**
+     * Changes the given row to show the given text, sending only the characters that differ
+     * from what the row shows now. Differing characters close together are sent as one span,
+     * and a span is only split where the matching characters between them cost more to send
+     * than another SET_CURSOR.
+     * @param row	The row to write the text to
+     * @param text	The text the row should show, blank padded or cut to ROW_LENGTH
+     * @return		True if the write is sucessful, false if the row is out of range
+     */
+    public synchronized boolean updateRowText(int row, String text) {
+    	if (row < 1 || row > profile.getTextRows()) {
+    		return false;
+    	}
+    	
+    	char[] wanted = new char[profile.getTextColumns()];
+    	for (int c = 0; c < wanted.length; c++) {
+    		wanted[c] = c < text.length() ? text.charAt(c) : ' ';
+    	}
+    	
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	LcdScreenState.writeRowChanges(row, screenState.getRowText(row).toCharArray(), wanted, out);
+    	if (out.size() > 0) {
+    		screenState.writeText(1, row, new String(wanted));
+    		return enqueue(out.toByteArray());
+    	}
+    	return true;
+    }
+    
+    /**
+     * Changes the whole screen, text and graphics, to match the given screen state, with the
+     * fewest bytes this API knows of: either only what differs from the screen as this API last
+     * drew it, or CLEAR_SCREEN followed by a redraw of the whole screen, whichever is shorter.
+     * @param target	The screen to show
+     */
+    public synchronized void drawScreen(LcdScreenState target) {
+    	this.sendScreenDelta(new LcdScreenDelta(screenState, target, drawingColor));
+    }
+    
+    /**
+     * Changes the whole screen with commands encoded beforehand, so nothing is encoded again.
+     * The commands are only sent if the LCD shows the screen and has the drawing color they
+     * were encoded for; otherwise the change is encoded afresh as with drawScreen().
+     * @param delta	The change of screen
+     * @return		True if the commands of the delta were sent as they are
+     */
+    public synchronized boolean drawScreen(LcdScreenDelta delta) {
+    	if (delta.getColorBefore() != drawingColor || !screenState.equals(delta.getFrom())) {
+    		this.drawScreen(delta.getTo());
+    		return false;
+    	}
+    	this.sendScreenDelta(delta);
+    	return true;
+    }
+    
+    private void sendScreenDelta(LcdScreenDelta delta) {
+    	if (delta.size() > 0) {
+    		enqueue(delta.getCommands());
+    	}
+    	drawingColor = delta.getColorAfter();
+    	screenState.copyFrom(delta.getTo());
+    }
+    
+    /**
+     * Returns the text of the given row as this API last wrote it.
+     * @param row	The row
+     * @return		The row text, always ROW_LENGTH characters with blanks where nothing was written
+     */
+    public synchronized String getRowText(int row) {
+    	return screenState.getRowText(row);
+    }
+    
+    /**
+     * Draws text in the given font at any pixel position, unlike setRowText() which is limited
+     * to the character grid. The text is drawn on the host and sent with drawBitmap(), so only the
+     * pixels that change are transmitted, and recently drawn strings are not rendered again.
+     * @param font		The font, see LcdFont.get()
+     * @param text		The text string to write
+     * @param x_loc		X location of the left edge of the text
+     * @param y_loc		Y location of the top of the text
+     * @param color		The color of the text
+     * @param opaque	True to also fill the background of the text in the opposite color
+     */
+    public synchronized void drawText(LcdFont font, String text, int x_loc, int y_loc,
+    		                          DrawingColor color, boolean opaque) {
+    	LcdBitmap target = this.getGraphics();
+    	textRenderer.drawText(target, font, text, x_loc, y_loc, color, opaque);
+    	this.drawBitmap(target);
+    }
+    
     ///
     /// This section provide the LCD Drawing primitives functions
     ///
     
+    /**
+     * Returns the drawing color last set with setDrawingColor(), or changed by drawBitmap().
+     * @return	The current drawing color
+     */
+    public synchronized DrawingColor getDrawingColor() {
+    	return drawingColor;
+    }
+    
     /**
      * Sets the drawing color, either WHITE or BLACK
      * @param color	The color, as defined by the DrawingColor enum
      */
     public synchronized void setDrawingColor(DrawingColor color) {
     	
-    	// create the byte array
-    	byte[] b = new byte[3];
-        b[0] = MatrixOrbitalCommands.START_BYTE;
-        b[1] = MatrixOrbitalCommands.SET_DRAWING_COLOR;
-        if( color == DrawingColor.WHITE ){
-        	b[2] = (byte)0x0; // zero is white
-        }
-        else{
-        	b[2] = (byte)0xFE; // any non-zero number is black
-        }
+    	// encode the command
+    	MatrixOrbitalCodec.encodeDrawingColor(command(), color);
         
-        // write the byte array to the serial interface to the LCD
-        for (int i = 0; i < b.length; i++) {
-            inputBytes.add(new Byte(b[i]));
-        }
+        // write the command to the serial interface to the LCD
+        enqueue(command);
+        drawingColor = color;
     }
     
     /**
@@ -811,20 +1515,14 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public synchronized void drawPixel(int x_loc, int y_loc){
     	
-    	if( (x_loc >= 0 && x_loc < MatrixOrbitalSpecifications.LCD_WIDTH) && 
-    		(y_loc >= 0 && y_loc < MatrixOrbitalSpecifications.LCD_HEIGHT) ){
+    	if( isOnScreen(x_loc, y_loc) ){
     		
-    		// create the byte array
-    		byte[] b = new byte[4];
-    		b[0] = MatrixOrbitalCommands.START_BYTE;
-    		b[1] = MatrixOrbitalCommands.DRAW_PIXEL;
-    		b[2] = (byte)x_loc;
-    		b[3] = (byte)y_loc;
+    		// encode the command
+    		MatrixOrbitalCodec.encodePixel(command(), x_loc, y_loc);
 
-    		// write the byte array to the serial interface to the LCD
-    		for (int i = 0; i < b.length; i++) {
-    			inputBytes.add(new Byte(b[i]));
-    		}
+    		// write the command to the serial interface to the LCD
+    		enqueue(command);
+    		screenState.getGraphics().set(x_loc, y_loc, drawingColor == DrawingColor.BLACK);
     	}
     }
     
@@ -840,42 +1538,201 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public synchronized void drawLine(int x_loc_a, int y_loc_a, int x_loc_b, int y_loc_b){
     	
-    	if( (x_loc_a >= 0 && x_loc_a < MatrixOrbitalSpecifications.LCD_WIDTH) && 
-    		(y_loc_a >= 0 && y_loc_a < MatrixOrbitalSpecifications.LCD_HEIGHT) &&
-    		(x_loc_b >= 0 && x_loc_b < MatrixOrbitalSpecifications.LCD_WIDTH) && 
-    		(y_loc_b >= 0 && y_loc_b < MatrixOrbitalSpecifications.LCD_HEIGHT) ){
+    	if( isOnScreen(x_loc_a, y_loc_a) && isOnScreen(x_loc_b, y_loc_b) ){
     		
-    		// create the byte array
-    		byte[] b = new byte[6];
-    		b[0] = MatrixOrbitalCommands.START_BYTE;
-    		b[1] = MatrixOrbitalCommands.DRAW_LINE;
-    		b[2] = (byte)x_loc_a;
-    		b[3] = (byte)y_loc_a;
-    		b[4] = (byte)x_loc_b;
-    		b[5] = (byte)y_loc_b;
+    		// encode the command
+    		MatrixOrbitalCodec.encodeLine(command(), x_loc_a, y_loc_a, x_loc_b, y_loc_b);
 
-    		// write the byte array to the serial interface to the LCD
-    		for (int i = 0; i < b.length; i++) {
-    			inputBytes.add(new Byte(b[i]));
+    		// write the command to the serial interface to the LCD
+    		enqueue(command);
+    		screenState.getGraphics().drawLine(x_loc_a, y_loc_a, x_loc_b, y_loc_b, drawingColor == DrawingColor.BLACK);
+    	}
+    }
+    
+    /**
+     * Draws many pixels in one call, using the current drawing color. Nothing is drawn if any
+     * location falls outside the limits of the LCD.
+     * @param xs		X locations of the pixels
+     * @param ys		Y locations of the pixels
+     * @param offset	Index in the arrays of the first pixel
+     * @param count		Number of pixels to draw
+     * @return			True if the pixels were drawn, false if any of them could not be queued
+     */
+    public synchronized boolean drawPixels(int[] xs, int[] ys, int offset, int count) {
+    	for (int i = offset; i < offset + count; i++) {
+    		if (!isOnScreen(xs[i], ys[i])) {
+    			return false;
     		}
     	}
+    	
+    	ByteBuffer b = command();
+    	boolean black = (drawingColor == DrawingColor.BLACK);
+    	boolean queued = true;
+    	for (int i = offset; i < offset + count; i++) {
+    		if (b.remaining() < 4) {
+    			queued &= enqueue(b);
+    		}
+    		MatrixOrbitalCodec.encodePixel(b, xs[i], ys[i]);
+    		screenState.getGraphics().set(xs[i], ys[i], black);
+    	}
+    	return enqueue(b) && queued;
     }
     
+    /**
+     * Draws many separate lines in one call, using the current drawing color. Nothing is drawn
+     * if any location falls outside the limits of the LCD.
+     * @param coords	The lines, four values each: x_loc_a, y_loc_a, x_loc_b, y_loc_b
+     * @param offset	Index in the array of the first value of the first line
+     * @param count		Number of lines to draw
+     * @return			True if the lines were drawn, false if any of them could not be queued
+     */
+    public synchronized boolean drawLines(int[] coords, int offset, int count) {
+    	for (int i = offset; i < offset + 4 * count; i += 2) {
+    		if (!isOnScreen(coords[i], coords[i + 1])) {
+    			return false;
+    		}
+    	}
+    	
+    	ByteBuffer b = command();
+    	boolean black = (drawingColor == DrawingColor.BLACK);
+    	boolean queued = true;
+    	for (int c = offset; c < offset + 4 * count; c += 4) {
+    		if (b.remaining() < 6) {
+    			queued &= enqueue(b);
+    		}
+    		MatrixOrbitalCodec.encodeLine(b, coords[c], coords[c + 1], coords[c + 2], coords[c + 3]);
+    		screenState.getGraphics().drawLine(coords[c], coords[c + 1], coords[c + 2], coords[c + 3], black);
+    	}
+    	return enqueue(b) && queued;
+    }
+    
+    /**
+     * Draws connected lines through a series of locations in one call, using the current drawing
+     * color. After the first line each location costs only a 4 byte CONTINUE_LINE command, which
+     * suits charts. Nothing is drawn if any location falls outside the limits of the LCD.
+     * @param xs		X locations of the points
+     * @param ys		Y locations of the points
+     * @param offset	Index in the arrays of the first point
+     * @param count		Number of points, at least 2
+     * @return			True if the lines were drawn
+     */
+    public synchronized boolean drawPolyline(int[] xs, int[] ys, int offset, int count) {
+    	if (count < 2) {
+    		return false;
+    	}
+    	for (int i = offset; i < offset + count; i++) {
+    		if (!isOnScreen(xs[i], ys[i])) {
+    			return false;
+    		}
+    	}
+    	
+    	// one queue entry, so the CONTINUE_LINE commands are never sent without the DRAW_LINE
+    	// they continue from
+    	ByteBuffer b = (count == 2) ? command() : ByteBuffer.allocate(6 + 4 * (count - 2));
+    	MatrixOrbitalCodec.encodeLine(b, xs[offset], ys[offset], xs[offset + 1], ys[offset + 1]);
+    	for (int i = offset + 2; i < offset + count; i++) {
+    		MatrixOrbitalCodec.encodeContinueLine(b, xs[i], ys[i]);
+    	}
+    	boolean queued = enqueue(b);
+    	
+    	boolean black = (drawingColor == DrawingColor.BLACK);
+    	for (int i = offset + 1; i < offset + count; i++) {
+    		screenState.getGraphics().drawLine(xs[i - 1], ys[i - 1], xs[i], ys[i], black);
+    	}
+    	return queued;
+    }
+    
+    /**
+     * Draw a line from location A to location B in the given style, using the current drawing color
+     * (set using setDrawingColor). The X and Y locations provided must be within the limits of the LCD.
+     * Dashed lines are sent as one native line per dash, dotted lines are drawn on the host and sent
+     * with drawBitmap().
+     * @param style			The line style, as defined by the DrawingStyle enum
+     * @param lower_left	Location A
+     * @param upper_right	Location B
+     */
     public synchronized void drawStylizedLine(DrawingStyle style, Point lower_left, Point upper_right){
     	
     	if(style == DrawingStyle.SOLID) {
     		this.drawLine(lower_left.x_loc, lower_left.y_loc, upper_right.x_loc, upper_right.y_loc);
     	}
     	else if(style == DrawingStyle.DOTTED) {
- 
+    		if (screenState.getGraphics().contains(lower_left.x_loc, lower_left.y_loc) &&
+    			screenState.getGraphics().contains(upper_right.x_loc, upper_right.y_loc)) {
+    			LcdBitmap target = this.getGraphics();
+    			new LcdRasterizer(target).drawLine(drawingColor, style,
+    					lower_left.x_loc, lower_left.y_loc, upper_right.x_loc, upper_right.y_loc);
+    			this.drawBitmap(target);
+    		}
     	}
-    	else if(style == DrawingStyle.DASHED) {
-    		
+    	else if(style == DrawingStyle.DASHED || style == DrawingStyle.DASHED_LONG) {
+    		int[] runs = LcdRasterizer.patternRuns(style,
+    				lower_left.x_loc, lower_left.y_loc, upper_right.x_loc, upper_right.y_loc);
+    		for (int i = 0; i < runs.length; i += 4) {
+    			this.drawLine(runs[i], runs[i + 1], runs[i + 2], runs[i + 3]);
+    		}
     	}
-    	else if(style == DrawingStyle.DASHED_LONG) {
-    		
+    	
+    }
+    
+    /**
+     * Returns a copy of the graphics currently on the LCD, as recorded by this API. Draw on the
+     * copy (for example with LcdRasterizer) and send it back with drawBitmap().
+     * @return	A copy of the LCD graphics
+     */
+    public synchronized LcdBitmap getGraphics() {
+    	return new LcdBitmap(screenState.getGraphics());
+    }
+    
+    /**
+     * Updates the LCD graphics to match the given bitmap. Only the pixels that differ from the
+     * graphics currently on the LCD are sent, as native rectangles, lines and pixels or as one
+     * bitmap transfer, whichever is fewer bytes. While no text is on the screen, clearing the
+     * screen and drawing the bitmap from blank is also considered. The drawing color may be changed.
+     * @param target	The graphics to show, the size of the LCD
+     */
+    public synchronized void drawBitmap(LcdBitmap target) {
+    	if (!profile.hasGraphics()) {
+    		return;
+    	}
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	DrawingColor color = LcdGraphicsEncoder.encode(screenState.getGraphics(), target, drawingColor, out);
+    	
+    	if (out.size() > 0 && screenState.isTextBlank()) {
+    		ByteArrayOutputStream redraw = new ByteArrayOutputStream();
+    		redraw.write(MatrixOrbitalCommands.START_BYTE);
+    		redraw.write(MatrixOrbitalCommands.CLEAR_SCREEN);
+    		DrawingColor redrawColor = LcdGraphicsEncoder.encode(new LcdBitmap(target.getWidth(), target.getHeight()),
+    				target, drawingColor, redraw);
+    		if (redraw.size() < out.size()) {
+    			out = redraw;
+    			color = redrawColor;
+    		}
     	}
     	
+    	if (out.size() > 0) {
+    		enqueue(out.toByteArray());
+    		screenState.getGraphics().copyFrom(target);
+    		drawingColor = color;
+    	}
+    }
+    
+    /**
+     * Draw the outline of a rectangle, using the provided drawing color.
+     * @param color	The color, as defined by the DrawingColor enum
+     * @param rect	The rectangle
+     */
+    public void drawRectangle(DrawingColor color, Rectangle rect) {
+    	this.drawRectangle(color, rect.upperLeft.x_loc, rect.upperLeft.y_loc, rect.lowerRight.x_loc, rect.lowerRight.y_loc);
+    }
+    
+    /**
+     * Draw a solid rectangle, using the provided drawing color.
+     * @param color	The color, as defined by the DrawingColor enum
+     * @param rect	The rectangle
+     */
+    public void drawSolidRectangle(DrawingColor color, Rectangle rect) {
+    	this.drawSolidRectangle(color, rect.upperLeft.x_loc, rect.upperLeft.y_loc, rect.lowerRight.x_loc, rect.lowerRight.y_loc);
     }
     
     /**
@@ -888,30 +1745,14 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public synchronized void drawRectangle(DrawingColor color, int x_loc_a, int y_loc_a, int x_loc_b, int y_loc_b){
     	
-    	if( (x_loc_a >= 0 && x_loc_a < MatrixOrbitalSpecifications.LCD_WIDTH) && 
-    		(y_loc_a >= 0 && y_loc_a < MatrixOrbitalSpecifications.LCD_HEIGHT) &&
-    		(x_loc_b >= 0 && x_loc_b < MatrixOrbitalSpecifications.LCD_WIDTH) && 
-    		(y_loc_b >= 0 && y_loc_b < MatrixOrbitalSpecifications.LCD_HEIGHT) ){
+    	if( isOnScreen(x_loc_a, y_loc_a) && isOnScreen(x_loc_b, y_loc_b) ){
     		
-    		// create the byte array
-    		byte[] b = new byte[7];
-    		b[0] = MatrixOrbitalCommands.START_BYTE;
-    		b[1] = MatrixOrbitalCommands.DRAW_RECTANGLE;
-            if( color == DrawingColor.WHITE ){
-            	b[2] = (byte)0x0; // zero is white
-            }
-            else{
-            	b[2] = (byte)0xFE; // any non-zero number is black
-            }
-    		b[3] = (byte)x_loc_a;
-    		b[4] = (byte)y_loc_a;
-    		b[5] = (byte)x_loc_b;
-    		b[6] = (byte)y_loc_b;
+    		// encode the command
+    		MatrixOrbitalCodec.encodeRectangle(command(), color, x_loc_a, y_loc_a, x_loc_b, y_loc_b);
 
-    		// write the byte array to the serial interface to the LCD
-    		for (int i = 0; i < b.length; i++) {
-    			inputBytes.add(new Byte(b[i]));
-    		}
+    		// write the command to the serial interface to the LCD
+    		enqueue(command);
+    		screenState.getGraphics().drawRectangle(x_loc_a, y_loc_a, x_loc_b, y_loc_b, color == DrawingColor.BLACK);
     	}
     }
     
@@ -925,31 +1766,113 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public synchronized void drawSolidRectangle(DrawingColor color, int x_loc_a, int y_loc_a, int x_loc_b, int y_loc_b){
     	
-    	if( (x_loc_a >= 0 && x_loc_a < MatrixOrbitalSpecifications.LCD_WIDTH) && 
-    		(y_loc_a >= 0 && y_loc_a < MatrixOrbitalSpecifications.LCD_HEIGHT) &&
-    		(x_loc_b >= 0 && x_loc_b < MatrixOrbitalSpecifications.LCD_WIDTH) && 
-    		(y_loc_b >= 0 && y_loc_b < MatrixOrbitalSpecifications.LCD_HEIGHT) ){
+    	if( isOnScreen(x_loc_a, y_loc_a) && isOnScreen(x_loc_b, y_loc_b) ){
     		
-    		// create the byte array
-    		byte[] b = new byte[7];
-    		b[0] = MatrixOrbitalCommands.START_BYTE;
-    		b[1] = MatrixOrbitalCommands.DRAW_SOLID_RECTANGLE;
-            if( color == DrawingColor.WHITE ){
-            	b[2] = (byte)0x0; // zero is white
-            }
-            else{
-            	b[2] = (byte)0xFE; // any non-zero number is black
-            }
-    		b[3] = (byte)x_loc_a;
-    		b[4] = (byte)y_loc_a;
-    		b[5] = (byte)x_loc_b;
-    		b[6] = (byte)y_loc_b;
+    		// encode the command
+    		MatrixOrbitalCodec.encodeSolidRectangle(command(), color, x_loc_a, y_loc_a, x_loc_b, y_loc_b);
 
-    		// write the byte array to the serial interface to the LCD
-    		for (int i = 0; i < b.length; i++) {
-    			inputBytes.add(new Byte(b[i]));
-    		}
+    		// write the command to the serial interface to the LCD
+    		enqueue(command);
+    		screenState.getGraphics().fillRectangle(x_loc_a, y_loc_a, x_loc_b, y_loc_b, color == DrawingColor.BLACK);
+    	}
+    }
+    
+    ///
+    /// This section provides the LCD filesystem functions, see also LcdAssetCache
+    ///
+    
+    /**
+     * Uploads a bitmap to the filesystem of the LCD, replacing any bitmap with the same
+     * reference number, so it can be drawn with drawSavedBitmap() in five bytes.
+     * @param refId		The reference number, 1 to 255
+     * @param bitmap	The bitmap, at most 255 pixels each way
+     * @return			False if the arguments are out of range, the LCD has no filesystem
+     * 					or the upload could not be queued
+     */
+    public synchronized boolean uploadBitmap(int refId, LcdBitmap bitmap) {
+    	int width = bitmap.getWidth();
+    	int height = bitmap.getHeight();
+    	if (!profile.supports(MatrixOrbitalCommands.UPLOAD_BITMAP) || refId < 1 || refId > 255 ||
+    		width < 1 || width > 255 || height < 1 || height > 255) {
+    		return false;
+    	}
+    	ByteArrayOutputStream pixels = new ByteArrayOutputStream();
+    	LcdGraphicsEncoder.writePixels(bitmap, 0, 0, width - 1, height - 1, pixels);
+    	
+    	ByteBuffer b = ByteBuffer.allocate(7 + pixels.size());
+    	MatrixOrbitalCodec.encodeUploadHeader(b, MatrixOrbitalCommands.UPLOAD_BITMAP, refId, 2 + pixels.size());
+    	b.put((byte)width);
+    	b.put((byte)height);
+    	b.put(pixels.toByteArray());
+    	return enqueueFilesystem(b);
+    }
+    
+    /**
+     * Draws a bitmap saved on the LCD with uploadBitmap(), both its BLACK and WHITE pixels.
+     * @param refId		The reference number of the bitmap
+     * @param bitmap	The bitmap that was uploaded, to record what the LCD will show
+     * @param x_loc		X location of the left edge of the bitmap
+     * @param y_loc		Y location of the top of the bitmap
+     * @return			False if the bitmap does not fit on the LCD or could not be queued
+     */
+    public synchronized boolean drawSavedBitmap(int refId, LcdBitmap bitmap, int x_loc, int y_loc) {
+    	if (!isOnScreen(x_loc, y_loc) ||
+    		!isOnScreen(x_loc + bitmap.getWidth() - 1, y_loc + bitmap.getHeight() - 1)) {
+    		return false;
+    	}
+    	MatrixOrbitalCodec.encodeDrawSavedBitmap(command(), refId, x_loc, y_loc);
+    	if (!enqueue(command)) {
+    		return false;
+    	}
+    	screenState.getGraphics().blit(bitmap, x_loc, y_loc, true, true);
+    	return true;
+    }
+    
+    /**
+     * Uploads a font file to the filesystem of the LCD, replacing any font with the same
+     * reference number.
+     * @param refId	The reference number, 1 to 255
+     * @param font	The font file, at most 65535 bytes
+     * @return		False if the arguments are out of range, the LCD has no filesystem
+     * 				or the upload could not be queued
+     */
+    public synchronized boolean uploadFont(int refId, byte[] font) {
+    	if (!profile.supports(MatrixOrbitalCommands.UPLOAD_FONT) || refId < 1 || refId > 255 ||
+    		font.length < 1 || font.length > 0xFFFF) {
+    		return false;
+    	}
+    	ByteBuffer b = ByteBuffer.allocate(5 + font.length);
+    	MatrixOrbitalCodec.encodeUploadHeader(b, MatrixOrbitalCommands.UPLOAD_FONT, refId, font.length);
+    	b.put(font);
+    	return enqueueFilesystem(b);
+    }
+    
+    /**
+     * Selects the font the LCD writes text in. The text rows kept by this API assume the
+     * rows and columns of the device profile, so a font of another size should only be used
+     * for text written with the cursor set by the caller.
+     * @param refId	The reference number of a font uploaded with uploadFont(), or 1 for the
+     * 				font the LCD starts with
+     */
+    public synchronized boolean setCurrentFont(int refId) {
+    	if (!profile.supports(MatrixOrbitalCommands.SET_CURRENT_FONT)) {
+    		return false;
+    	}
+    	MatrixOrbitalCodec.encodeSetCurrentFont(command(), refId);
+    	return enqueueFilesystem(command);
+    }
+    
+    /**
+     * Deletes a file from the filesystem of the LCD.
+     * @param type	FILE_TYPE_FONT or FILE_TYPE_BITMAP of MatrixOrbitalCommands
+     * @param refId	The reference number of the file
+     */
+    public synchronized boolean deleteFile(byte type, int refId) {
+    	if (!profile.supports(MatrixOrbitalCommands.DELETE_FILE)) {
+    		return false;
     	}
+    	MatrixOrbitalCodec.encodeDeleteFile(command(), type, refId);
+    	return enqueueFilesystem(command);
     }
     
     ///
@@ -967,7 +1890,8 @@ public class MatrixOrbitalApi implements Runnable {
     	int led_three_counter = 0;
     	int sleep_time_millis = 4;
     	
-        while (true) {
+        // runs until close() or a new connect replaces this thread
+        while (serviceThread == Thread.currentThread()) {
         	
 			try {
 				// sleep the thread for 'sleep_time_millis' milliseconds. so we will be checking for read/writes
@@ -975,6 +1899,9 @@ public class MatrixOrbitalApi implements Runnable {
 				Thread.sleep(sleep_time_millis);
 			}
 			catch (InterruptedException ieError) {
+				if (serviceThread != Thread.currentThread()) {
+					break;
+				}
 				logger.error(ieError.toString(), ieError);
 			}
 			
@@ -993,7 +1920,7 @@ public class MatrixOrbitalApi implements Runnable {
     						else{
     							ledOnePower = LedPower.ON;
     						}
-    						updateLed(LedNumber.ONE);
+    						blinkLed(LedNumber.ONE);
     						// reset the counter
     						led_one_counter = 0;
     					}
@@ -1011,7 +1938,7 @@ public class MatrixOrbitalApi implements Runnable {
     						else{
     							ledTwoPower = LedPower.ON;
     						}
-    						updateLed(LedNumber.TWO);
+    						blinkLed(LedNumber.TWO);
     						// reset the counter
     						led_two_counter = 0;
     					}
@@ -1029,7 +1956,7 @@ public class MatrixOrbitalApi implements Runnable {
     						else{
     							ledThreePower = LedPower.ON;
     						}
-    						updateLed(LedNumber.THREE);
+    						blinkLed(LedNumber.THREE);
     						// reset the counter
     						led_three_counter = 0;
     					}
@@ -1047,18 +1974,30 @@ public class MatrixOrbitalApi implements Runnable {
     			// Check if there is any data from the LCD waiting to be read. If
     			// there is data, then read it and trigger any events.
     			try {
-    				int readBytes = apiReader.available();
-    				byte b;
-    				for (int i = 0; i < readBytes; i++) {
-    					b = (byte)apiReader.read();
-    					outputBytes.add(new Byte(b));
+    				int available = apiReader.available();
+    				if (available > 0) {
+    					keyArrival = System.nanoTime();
+    				}
+    				while (available > 0) {
+    					int readBytes = apiReader.read(readChunk, 0, Math.min(available, readChunk.length));
+    					if (readBytes <= 0) {
+    						break;
+    					}
+    					outputBytes.put(readChunk, 0, readBytes);
+    					LcdTrafficRecorder recorder = trafficRecorder;
+    					if (recorder != null) {
+    						recorder.recordInbound(readChunk, 0, readBytes);
+    					}
+    					available -= readBytes;
     				}
-    				if (outputBytes.size() > 0){
+    				if (!outputBytes.isEmpty()){
     					executeEventHandlers();
     				}
+    				inboundDecoder.expire(inputBytes.getTotalPolled(), System.nanoTime(), QUERY_TIMEOUT_NANOS);
     			}
     			catch (IOException ioeError) {
     				logger.error(ioeError.toString(), ioeError);
+    				this.linkFailed();
     				continue;
     			}
 
@@ -1066,33 +2005,554 @@ public class MatrixOrbitalApi implements Runnable {
     			// Check if any commands are waiting to be written to the LCD. If
     			// there are commands to be written, then send them.
     			try {
-    				Byte b;
-    				// if flow control is ok and the buffer is not empty, write up to 8 bytes to the LCD
+    				// if flow control is ok and the buffer is not empty, write one chunk to the LCD
+    				// commands past their deadline are dropped as they reach the front of the queue,
+    				// also while the LCD is not taking bytes so they do not hold the queue up
+    				long now = System.nanoTime();
     				if(flowing==true && !inputBytes.isEmpty()){
-    					int size = inputBytes.size();
-    					int max = (size<8?size:8);
-    					int counter = 0;
-    					while(counter < max){
-    						b = inputBytes.poll();
-    						apiWriter.write(b.byteValue());
-    						counter++;
+    					byte[] chunk = writeChunk;
+    					int max = inputBytes.poll(chunk, 0, chunk.length, now);
+    					if (max > 0) {
+    						Object chunkEvent = LcdFlightEvents.writeChunkBegin();
+    						apiWriter.write(chunk, 0, max);
+    						apiWriter.flush();
+    						LcdFlightEvents.writeChunkEnd(chunkEvent, max);
+    						inputBytes.recordCompleted(enqueueToWire, System.nanoTime());
+    						
+    						LcdTrafficRecorder recorder = trafficRecorder;
+    						if (recorder != null) {
+    							recorder.recordOutbound(chunk, 0, max);
+    						}
     					}
-    					apiWriter.flush();
+    				}
+    				else {
+    					inputBytes.dropExpired(now);
+    				}
+    				
+    				// callers waiting for room under the BLOCK policy check again
+    				if (roomWaiters > 0) {
+    					synchronized (this) {
+    						notifyAll();
+    					}
+    				}
+    				
+    				// the LCD never got the dropped commands, so the screen is redrawn from the
+    				// recorded state once the queue drains
+    				long expired = inputBytes.getExpiredEntries();
+    				if (expired != expiredSeen) {
+    					expiredSeen = expired;
+    					resyncPending = true;
     				}
     			}
     			catch (IOException ioeError) {
     				logger.error(ioeError.toString(), ioeError);
-    				this.IPdisconnect();
+    				this.linkFailed();
     				continue;
     			}
+    			
+    			// redraw the screen once the queue has drained after commands were lost
+    			if (resyncPending && inputBytes.isEmpty()) {
+    				this.resynchronize();
+    			}
+    			
+    			// save the state once the LCD has been sent everything it was changed by
+    			if (stateDirty && !resyncPending && inputBytes.isEmpty()) {
+    				this.saveState();
+    			}
 
     		} // end if(connected==true)
+    		else if (autoReconnect && connectionType != CONNECTION_NONE) {
+    			this.attemptReconnect();
+    		}
     		
-        } // end while(true)
+        } // end while(serviceThread)
         
     } // end run()
 
     
+    private boolean isOnScreen(int x_loc, int y_loc) {
+    	return x_loc >= 0 && x_loc < profile.getWidth() &&
+    		   y_loc >= 0 && y_loc < profile.getHeight();
+    }
+    
+    /**
+     * @return The command buffer, emptied and ready for the MatrixOrbitalCodec to encode into
+     */
+    private ByteBuffer command() {
+    	command.clear();
+    	return command;
+    }
+    
+    /**
+     * Adds the commands encoded in the buffer to the queue of bytes waiting to be written to
+     * the LCD, and empties the buffer so more commands can be encoded into it.
+     * @param b	The buffer, with the commands between its start and its position
+     */
+    private boolean enqueue(ByteBuffer b) {
+    	boolean queued = enqueue(b.array(), b.arrayOffset(), b.position());
+    	b.clear();
+    	return queued;
+    }
+    
+    /**
+     * Adds a command that changes the LCD filesystem to the queue, where it is never dropped,
+     * and empties the buffer. A refused command is counted as lost.
+     * @param b	The buffer, with the command between its start and its position
+     */
+    private synchronized boolean enqueueFilesystem(ByteBuffer b) {
+    	boolean queued = enqueue(b.array(), b.arrayOffset(), b.position(), LcdByteQueue.NEVER_DROP);
+    	b.clear();
+    	if (queued) {
+    		filesystemQueuedTo = inputBytes.getTotalPut();
+    	}
+    	else {
+    		filesystemLosses++;
+    	}
+    	return queued;
+    }
+    
+    /**
+     * Empties the queue of bytes waiting to be written to the LCD, counting a loss if a command
+     * that changes the LCD filesystem had not been taken yet.
+     */
+    private synchronized void clearOutboundQueue() {
+    	if (inputBytes.getTotalPolled() < filesystemQueuedTo) {
+    		filesystemLosses++;
+    	}
+    	inputBytes.clear();
+    	notifyAll();
+    }
+    
+    /**
+     * Adds the bytes of one or more commands to the queue of bytes waiting to be written to the LCD.
+     * @param b	The command bytes
+     */
+    private boolean enqueue(byte[] b) {
+    	return enqueue(b, 0, b.length);
+    }
+    
+    private synchronized boolean enqueue(byte[] b, int offset, int length) {
+    	return enqueue(b, offset, length, commandDeadline);
+    }
+    
+    /**
+     * Adds the bytes of one or more commands to the queue of bytes waiting to be written to the
+     * LCD, applying the queue policy if they do not fit. The bytes are kept or dropped together.
+     * @param deadline	The System.nanoTime() after which the bytes are not sent, NO_DEADLINE or NEVER_DROP
+     * @return			True if the bytes were queued, false if they were refused
+     */
+    private synchronized boolean enqueue(byte[] b, int offset, int length, long deadline) {
+    	LcdFlightEvents.enqueue(length > 1 ? b[offset + 1] : 0, length);
+    	if (stateFile != null) {
+    		// marked on every command, since stateDirty is also set when nothing has been marked,
+    		// such as after restoreState(); it only writes one byte of the mapped file
+    		stateFile.markChanging();
+    		stateDirty = true;
+    	}
+    	if (inputBytes.offer(b, offset, length, deadline)) {
+    		return true;
+    	}
+    	
+    	// warn once for each run of refused commands, until the screen has been redrawn
+    	boolean warn = !resyncPending;
+    	boolean queued = false;
+    	switch (queuePolicy) {
+    		case BLOCK:
+    			if (Thread.currentThread() != serviceThread) {
+    				try {
+    					queued = awaitRoom(b, offset, length, deadline);
+    				}
+    				catch (InterruptedException ieError) {
+    					Thread.currentThread().interrupt();
+    				}
+    			}
+    			break;
+    		case DROP_OLDEST:
+    			queued = inputBytes.dropOldest(length) && inputBytes.offer(b, offset, length, deadline);
+    			resyncPending = true;
+    			break;
+    		case COALESCE:
+    			// the recorded state already holds everything dropped here, and the restore
+    			// ends with the drawing color the new command was encoded against
+    			inputBytes.dropUnsent();
+    			coalescedQueues++;
+    			byte[] restore = restoreCommands();
+    			queued = inputBytes.offer(restore, 0, restore.length) && inputBytes.offer(b, offset, length, deadline);
+    			resyncPending = !queued;
+    			break;
+    		case FAIL_FAST:
+    			break;
+    	}
+    	
+    	if (!queued) {
+    		if (warn) {
+    			logger.warn("outbound queue full (" + inputBytes.size() + " bytes), " + queuePolicy +
+    					" refused " + length + " bytes");
+    		}
+    		refusedCommands++;
+    		resyncPending = true;
+    	}
+    	return queued;
+    }
+    
+    /**
+     * Waits up to the block timeout for room in the outbound queue and queues the bytes. The API
+     * lock is released while waiting, so that a button press listener on the service thread is
+     * not held up by a caller waiting for that thread to drain the queue. Commands queued by
+     * other threads in the meantime go ahead of these bytes, in which case the screen is redrawn
+     * from the recorded state once the queue drains.
+     * @return	True if the bytes were queued, false if there was no room in time
+     */
+    private synchronized boolean awaitRoom(byte[] b, int offset, int length, long deadline)
+    		throws InterruptedException {
+    	if (length > inputBytes.getLimit()) {
+    		return false;
+    	}
+    	// the bytes may be in the command buffer, which other threads encode into while this one waits
+    	byte[] waiting = Arrays.copyOfRange(b, offset, offset + length);
+    	long putBefore = inputBytes.getTotalPut();
+    	long giveUp = System.nanoTime() + queueBlockNanos;
+    	roomWaiters++;
+    	try {
+    		while (!inputBytes.offer(waiting, 0, length, deadline)) {
+    			long remaining = giveUp - System.nanoTime();
+    			if (remaining <= 0) {
+    				return false;
+    			}
+    			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    		}
+    	}
+    	finally {
+    		roomWaiters--;
+    	}
+    	if (inputBytes.getTotalPut() - length != putBefore) {
+    		resyncPending = true;
+    	}
+    	return true;
+    }
+    
+    /**
+     * Called from the service thread. Once the queue has drained after commands were refused
+     * or dropped, redraws the screen from the recorded state so the LCD matches it again.
+     */
+    private synchronized void resynchronize() {
+    	if (resyncPending && inputBytes.isEmpty()) {
+    		resyncPending = false;
+    		byte[] restore = restoreCommands();
+    		if (!inputBytes.offer(restore, 0, restore.length)) {
+    			resyncPending = true;
+    		}
+    		else {
+    			logger.info("outbound queue drained, screen redrawn from the recorded state");
+    		}
+    	}
+    }
+    
+    ///
+    /// This section provides the lifecycle functions
+    ///
+    
+    /**
+     * Closes the API, waiting up to two seconds for queued commands to be written, see close(long).
+     */
+    public void close() {
+    	this.close(CLOSE_DRAIN_MILLIS);
+    }
+    
+    /**
+     * Waits up to the given time for the commands still queued to be written to the LCD, then
+     * stops the service thread and closes the link, releasing the serial port or socket.
+     * Commands still queued when the time is up are discarded, and pending queries fail. The
+     * recorded screen state and settings are kept, and the API may be connected again.
+     * @param drainTimeoutMillis	The longest time to wait for queued commands to be written
+     * @return						True if every queued command was written
+     */
+    public boolean close(long drainTimeoutMillis) {
+    	boolean drained = true;
+    	
+    	// the service thread writes the queue, so it cannot wait for it to drain
+    	if (connectionType != CONNECTION_NONE && Thread.currentThread() != serviceThread) {
+    		try {
+    			drained = inputBytes.awaitEmpty(TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis));
+    		}
+    		catch (InterruptedException ieError) {
+    			Thread.currentThread().interrupt();
+    			drained = false;
+    		}
+    	}
+    	
+    	this.releaseLink();
+    	synchronized (this) {
+    		drained = drained && inputBytes.isEmpty();
+    		if (!drained) {
+    			logger.info("closed with " + inputBytes.size() + " bytes not written");
+    		}
+    		clearOutboundQueue();
+    		outputBytes.clear();
+    		flowing = true;
+    		resyncPending = false;
+    		
+    		// a state file left unsettled makes the next process clear the screen
+    		if (stateFile != null) {
+    			if (drained) {
+    				this.saveState();
+    			}
+    			stateFile.close();
+    			stateFile = null;
+    			stateDirty = false;
+    		}
+    	}
+    	logger.info("closed");
+    	return drained;
+    }
+    
+    /**
+     * Stops the service thread, waiting for it to finish its current pass, and then closes the
+     * link. Automatic reconnection stops until the next connect. Queued commands are kept.
+     */
+    private void releaseLink() {
+    	Thread thread;
+    	synchronized (this) {
+    		connectionType = CONNECTION_NONE;
+    		thread = serviceThread;
+    		serviceThread = null;
+    	}
+    	
+    	// a thread left over from an earlier connect sees it is no longer the service thread
+    	// and stops; when called from a listener the current thread stops once it returns
+    	if (thread != null && thread != Thread.currentThread()) {
+    		thread.interrupt();
+    		try {
+    			thread.join(SERVICE_STOP_MILLIS);
+    		}
+    		catch (InterruptedException ieError) {
+    			Thread.currentThread().interrupt();
+    		}
+    		if (thread.isAlive()) {
+    			logger.warn("service thread did not stop within " + SERVICE_STOP_MILLIS + " ms");
+    		}
+    	}
+    	
+    	synchronized (this) {
+    		closeLink();
+    		flowing = true;
+    	}
+    }
+    
+    ///
+    /// This section provides the state kept across restarts
+    ///
+    
+    /**
+     * Starts keeping the recorded state of the LCD in a small memory-mapped file: the text rows,
+     * the graphics, the drawing color, the backlight and the LEDs. The file is brought up to date
+     * whenever the queued commands have all been written, so the next process to drive the LCD
+     * can carry on from what it shows instead of clearing it and drawing everything again.
+     * 
+     * Call once connected, in place of the clearScreen() a start up would send. If the file holds
+     * a state for the device profile that was saved with no commands left to send, that state
+     * is taken as what the LCD shows and nothing is sent, so the first drawScreen() or
+     * drawBitmap() sends only what differs. Otherwise the screen is cleared. With probe the LCD
+     * must also answer READ_VERSION and READ_MODULE_TYPE as it did when the file was last
+     * probed; this finds a missing or replaced LCD, but not one that was power cycled.
+     * Blinking LEDs are not restored; close() closes the file.
+     * @param file	The state file, created if it does not exist
+     * @param probe	True to check the LCD answers as before, which takes a few milliseconds
+     * @return		True if the saved state was taken, false if the screen was cleared
+     */
+    public boolean restoreState(File file, boolean probe) {
+    	LcdStateFile state;
+    	try {
+    		state = new LcdStateFile(file, profile);
+    	}
+    	catch (IOException ioeError) {
+    		logger.error("the LCD state file " + file + " could not be opened", ioeError);
+    		this.clearScreen();
+    		return false;
+    	}
+    	
+    	int version = -1;
+    	int moduleType = -1;
+    	if (probe) {
+    		try {
+    			version = queryVersion().get(QUERY_TIMEOUT_NANOS, TimeUnit.NANOSECONDS).intValue();
+    			moduleType = queryModuleType().get(QUERY_TIMEOUT_NANOS, TimeUnit.NANOSECONDS).intValue();
+    		}
+    		catch (Exception e) {
+    			logger.info("the LCD did not answer the probe: " + e);
+    			version = -1;
+    		}
+    	}
+    	
+    	synchronized (this) {
+    		boolean trusted = state.isSettled() && (!probe || state.matchesProbe(version, moduleType));
+    		if (trusted) {
+    			state.load(screenState);
+    			drawingColor = state.getDrawingColor();
+    			brightnessLevel = state.getBrightness();
+    			contrastLevel = state.getContrast();
+    			ledOneColor = state.getLedColor(0);
+    			ledTwoColor = state.getLedColor(1);
+    			ledThreeColor = state.getLedColor(2);
+    			ledOnePower = state.getLedPower(0);
+    			ledTwoPower = state.getLedPower(1);
+    			ledThreePower = state.getLedPower(2);
+    			logger.info("LCD state restored from " + file);
+    		}
+    		else {
+    			state.markChanging();
+    			this.clearScreen();
+    		}
+    		if (probe && version >= 0) {
+    			state.setProbe(version, moduleType);
+    		}
+    		if (stateFile != null) {
+    			stateFile.close();
+    		}
+    		stateFile = state;
+    		stateDirty = true;
+    		return trusted;
+    	}
+    }
+    
+    /**
+     * Saves the recorded state to the state file, if there is one and nothing is left to send.
+     */
+    private synchronized void saveState() {
+    	if (stateFile == null || !inputBytes.isEmpty()) {
+    		return;
+    	}
+    	stateDirty = false;
+    	stateFile.save(screenState, drawingColor, brightnessLevel, contrastLevel,
+    			new LedColor[] { ledOneColor, ledTwoColor, ledThreeColor },
+    			new LedPower[] { ledOnePower, ledTwoPower, ledThreePower });
+    }
+    
+    ///
+    /// This section provides the reconnection functions used after a link failure
+    ///
+    
+    /**
+     * Called from the service thread when a read from or write to the LCD fails. The link is closed and,
+     * if automatic reconnection is enabled, the first reconnect attempt is scheduled.
+     */
+    private void linkFailed() {
+    	closeLink();
+    	if (connectionType == CONNECTION_STREAM) {
+    		// streams handed in by the caller cannot be opened again
+    		connectionType = CONNECTION_NONE;
+    	}
+    	reconnectDelayMillis = RECONNECT_MIN_MILLIS;
+    	nextReconnectMillis = System.currentTimeMillis() + reconnectDelayMillis;
+    	if (autoReconnect && connectionType != CONNECTION_NONE) {
+    		logger.info("link to LCD lost, reconnecting in " + reconnectDelayMillis + " ms");
+    	}
+    }
+    
+    /**
+     * Closes the streams, socket and serial port of the current link, whichever are open.
+     */
+    private void closeLink() {
+    	connected = false;
+    	inboundDecoder.reset("link to LCD closed");
+    	try {
+    		if (apiReader != null) {
+    			apiReader.close();
+    		}
+    		if (apiWriter != null) {
+    			apiWriter.close();
+    		}
+    		if (apiSocket != null) {
+    			apiSocket.close();
+    		}
+    	}
+    	catch (IOException ioeError) {
+    		logger.debug(ioeError.toString(), ioeError);
+    	}
+    	if (serialPort != null) {
+    		serialPort.close();
+    		serialPort = null;
+    	}
+    	apiReader = null;
+    	apiWriter = null;
+    	apiSocket = null;
+    }
+    
+    /**
+     * Called from the service thread while the link is down. When the backoff delay has
+     * passed the last connection is re-opened; on success the last known display state is
+     * restored, on failure the delay is doubled up to RECONNECT_MAX_MILLIS. Callers of the API
+     * carry on queueing commands while the link is opened, see installLink().
+     */
+    private void attemptReconnect() {
+    	long now = System.currentTimeMillis();
+    	if (now < nextReconnectMillis) {
+    		return;
+    	}
+    	
+    	boolean reopened;
+    	if (connectionType == CONNECTION_SERIAL) {
+    		reopened = openSerial(serialPortName, serialSpeed, true);
+    	}
+    	else {
+    		reopened = openSocket(true);
+    	}
+    	
+    	if (reopened) {
+    		logger.info("link to LCD re-established, display state restored");
+    		reconnectDelayMillis = RECONNECT_MIN_MILLIS;
+    	}
+    	else {
+    		reconnectDelayMillis = Math.min(reconnectDelayMillis * 2, RECONNECT_MAX_MILLIS);
+    		nextReconnectMillis = System.currentTimeMillis() + reconnectDelayMillis;
+    		logger.debug("reconnect failed, next attempt in " + reconnectDelayMillis + " ms");
+    	}
+    }
+    
+    /**
+     * Builds the command sequence that puts a freshly connected LCD back into the last known
+     * state: backlight, LEDs, screen contents and finally the drawing color. Only settings that
+     * have been sent before are restored, and the screen is redrawn from the recorded state
+     * using the fewest commands rather than by replaying its history. The drawing color is set
+     * before the screen is drawn, since the LCD may have been left in either color by commands
+     * that were written before the ones lost or dropped.
+     * @return	The restore commands
+     */
+    private synchronized byte[] restoreCommands() {
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	
+    	out.write(MatrixOrbitalCommands.START_BYTE);
+    	out.write(MatrixOrbitalCommands.CLEAR_SCREEN);
+    	
+    	if (brightnessLevel >= 0) {
+    		out.write(MatrixOrbitalCommands.START_BYTE);
+    		out.write(MatrixOrbitalCommands.SET_BACKLIGHT_BRIGHTNESS);
+    		out.write(brightnessLevel);
+    	}
+    	if (contrastLevel >= 0) {
+    		out.write(MatrixOrbitalCommands.START_BYTE);
+    		out.write(MatrixOrbitalCommands.SET_BACKLIGHT_CONTRAST);
+    		out.write(contrastLevel);
+    	}
+    	
+    	ByteBuffer leds = ByteBuffer.allocate(18);
+    	this.encodeLed(leds, LedNumber.ONE);
+    	this.encodeLed(leds, LedNumber.TWO);
+    	this.encodeLed(leds, LedNumber.THREE);
+    	out.write(leds.array(), 0, leds.position());
+    	
+    	out.write(MatrixOrbitalCommands.START_BYTE);
+    	out.write(MatrixOrbitalCommands.SET_DRAWING_COLOR);
+    	out.write(drawingColor == DrawingColor.WHITE ? 0x0 : 0xFE);
+    	if (screenState.writeRestoreCommands(drawingColor, out) != drawingColor) {
+    		out.write(MatrixOrbitalCommands.START_BYTE);
+    		out.write(MatrixOrbitalCommands.SET_DRAWING_COLOR);
+    		out.write(drawingColor == DrawingColor.WHITE ? 0x0 : 0xFE);
+    	}
+    	
+    	return out.toByteArray();
+    }
+    
     ///
     /// This section provides the LCD push button event handler functions
     ///
@@ -1117,70 +2577,92 @@ public class MatrixOrbitalApi implements Runnable {
     }
     
     /**
-     * This method handles the LCD push button events, and translates them from Hex to
-     * the API values and creates a new event to be passed to all registered listeners.
+     * This method handles the bytes read from the LCD. The inbound decoder sorts them into flow
+     * control, query replies and key codes; the key codes are translated from Hex to the API
+     * values and a new event is passed to all registered listeners.
      */
     private void executeEventHandlers() {
     	
-    	while( outputBytes.size() > 0 ){
-    		try{
-	    		byte b = outputBytes.poll();
-	    		
-	    		// if the buffer is almost full
-	    		if(b == (byte)0xFE){
-	    			//logger.debug("LCD Buffer almost full, flow control is ON.");
-	    			this.flowing = false;
-	    		}
-	    		// else if the buffer is almost empty
-	    		else if(b == (byte)0xFF){
-	    			//logger.debug("LCD Buffer almost empty, flow control is OFF.");
-	    			this.flowing = true;
-	    		}
-	    		// else it is a keypad event
-	    		else {
-	    			LcdButtonPressEvent event = null;
-	    			switch(b){
-	    			case 65:
-	    				event = new LcdButtonPressEvent(this, LcdButton.TOP_LEFT);
-	    				break;
-	    			case 66:
-	    				event = new LcdButtonPressEvent(this, LcdButton.UP);
-	    				break;
-	    			case 67:
-	    				event = new LcdButtonPressEvent(this, LcdButton.RIGHT);
-	    				break;
-	    			case 68:
-	    				event = new LcdButtonPressEvent(this, LcdButton.LEFT);
-	    				break;
-	    			case 69:
-	    				event = new LcdButtonPressEvent(this, LcdButton.CENTER);
-	    				break;
-	    			case 71:
-	    				event = new LcdButtonPressEvent(this, LcdButton.BOTTOM_LEFT);
-	    				break;
-	    			case 72:
-	    				event = new LcdButtonPressEvent(this, LcdButton.DOWN);
-	    				break;
-	    			}
-
-	    			if( event != null ){
-	    				for (int i = 0; i < eventListenerVector.size(); i++) {
-	    					try {
-		    					((LcdButtonPressEventListener)eventListenerVector.elementAt(i)).
-		    						lcdButtonPressAction(event);
-	    					}
-	    					catch (Exception e) {
-	    		    			logger.error("Caught exception while executing button press event.");
-	    		    			logger.error(e.toString(), e);
-	    					}
-	    				}
-	    			}
-	    		}
-	    		
+    	int next;
+    	while( (next = outputBytes.poll()) >= 0 ){
+    		byte b = (byte)next;
+    		switch (inboundDecoder.decode(b, inputBytes.getTotalPolled())) {
+    			case LcdInboundDecoder.FLOW_STOP:
+    				// the buffer is almost full
+    				//logger.debug("LCD Buffer almost full, flow control is ON.");
+    				if (this.flowing) {
+    					flowStall = LcdFlightEvents.flowStallBegin();
+    				}
+    				this.flowing = false;
+    				break;
+    			case LcdInboundDecoder.FLOW_START:
+    				// the buffer is almost empty
+    				//logger.debug("LCD Buffer almost empty, flow control is OFF.");
+    				if (!this.flowing) {
+    					LcdFlightEvents.flowStallEnd(flowStall, inputBytes.size());
+    					flowStall = null;
+    				}
+    				this.flowing = true;
+    				break;
+    			case LcdInboundDecoder.KEY:
+    				LcdFlightEvents.keyReceived(b);
+    				this.dispatchKey(b);
+    				break;
+    			case LcdInboundDecoder.REPLY:
+    				// the decoder completes the query once the whole reply is in
+    				break;
+    			default:
+    				logger.debug("Unexpected byte from LCD: 0x" + Integer.toHexString(next));
+    				break;
     		}
-    		catch(NoSuchElementException e){
-    			logger.error(e.toString(), e);
+    	}
+    }
+    
+    /**
+     * Creates the event for a key code and passes it to all registered listeners.
+     * @param b	The key code
+     */
+    private void dispatchKey(byte b) {
+    	LcdButtonPressEvent event = null;
+    	switch(b){
+    	case 65:
+    		event = new LcdButtonPressEvent(this, LcdButton.TOP_LEFT);
+    		break;
+    	case 66:
+    		event = new LcdButtonPressEvent(this, LcdButton.UP);
+    		break;
+    	case 67:
+    		event = new LcdButtonPressEvent(this, LcdButton.RIGHT);
+    		break;
+    	case 68:
+    		event = new LcdButtonPressEvent(this, LcdButton.LEFT);
+    		break;
+    	case 69:
+    		event = new LcdButtonPressEvent(this, LcdButton.CENTER);
+    		break;
+    	case 71:
+    		event = new LcdButtonPressEvent(this, LcdButton.BOTTOM_LEFT);
+    		break;
+    	case 72:
+    		event = new LcdButtonPressEvent(this, LcdButton.DOWN);
+    		break;
+    	}
+
+    	if( event != null ){
+    		Object dispatchEvent = LcdFlightEvents.keyDispatchBegin();
+    		int listeners = eventListenerVector.size();
+    		for (int i = 0; i < eventListenerVector.size(); i++) {
+    			try {
+    				((LcdButtonPressEventListener)eventListenerVector.elementAt(i)).
+    					lcdButtonPressAction(event);
+    			}
+    			catch (Exception e) {
+    				logger.error("Caught exception while executing button press event.");
+    				logger.error(e.toString(), e);
+    			}
     		}
+    		LcdFlightEvents.keyDispatchEnd(dispatchEvent, b, listeners);
+    		keyToListener.record(System.nanoTime() - keyArrival);
     	}
     }
     
@@ -1197,22 +2679,73 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public boolean IPconnect(String i, int p) {
 
+        // connecting again replaces the current link and closes its socket
+        this.releaseLink();
+        
         this.ipAddress = i;
         this.port = p;
         
         // Try to establish communication with the device using the parameters
         // passed into the method
+        if (!openSocket(false)) {
+            return false;
+        }
+        
+        // remember the link so that it can be re-opened if it fails
+        connectionType = CONNECTION_IP;
+        
+        startServiceThread();
+        return true;
+    }
+    
+    /**
+     * This is a development/test method used to connect to an LCD, or a stand-in such as the
+     * LcdSimulator, through a pair of streams. The streams are closed with the link, and are
+     * not re-opened after a link failure.
+     * @param in	The stream of bytes from the LCD
+     * @param out	The stream of bytes to the LCD
+     * @return		true, the streams are already open
+     */
+    public boolean connect(InputStream in, OutputStream out) {
+    	
+    	// connecting again replaces the current link and closes its streams
+    	this.releaseLink();
+    	
+    	synchronized (this) {
+    		apiReader = in;
+    		apiWriter = out;
+    		connected = true;
+    		connectionType = CONNECTION_STREAM;
+    	}
+    	
+    	startServiceThread();
+    	return true;
+    }
+    
+    /**
+     * Opens the socket to the ethernet to serial converter at ipAddress and port, waiting at
+     * most LINK_OPEN_TIMEOUT_MILLIS and without holding the API lock, see installLink().
+     * @param restore	True when reconnecting after a link failure
+     * @return	true if the socket was opened, false if the attempt encountered an exception
+     */
+    private boolean openSocket(boolean restore) {
+        Socket socket = new Socket();
         try {
-            apiSocket = new Socket(ipAddress,port);
-            apiReader = apiSocket.getInputStream();
-            apiWriter = apiSocket.getOutputStream();
-            connected = true;
+            socket.connect(new InetSocketAddress(ipAddress, port), LINK_OPEN_TIMEOUT_MILLIS);
+            if (installLink(null, socket, socket.getInputStream(), socket.getOutputStream(), restore)) {
+                return true;
+            }
         }
         catch (IOException ioeError) {
-            return false;
+            logger.debug(ioeError.toString(), ioeError);
         }
-        serviceThread.start();
-        return true;
+        try {
+            socket.close();
+        }
+        catch (IOException ioeError) {
+            // nothing more can be released
+        }
+        return false;
     }
     
     /**
@@ -1222,12 +2755,16 @@ public class MatrixOrbitalApi implements Runnable {
      */
     public boolean IPdisconnect() {
         
+        // An explicit disconnect is not a link failure, so do not reconnect
+        connectionType = CONNECTION_NONE;
+        
         // Close all stream communication
         try {          
             apiReader.close();
             apiWriter.close();
             apiSocket.close();
             connected = false;
+            inboundDecoder.reset("LCD disconnected");
         }
         catch (IOException ioeError) {
             return false;
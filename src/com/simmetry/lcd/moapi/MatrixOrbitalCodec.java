@@ -0,0 +1,207 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.moapi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the commands listed in MatrixOrbitalCommands into a ByteBuffer supplied by the
+ * caller, at its current position. Nothing is allocated: commands that never change are
+ * encoded once into constant frames, and the others are written byte by byte into the buffer.
+ * A caller that reuses one buffer can therefore encode any number of commands without creating
+ * garbage. If the buffer has too little room a BufferOverflowException is thrown.
+ */
+public final class MatrixOrbitalCodec {
+
+	// the longest single command other than a bitmap: SET_CURSOR and a full row of text
+	public static final int MAX_COMMAND_LENGTH = MatrixOrbitalSpecifications.ROW_LENGTH + 4;
+
+	private static final byte[] CLEAR_SCREEN_FRAME = {
+		MatrixOrbitalCommands.START_BYTE, MatrixOrbitalCommands.CLEAR_SCREEN };
+	private static final byte[] WARM_RESET_FRAME = {
+		MatrixOrbitalCommands.START_BYTE, MatrixOrbitalCommands.WARM_RESET };
+	private static final byte[] CURSOR_HOME_FRAME = {
+		MatrixOrbitalCommands.START_BYTE, MatrixOrbitalCommands.RESET_CURSOR };
+	private static final byte[] FLOW_CONTROL_OFF_FRAME = {
+		MatrixOrbitalCommands.START_BYTE, MatrixOrbitalCommands.FLOW_CONTROL_OFF };
+	private static final byte[] LOCK_FILESYSTEM_FRAME = {
+		MatrixOrbitalCommands.START_BYTE, MatrixOrbitalCommands.SAVE_DATA_LOCK,
+		MatrixOrbitalCommands.SET_DATA_LOCK, MatrixOrbitalCommands.LOCK_FILESYSTEM };
+
+	private MatrixOrbitalCodec() {
+	}
+
+	public static void encodeClearScreen(ByteBuffer out) {
+		out.put(CLEAR_SCREEN_FRAME);
+	}
+
+	public static void encodeWarmReset(ByteBuffer out) {
+		out.put(WARM_RESET_FRAME);
+	}
+
+	public static void encodeCursorHome(ByteBuffer out) {
+		out.put(CURSOR_HOME_FRAME);
+	}
+
+	/**
+	 * Encodes a FLOW_CONTROL_ON command with thresholds of the caller's choosing, such as
+	 * those of an LcdDeviceProfile.
+	 * @param full		Free bytes left in the receive buffer when the LCD asks the host to stop
+	 * @param empty		Free bytes in the receive buffer when the LCD lets the host send again
+	 */
+	public static void encodeFlowControlOn(ByteBuffer out, int full, int empty) {
+		encodeCommand(out, MatrixOrbitalCommands.FLOW_CONTROL_ON, full);
+		out.put((byte)empty);
+	}
+
+	public static void encodeFlowControlOff(ByteBuffer out) {
+		out.put(FLOW_CONTROL_OFF_FRAME);
+	}
+
+	public static void encodeLockFilesystem(ByteBuffer out) {
+		out.put(LOCK_FILESYSTEM_FRAME);
+	}
+
+	/**
+	 * Encodes a command that takes no arguments, such as READ_VERSION.
+	 * @param command	The command byte
+	 */
+	public static void encodeCommand(ByteBuffer out, byte command) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(command);
+	}
+
+	/**
+	 * Encodes a command that takes one byte argument, such as SET_BAUD_RATE,
+	 * SET_BACKLIGHT_BRIGHTNESS or a general purpose output command.
+	 * @param command	The command byte
+	 * @param argument	The argument, 0-255
+	 */
+	public static void encodeCommand(ByteBuffer out, byte command, int argument) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(command);
+		out.put((byte)argument);
+	}
+
+	public static void encodeDrawingColor(ByteBuffer out, DrawingColor color) {
+		encodeCommand(out, MatrixOrbitalCommands.SET_DRAWING_COLOR, colorByte(color));
+	}
+
+	/**
+	 * Encodes a SET_CURSOR command, to be followed by the characters to write there.
+	 * @param column	The column, starting at 1
+	 * @param row		The row, starting at 1
+	 */
+	public static void encodeSetCursor(ByteBuffer out, int column, int row) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(MatrixOrbitalCommands.SET_CURSOR);
+		out.put((byte)column);
+		out.put((byte)row);
+	}
+
+	/**
+	 * Encodes a SET_CURSOR command followed by part of a text.
+	 * @param column	The column, starting at 1
+	 * @param row		The row, starting at 1
+	 * @param text		The text
+	 * @param start		Index of the first character of the text to write
+	 * @param length	Number of characters to write
+	 */
+	public static void encodeText(ByteBuffer out, int column, int row, CharSequence text, int start, int length) {
+		encodeSetCursor(out, column, row);
+		for (int i = start; i < start + length; i++) {
+			out.put((byte)text.charAt(i));
+		}
+	}
+
+	public static void encodePixel(ByteBuffer out, int x_loc, int y_loc) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(MatrixOrbitalCommands.DRAW_PIXEL);
+		out.put((byte)x_loc);
+		out.put((byte)y_loc);
+	}
+
+	public static void encodeLine(ByteBuffer out, int x_loc_a, int y_loc_a, int x_loc_b, int y_loc_b) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(MatrixOrbitalCommands.DRAW_LINE);
+		out.put((byte)x_loc_a);
+		out.put((byte)y_loc_a);
+		out.put((byte)x_loc_b);
+		out.put((byte)y_loc_b);
+	}
+
+	public static void encodeContinueLine(ByteBuffer out, int x_loc, int y_loc) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(MatrixOrbitalCommands.CONTINUE_LINE);
+		out.put((byte)x_loc);
+		out.put((byte)y_loc);
+	}
+
+	public static void encodeRectangle(ByteBuffer out, DrawingColor color,
+			int x_loc_a, int y_loc_a, int x_loc_b, int y_loc_b) {
+		encodeRectangle(out, MatrixOrbitalCommands.DRAW_RECTANGLE, color, x_loc_a, y_loc_a, x_loc_b, y_loc_b);
+	}
+
+	public static void encodeSolidRectangle(ByteBuffer out, DrawingColor color,
+			int x_loc_a, int y_loc_a, int x_loc_b, int y_loc_b) {
+		encodeRectangle(out, MatrixOrbitalCommands.DRAW_SOLID_RECTANGLE, color, x_loc_a, y_loc_a, x_loc_b, y_loc_b);
+	}
+
+	/**
+	 * Encodes the header of an UPLOAD_FONT or UPLOAD_BITMAP command, to be followed by the file.
+	 * @param command	UPLOAD_FONT or UPLOAD_BITMAP
+	 * @param refId		The reference number of the file, 1 to 255
+	 * @param size		The size of the file in bytes, up to 65535
+	 */
+	public static void encodeUploadHeader(ByteBuffer out, byte command, int refId, int size) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(command);
+		out.put((byte)refId);
+		out.put((byte)size);
+		out.put((byte)(size >>> 8));
+	}
+
+	public static void encodeDrawSavedBitmap(ByteBuffer out, int refId, int x_loc, int y_loc) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(MatrixOrbitalCommands.DRAW_SAVED_BITMAP);
+		out.put((byte)refId);
+		out.put((byte)x_loc);
+		out.put((byte)y_loc);
+	}
+
+	public static void encodeSetCurrentFont(ByteBuffer out, int refId) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(MatrixOrbitalCommands.SET_CURRENT_FONT);
+		out.put((byte)refId);
+	}
+
+	/**
+	 * @param type	FILE_TYPE_FONT or FILE_TYPE_BITMAP
+	 */
+	public static void encodeDeleteFile(ByteBuffer out, byte type, int refId) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(MatrixOrbitalCommands.DELETE_FILE);
+		out.put(type);
+		out.put((byte)refId);
+	}
+
+	/**
+	 * @return The color argument of the drawing commands: zero is white, any non-zero number is black
+	 */
+	public static int colorByte(DrawingColor color) {
+		return color == DrawingColor.WHITE ? 0x0 : 0xFE;
+	}
+
+	private static void encodeRectangle(ByteBuffer out, byte command, DrawingColor color,
+			int x_loc_a, int y_loc_a, int x_loc_b, int y_loc_b) {
+		out.put(MatrixOrbitalCommands.START_BYTE);
+		out.put(command);
+		out.put((byte)colorByte(color));
+		out.put((byte)x_loc_a);
+		out.put((byte)y_loc_a);
+		out.put((byte)x_loc_b);
+		out.put((byte)y_loc_b);
+	}
+}
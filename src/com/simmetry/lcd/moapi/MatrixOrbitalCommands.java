@@ -89,8 +89,36 @@ public class MatrixOrbitalCommands {
     public static final byte SET_DRAWING_COLOR = (byte)0x63;
     public static final byte DRAW_PIXEL = (byte)0x70;
     public static final byte DRAW_LINE = (byte)0x6C;
+    // Draws a line from the end of the last line drawn to the x, y sent with the command
+    public static final byte CONTINUE_LINE = (byte)0x65;
     public static final byte DRAW_RECTANGLE = (byte)0x72;
     public static final byte DRAW_SOLID_RECTANGLE = (byte)0x78;
+    // Draws a bitmap sent with the command: x, y, width, height followed by the pixels packed
+    // 8 to a byte, most significant bit first, row after row without padding at row ends
+    public static final byte DRAW_BITMAP = (byte)0x64;
+    
+    // Filesystem Command Bytes
+    // Files are kept in the flash of the LCD by type and a reference number from 1 to 255.
+    // An upload is followed by the size of the file, 2 bytes least significant first, then the
+    // file; a bitmap file is its width, its height and the pixels packed as for DRAW_BITMAP
+    public static final byte UPLOAD_FONT = (byte)0x24;
+    public static final byte UPLOAD_BITMAP = (byte)0x5E;
+    public static final byte SET_CURRENT_FONT = (byte)0x31;
+    public static final byte DRAW_SAVED_BITMAP = (byte)0x62; // reference, x, y
+    public static final byte DELETE_FILE = (byte)0xAD; // type, reference
+    public static final byte FILE_TYPE_FONT = (byte)0x00;
+    public static final byte FILE_TYPE_BITMAP = (byte)0x01;
+    
+    // Query Command Bytes
+    // Each query is answered by the LCD with a reply of a fixed number of bytes
+    public static final byte READ_VERSION = (byte)0x36; // 1 byte reply, the firmware version
+    public static final byte READ_MODULE_TYPE = (byte)0x37; // 1 byte reply, the module type
+    public static final byte GET_FILESYSTEM_SPACE = (byte)0xAF; // 4 byte reply, free bytes, least significant first
+    
+    // Flow Control Bytes
+    // Sent back from the LCD when flow control is on
+    public static final byte FLOW_CONTROL_ALMOST_FULL = (byte)0xFE; // stop sending
+    public static final byte FLOW_CONTROL_ALMOST_EMPTY = (byte)0xFF; // resume sending
     
     // Key Pad Event Bytes
     // Bytes are sent back from the keypad when buttons are pressed
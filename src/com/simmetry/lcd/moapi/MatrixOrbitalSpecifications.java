@@ -8,6 +8,9 @@ package com.simmetry.lcd.moapi;
  * The MatrixOrbitalSpecifications have been programmed from the Matrix Orbital LCD
  * version LK204-7T-1U Manual. Documentation on this device is accessible via
  * the Matrix Orbital corporate website: http://www.matrixorbital.com
+ *
+ * These values describe the GLK19264-7T-1U, the default LcdDeviceProfile. The MatrixOrbitalApi
+ * takes its geometry from the active profile; use LcdDeviceProfile for other models.
  */
 public class MatrixOrbitalSpecifications {
 
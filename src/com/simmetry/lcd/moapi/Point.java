@@ -11,24 +11,89 @@ package com.simmetry.lcd.moapi;
  * Y location of the pixel, measured from bottom (0) to top (63)
  * All use of x,y pairs or quads in passing data to the LCD to render depends the use of coordinate pairs
  * within these bounds.
+ * 
+ * A Point cannot be changed once created. Both coordinates fit in a byte on this panel, so code
+ * that handles many points can skip the objects and keep each point packed in an int instead,
+ * see pack(), x() and y().
  */
-public class Point {
+public final class Point {
 	static final public int minX = 0;
 	static final public int minY = 0;
 	static final public int maxX = MatrixOrbitalSpecifications.LCD_WIDTH-1;
 	static final public int maxY = MatrixOrbitalSpecifications.LCD_HEIGHT-1;
 	
-	int x_loc = 0;
-	int y_loc = 0;
+	final int x_loc;
+	final int y_loc;
 	
 	public Point (){
-		x_loc = 0;
-		y_loc = 0;
+		this(0, 0);
 	}
 	
 	public Point( int x, int y){
 		x_loc = x;
 		y_loc = y;
 	}
+	
+	/**
+	 * Packs a location into an int, x in the second byte and y in the lowest byte.
+	 */
+	public static int pack(int x, int y) {
+		return ((x & 0xFF) << 8) | (y & 0xFF);
+	}
+	
+	/**
+	 * @return The X location of a packed point
+	 */
+	public static int x(int packed) {
+		return (packed >>> 8) & 0xFF;
+	}
+	
+	/**
+	 * @return The Y location of a packed point
+	 */
+	public static int y(int packed) {
+		return packed & 0xFF;
+	}
+	
+	/**
+	 * @return The point created from a packed point
+	 */
+	public static Point unpack(int packed) {
+		return new Point(x(packed), y(packed));
+	}
+	
+	/**
+	 * @return This point packed into an int, see pack()
+	 */
+	public int toPacked() {
+		return pack(x_loc, y_loc);
+	}
+	
+	public int getX() {
+		return x_loc;
+	}
+	
+	public int getY() {
+		return y_loc;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Point)) {
+			return false;
+		}
+		Point other = (Point)obj;
+		return x_loc == other.x_loc && y_loc == other.y_loc;
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * x_loc + y_loc;
+	}
+	
+	@Override
+	public String toString() {
+		return "(" + x_loc + "," + y_loc + ")";
+	}
 
 }
@@ -11,27 +11,87 @@ package com.simmetry.lcd.moapi;
  * Y location of the pixel, measured from bottom (0) to top (63)
  * All use of x,y pairs or quads in passing data to the LCD to render depends the use of coordinate pairs
  * within these bounds.
+ * 
+ * A Rectangle cannot be changed once created. Like Point it can also be kept packed in an int,
+ * one byte per coordinate, see pack().
  */
-public class Rectangle {
-	Point upperLeft = new Point(0,0);
-	Point lowerRight = new Point(0,0);
+public final class Rectangle {
+	final Point upperLeft;
+	final Point lowerRight;
 
 	public Rectangle() {
-		upperLeft = new Point(Point.minX, Point.minY);
-		lowerRight = new Point(Point.maxX, Point.maxY);
+		this(Point.minX, Point.minY, Point.maxX, Point.maxY);
 	}
 	
 	public Rectangle(int upper_left_x, int upper_left_y, int lower_right_x, int lower_right_y) {
-		upperLeft.x_loc = upper_left_x;
-		upperLeft.y_loc = upper_left_y;
-		lowerRight.x_loc = lower_right_x;
-		lowerRight.y_loc = lower_right_y;
+		this(new Point(upper_left_x, upper_left_y), new Point(lower_right_x, lower_right_y));
 	}
 	
 	public Rectangle(Point upper_left, Point lower_right){
-		upperLeft.x_loc = upper_left.x_loc;
-		upperLeft.y_loc = upper_left.y_loc;
-		lowerRight.x_loc = lower_right.x_loc;
-		lowerRight.y_loc = lower_right.y_loc;
+		upperLeft = upper_left;
+		lowerRight = lower_right;
+	}
+	
+	/**
+	 * Packs the corners of a rectangle into an int, one byte each from the highest byte down:
+	 * upper left x, upper left y, lower right x, lower right y.
+	 */
+	public static int pack(int upper_left_x, int upper_left_y, int lower_right_x, int lower_right_y) {
+		return (Point.pack(upper_left_x, upper_left_y) << 16) | Point.pack(lower_right_x, lower_right_y);
+	}
+	
+	/**
+	 * @return The upper left corner of a packed rectangle, as a packed point
+	 */
+	public static int upperLeft(int packed) {
+		return packed >>> 16;
+	}
+	
+	/**
+	 * @return The lower right corner of a packed rectangle, as a packed point
+	 */
+	public static int lowerRight(int packed) {
+		return packed & 0xFFFF;
+	}
+	
+	/**
+	 * @return The rectangle created from a packed rectangle
+	 */
+	public static Rectangle unpack(int packed) {
+		return new Rectangle(Point.unpack(upperLeft(packed)), Point.unpack(lowerRight(packed)));
+	}
+	
+	/**
+	 * @return This rectangle packed into an int, see pack()
+	 */
+	public int toPacked() {
+		return pack(upperLeft.x_loc, upperLeft.y_loc, lowerRight.x_loc, lowerRight.y_loc);
+	}
+	
+	public Point getUpperLeft() {
+		return upperLeft;
+	}
+	
+	public Point getLowerRight() {
+		return lowerRight;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Rectangle)) {
+			return false;
+		}
+		Rectangle other = (Rectangle)obj;
+		return upperLeft.equals(other.upperLeft) && lowerRight.equals(other.lowerRight);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * upperLeft.hashCode() + lowerRight.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return upperLeft + "-" + lowerRight;
 	}
 }
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.unittest;
+
+import java.awt.Font;
+import java.io.ByteArrayOutputStream;
+
+import com.simmetry.lcd.moapi.DrawingColor;
+import com.simmetry.lcd.moapi.DrawingStyle;
+import com.simmetry.lcd.moapi.LcdBitmap;
+import com.simmetry.lcd.moapi.LcdFont;
+import com.simmetry.lcd.moapi.LcdGraphicsEncoder;
+import com.simmetry.lcd.moapi.LcdRasterizer;
+import com.simmetry.lcd.moapi.LcdTextRenderer;
+import com.simmetry.lcd.moapi.MatrixOrbitalSpecifications;
+
+/**
+ * Compares the bytes the LcdGraphicsEncoder sends for typical screen changes with two naive
+ * encodings: one DRAW_PIXEL per changed pixel, and one DRAW_BITMAP of the whole screen.
+ * No LCD is needed, the results are printed.
+ */
+public class LcdEncoderBenchmark {
+
+	private static final int WIDTH = MatrixOrbitalSpecifications.LCD_WIDTH;
+	private static final int HEIGHT = MatrixOrbitalSpecifications.LCD_HEIGHT;
+
+	private final LcdTextRenderer textRenderer = new LcdTextRenderer();
+	private final LcdFont font = LcdFont.get(Font.SANS_SERIF, Font.PLAIN, 12);
+	private long totalPixel = 0;
+	private long totalBitmap = 0;
+	private long totalEncoder = 0;
+
+	/**
+	 * Prints the cost of one screen change.
+	 */
+	private void measure(String name, LcdBitmap current, LcdBitmap target) {
+		int pixel = pixelCost(current, target);
+		int bitmap = 6 + (WIDTH * HEIGHT + 7) / 8;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		LcdGraphicsEncoder.encode(current, target, DrawingColor.BLACK, out);
+		long micros = (System.nanoTime() - start) / 1000;
+
+		totalPixel += pixel;
+		totalBitmap += bitmap;
+		totalEncoder += out.size();
+		System.out.println(String.format("%-28s pixels %6d  bitmap %5d  encoder %5d  (%d us)",
+				name, pixel, bitmap, out.size(), micros));
+	}
+
+	/**
+	 * @return The bytes of one DRAW_PIXEL per changed pixel, changing color when needed
+	 */
+	private static int pixelCost(LcdBitmap current, LcdBitmap target) {
+		int cost = 0;
+		boolean black = true;
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				if (current.get(x, y) != target.get(x, y)) {
+					if (target.get(x, y) != black) {
+						black = !black;
+						cost += 3;
+					}
+					cost += 4;
+				}
+			}
+		}
+		return cost;
+	}
+
+	private LcdBitmap dashboard(String title, int level, double angle) {
+		LcdBitmap screen = new LcdBitmap();
+		LcdRasterizer rasterizer = new LcdRasterizer(screen);
+		textRenderer.drawText(screen, font, title, 2, 0, DrawingColor.BLACK, false);
+		screen.drawRectangle(0, 16, 120, 26, true);
+		screen.fillRectangle(1, 17, 1 + level, 25, true);
+		rasterizer.drawCircle(DrawingColor.BLACK, DrawingStyle.SOLID, 160, 40, 20);
+		screen.drawLine(160, 40, 160 + (int)(18 * Math.cos(angle)), 40 - (int)(18 * Math.sin(angle)), true);
+		return screen;
+	}
+
+	private void run() {
+		LcdBitmap blank = new LcdBitmap();
+
+		measure("draw dashboard", blank, dashboard("Temperature", 40, 1.0));
+		measure("bar graph step", dashboard("Temperature", 40, 1.0), dashboard("Temperature", 44, 1.0));
+		measure("bar graph drop", dashboard("Temperature", 90, 1.0), dashboard("Temperature", 20, 1.0));
+		measure("gauge needle move", dashboard("Temperature", 40, 1.0), dashboard("Temperature", 40, 1.2));
+		measure("title change", dashboard("Temperature", 40, 1.0), dashboard("Pressure", 40, 1.0));
+
+		LcdBitmap dialog = dashboard("Temperature", 40, 1.0);
+		dialog.fillRectangle(30, 10, 160, 50, false);
+		dialog.drawRectangle(30, 10, 160, 50, true);
+		textRenderer.drawText(dialog, font, "Save changes?", 40, 20, DrawingColor.BLACK, false);
+		measure("dialog popup", dashboard("Temperature", 40, 1.0), dialog);
+
+		LcdBitmap inverted = new LcdBitmap();
+		inverted.fillRectangle(0, 0, WIDTH - 1, HEIGHT - 1, true);
+		textRenderer.drawText(inverted, font, "ALARM", 70, 24, DrawingColor.WHITE, false);
+		measure("full screen inverse", dashboard("Temperature", 40, 1.0), inverted);
+
+		LcdBitmap trace = new LcdBitmap();
+		LcdBitmap scrolled = new LcdBitmap();
+		for (int x = 0; x < WIDTH; x++) {
+			trace.set(x, 32 + (int)(20 * Math.sin(x / 10.0)), true);
+			scrolled.set(x, 32 + (int)(20 * Math.sin((x + 1) / 10.0)), true);
+		}
+		measure("sparkline scroll", trace, scrolled);
+		measure("clear", dashboard("Temperature", 40, 1.0), blank);
+
+		System.out.println(String.format("%-28s pixels %6d  bitmap %5d  encoder %5d",
+				"total", totalPixel, totalBitmap, totalEncoder));
+	}
+
+	public static void main(String[] args) {
+		LcdEncoderBenchmark benchmark = new LcdEncoderBenchmark();
+		// the first pass warms up the font atlas and the JIT, the second is the one to read
+		benchmark.run();
+		System.out.println();
+		benchmark = new LcdEncoderBenchmark();
+		benchmark.run();
+	}
+}
@@ -0,0 +1,1007 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.unittest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import com.simmetry.lcd.daemon.LcdDaemon;
+import com.simmetry.lcd.moapi.DrawingColor;
+import com.simmetry.lcd.moapi.LcdAnimation;
+import com.simmetry.lcd.moapi.LcdAssetCache;
+import com.simmetry.lcd.moapi.LcdBitmap;
+import com.simmetry.lcd.moapi.LcdRenderLoop;
+import com.simmetry.lcd.moapi.LcdScreenPages;
+import com.simmetry.lcd.moapi.LcdScreenState;
+import com.simmetry.lcd.moapi.LcdSimulator;
+import com.simmetry.lcd.moapi.LedColor;
+import com.simmetry.lcd.moapi.LedNumber;
+import com.simmetry.lcd.moapi.LedPower;
+import com.simmetry.lcd.moapi.MatrixOrbitalApi;
+import com.simmetry.lcd.moapi.MatrixOrbitalCodec;
+import com.simmetry.lcd.moapi.MatrixOrbitalCommands;
+import com.simmetry.lcd.moapi.TextAlignment;
+
+/**
+ * Runs the scenarios of LcdInterfaceTest, one that sends random frames through the graphics
+ * encoders, one that encodes every command of MatrixOrbitalCodec over and over, one for the
+ * LcdAssetCache, one for two clients of an LcdDaemon, one that carries the screen over to a new
+ * API in a state file, one that switches LcdScreenPages and one that replays an LcdAnimation,
+ * against an LcdSimulator instead of an LCD, checks what reached the LCD, and compares what
+ * each scenario cost with a baseline:
+ *   bytes		the bytes written to the LCD
+ *   wire		the time those bytes take on a serial line at 19200 baud
+ *   allocated	the bytes allocated by all threads while the scenario ran and drained
+ * A scenario fails when the LCD does not end up as the API recorded it, when the simulator saw
+ * a protocol error, or when a cost grows past the baseline by more than the threshold (10% by
+ * default; allocations also get 64 KB of slack, since they vary a little from run to run).
+ * The process exits with status 1 if any scenario failed, so a build can run it as a gate.
+ *
+ * Usage: LcdRegressionSuite [-update] [-threshold fraction] [baselineFile]
+ *   -update		write the costs of this run as the new baseline
+ *   baselineFile	default src/com/simmetry/lcd/unittest/LcdRegressionSuite.properties; when
+ *					it does not exist yet it is written and the costs are not compared
+ */
+public class LcdRegressionSuite {
+
+	private static final String DEFAULT_BASELINE = "src/com/simmetry/lcd/unittest/LcdRegressionSuite.properties";
+	private static final double DEFAULT_THRESHOLD = 0.10;
+	private static final long ALLOCATION_SLACK = 64 * 1024;
+	private static final long DRAIN_TIMEOUT_MILLIS = 60000;
+	// passes of the service thread to wait for the last chunk after the queue is empty
+	private static final long SETTLE_MILLIS = 20;
+	private static final String[] METRICS = { "bytes", "wire", "allocated" };
+	// width, height and the pixels of a 32 pixel square
+	private static final int ICON_FILE_SIZE = 2 + 32 * 32 / 8;
+	// frames sent through the graphics encoders, and how long the LCD may take to show each
+	private static final int ENCODER_FRAMES = 300;
+	// times every command is encoded into one buffer, enough for garbage to pass the slack
+	private static final int CODEC_ROUNDS = 20000;
+	private static final long FRAME_TIMEOUT_MILLIS = 5000;
+	// how long a daemon client waits for a reply, and for its changes to reach the LCD
+	private static final int DAEMON_REPLY_MILLIS = 5000;
+	// most bytes the first drawScreen() after a trusted state file may send for one changed row
+	private static final long STATE_FILE_DIFF_BYTES = 32;
+	// times the pages are switched, and the frames and plays of the animation
+	private static final int PAGE_SWITCHES = 10;
+	private static final int ANIMATION_FRAMES = 4;
+	private static final int ANIMATION_PLAYS = 3;
+	private static final long ANIMATION_FRAME_MILLIS = 40;
+
+	/**
+	 * One scenario of LcdInterfaceTest, without the pauses a person watching the LCD needs.
+	 */
+	private static abstract class Scenario {
+
+		final String name;
+
+		Scenario(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Sends the commands of the scenario.
+		 */
+		void run(MatrixOrbitalApi api) {
+		}
+
+		/**
+		 * Sends the commands of the scenario, for a scenario that checks the LCD as it goes.
+		 * @param failures	Where to add what is wrong
+		 */
+		void run(MatrixOrbitalApi api, LcdSimulator lcd, List<String> failures) {
+			run(api);
+		}
+
+		/**
+		 * Checks the LCD once every command has been written, adding what is wrong to failures.
+		 * @param wire	The bytes written to the LCD
+		 */
+		void check(MatrixOrbitalApi api, LcdSimulator lcd, byte[] wire, List<String> failures) {
+		}
+	}
+
+	/**
+	 * A client of the LcdDaemon, sending one command at a time and reading its reply.
+	 */
+	private static class DaemonClient {
+
+		private final Socket socket;
+		private final BufferedReader in;
+		private final Writer out;
+
+		DaemonClient(int port, String name) throws IOException {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setSoTimeout(DAEMON_REPLY_MILLIS);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+			out = new OutputStreamWriter(socket.getOutputStream(), "ISO-8859-1");
+			send("HELLO " + name);
+		}
+
+		/**
+		 * @return The reply, or the error that stopped it coming
+		 */
+		String send(String command) {
+			try {
+				out.write(command + "\n");
+				out.flush();
+				return readLine();
+			}
+			catch (IOException ioeError) {
+				return ioeError.toString();
+			}
+		}
+
+		/**
+		 * @return The next line from the daemon, or the error that stopped it coming
+		 */
+		String readLine() {
+			try {
+				String line = in.readLine();
+				return line == null ? "disconnected" : line;
+			}
+			catch (IOException ioeError) {
+				return ioeError.toString();
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			}
+			catch (IOException ioeError) {
+				// the daemon releases the client either way
+			}
+		}
+	}
+
+	/**
+	 * Copies the bytes written to the LCD into a buffer sized up front, so that capturing them
+	 * does not add to the allocations measured.
+	 */
+	private static class WireTap extends OutputStream {
+
+		private final OutputStream out;
+		private final byte[] captured = new byte[1 << 20];
+		private int size = 0;
+
+		WireTap(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int copied = Math.min(len, captured.length - size);
+			System.arraycopy(b, off, captured, size, copied);
+			size += copied;
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(captured, size);
+		}
+	}
+
+	private static Scenario[] scenarios() {
+		return new Scenario[] {
+			new Scenario("brightnessContrast") {
+				void run(MatrixOrbitalApi api) {
+					for (int i = 0; i <= 20; i++) {
+						api.setBrightness(5*i);
+					}
+					for (int i = 0; i <= 20; i++) {
+						api.setContrast(5*i);
+					}
+					api.setContrast(50);
+				}
+
+				void check(MatrixOrbitalApi api, LcdSimulator lcd, byte[] wire, List<String> failures) {
+					ByteBuffer expected = ByteBuffer.allocate(256);
+					for (int i = 0; i <= 20; i++) {
+						MatrixOrbitalCodec.encodeCommand(expected, MatrixOrbitalCommands.SET_BACKLIGHT_BRIGHTNESS, level(5*i));
+					}
+					for (int i = 0; i <= 20; i++) {
+						MatrixOrbitalCodec.encodeCommand(expected, MatrixOrbitalCommands.SET_BACKLIGHT_CONTRAST, level(5*i));
+					}
+					MatrixOrbitalCodec.encodeCommand(expected, MatrixOrbitalCommands.SET_BACKLIGHT_CONTRAST, level(50));
+					expect(failures, "wire bytes", Arrays.copyOf(expected.array(), expected.position()), wire);
+					expect(failures, "brightness", 255, lcd.getBrightness());
+					expect(failures, "contrast", level(50), lcd.getContrast());
+				}
+			},
+			new Scenario("text") {
+				void run(MatrixOrbitalApi api) {
+					api.clearScreen();
+					for( int i = 1; i <= 8; i++ ){
+						api.setRowText(i, "LEFT", TextAlignment.LEFT, true);
+					}
+					for( int i = 1; i <= 8; i++ ){
+						api.setRowText(i, "CENTER", TextAlignment.CENTER, false);
+					}
+					for( int i = 1; i <= 8; i++ ){
+						api.setRowText(i, "RIGHT", TextAlignment.RIGHT, false);
+					}
+					api.clearScreen();
+					for( int i = 1; i <= 8; i++ ){
+						api.setRowText(i, "Testing", TextAlignment.LEFT, false);
+						api.setRowText(i, "Testing", TextAlignment.RIGHT, false);
+					}
+					api.clearScreen();
+					for( int i = 1; i <= 8; i++ ){
+						api.setRowText(i, "Testing", TextAlignment.CENTER, true);
+					}
+				}
+
+				void check(MatrixOrbitalApi api, LcdSimulator lcd, byte[] wire, List<String> failures) {
+					// row 8 of the demo is past the last row and is not drawn
+					for (int i = 1; i <= lcd.getDeviceProfile().getTextRows(); i++) {
+						expect(failures, "row " + i, "Testing", lcd.getRowText(i).trim());
+					}
+				}
+			},
+			new Scenario("graphic") {
+				void run(MatrixOrbitalApi api) {
+					api.clearScreen();
+					api.setDrawingColor(DrawingColor.BLACK);
+					for( int x = 0; x < 192; x++){
+						api.drawLine(x, 0, x, 63);
+					}
+					api.setDrawingColor(DrawingColor.WHITE);
+					for( int y = 0; y < 63; y=y+2){
+						api.drawLine(0, y, 191, y);
+					}
+					api.clearScreen();
+					for( int x = 0; x < 192; x=x+7){
+						for( int y = 0; y < 63; y=y+7){
+							api.drawRectangle(DrawingColor.BLACK, x, y, x+5, y+5);
+						}
+					}
+					api.clearScreen();
+					for( int x = 0; x < 192; x=x+7){
+						for( int y = 0; y < 63; y=y+7){
+							api.drawSolidRectangle(DrawingColor.BLACK, x, y, x+5, y+5);
+						}
+					}
+					for( int x = 0; x < 192; x=x+7){
+						for( int y = 0; y < 63; y=y+7){
+							api.drawSolidRectangle(DrawingColor.WHITE, x, y, x+5, y+5);
+						}
+					}
+				}
+
+				void check(MatrixOrbitalApi api, LcdSimulator lcd, byte[] wire, List<String> failures) {
+					expect(failures, "black pixels", 0, lcd.getGraphics().countSet());
+				}
+			},
+			new Scenario("led") {
+				void run(MatrixOrbitalApi api) {
+					api.setLedPower(LedNumber.ONE, LedPower.OFF);
+					api.setLedPower(LedNumber.TWO, LedPower.OFF);
+					api.setLedPower(LedNumber.THREE, LedPower.OFF);
+					api.setLedColor(LedNumber.ONE, LedColor.GREEN);
+					api.setLedColor(LedNumber.TWO, LedColor.YELLOW);
+					api.setLedColor(LedNumber.THREE, LedColor.RED);
+					api.setLedPower(LedNumber.ONE, LedPower.ON);
+					api.setLedPower(LedNumber.TWO, LedPower.ON);
+					api.setLedPower(LedNumber.THREE, LedPower.ON);
+					LedColor[] colors = { LedColor.GREEN, LedColor.YELLOW, LedColor.RED };
+					for (int c = 0; c < colors.length; c++) {
+						api.setLedColor(LedNumber.ONE, colors[c]);
+						api.setLedPower(LedNumber.ONE, LedPower.ON);
+						api.setLedColor(LedNumber.TWO, colors[c]);
+						api.setLedPower(LedNumber.TWO, LedPower.ON);
+						api.setLedColor(LedNumber.THREE, colors[c]);
+						api.setLedPower(LedNumber.THREE, LedPower.ON);
+					}
+					for (int i = 0; i < 5; i++) {
+						api.setLedPower(LedNumber.TWO, LedPower.OFF);
+						api.setLedPower(LedNumber.THREE, LedPower.OFF);
+						api.setLedColor(LedNumber.ONE, LedColor.GREEN);
+						api.setLedColor(LedNumber.TWO, LedColor.YELLOW);
+						api.setLedColor(LedNumber.THREE, LedColor.RED);
+						api.setLedPower(LedNumber.ONE, LedPower.ON);
+						api.setLedPower(LedNumber.ONE, LedPower.OFF);
+						api.setLedPower(LedNumber.THREE, LedPower.OFF);
+						api.setLedColor(LedNumber.ONE, LedColor.RED);
+						api.setLedColor(LedNumber.TWO, LedColor.GREEN);
+						api.setLedColor(LedNumber.THREE, LedColor.YELLOW);
+						api.setLedPower(LedNumber.TWO, LedPower.ON);
+						api.setLedPower(LedNumber.ONE, LedPower.OFF);
+						api.setLedPower(LedNumber.TWO, LedPower.OFF);
+						api.setLedColor(LedNumber.ONE, LedColor.YELLOW);
+						api.setLedColor(LedNumber.TWO, LedColor.RED);
+						api.setLedColor(LedNumber.THREE, LedColor.GREEN);
+						api.setLedPower(LedNumber.THREE, LedPower.ON);
+					}
+					api.setLedPower(LedNumber.ONE, LedPower.OFF);
+					api.setLedPower(LedNumber.TWO, LedPower.OFF);
+					api.setLedPower(LedNumber.THREE, LedPower.OFF);
+				}
+
+				void check(MatrixOrbitalApi api, LcdSimulator lcd, byte[] wire, List<String> failures) {
+					expect(failures, "LED 1", LedColor.NULL, lcd.getLedColor(LedNumber.ONE));
+					expect(failures, "LED 2", LedColor.NULL, lcd.getLedColor(LedNumber.TWO));
+					expect(failures, "LED 3", LedColor.NULL, lcd.getLedColor(LedNumber.THREE));
+				}
+			},
+			new Scenario("dialog") {
+				void run(MatrixOrbitalApi api) {
+					api.clearScreen();
+					api.setRowText(1, "Display Settings", TextAlignment.LEFT, false);
+					api.setRowText(1, "<BK>", TextAlignment.RIGHT, false);
+					api.setRowText(3, " > Brightness", TextAlignment.LEFT, true);
+					int y_start = 29;
+					int x_start = 23;
+					int height = 4;
+					int width = 128;
+					api.drawRectangle(DrawingColor.BLACK, (x_start-2), (y_start-(height/2)-2),
+							(x_start+width+2), (y_start+(height/2)+2) );
+					for( int x = x_start; x < (x_start+(width/2)); x=x+(width/20)){
+						api.drawSolidRectangle(DrawingColor.BLACK, x, (y_start-(height/2)), (x+(width/20)), (y_start+(height/2)));
+					}
+					api.setRowText(6, " > Contrast", TextAlignment.LEFT, true);
+					y_start = 53;
+					api.drawRectangle(DrawingColor.BLACK, (x_start-2), (y_start-(height/2)-2),
+							(x_start+width+2), (y_start+(height/2)+2) );
+					for( int x = x_start; x < (x_start+(width/2)); x=x+(width/20)){
+						api.drawSolidRectangle(DrawingColor.BLACK, x, (y_start-(height/2)), (x+(width/20)), (y_start+(height/2)));
+					}
+					api.setRowText(8, "<OK>", TextAlignment.RIGHT, false);
+				}
+
+				void check(MatrixOrbitalApi api, LcdSimulator lcd, byte[] wire, List<String> failures) {
+					String title = lcd.getRowText(1);
+					if (!title.startsWith("Display Settings") || !title.trim().endsWith("<BK>")) {
+						failures.add("row 1 is \"" + title + "\"");
+					}
+					expect(failures, "row 3", " > Brightness", lcd.getRowText(3).replaceAll("\\s+$", ""));
+					if (lcd.getGraphics().isEmpty()) {
+						failures.add("no graphics drawn");
+					}
+				}
+			},
+			new Scenario("encoders") {
+				void run(MatrixOrbitalApi api, LcdSimulator lcd, List<String> failures) {
+					// the same frames every run, so the bytes can be compared with the baseline
+					Random random = new Random(1);
+					api.clearScreen();
+					LcdBitmap target = api.getGraphics();
+					for (int frame = 0; frame < ENCODER_FRAMES; frame++) {
+						randomChange(random, target);
+						api.drawBitmap(target);
+						if (!awaitGraphics(lcd, target)) {
+							failures.add("frame " + frame + " was not shown as sent");
+							return;
+						}
+					}
+				}
+			},
+			new Scenario("codec") {
+				void run(MatrixOrbitalApi api, LcdSimulator lcd, List<String> failures) {
+					// nothing is sent, the allocations show whether encoding creates garbage
+					ByteBuffer out = ByteBuffer.allocate(256);
+					String text = "Codec";
+					int first = -1;
+					for (int round = 0; round < CODEC_ROUNDS; round++) {
+						out.clear();
+						MatrixOrbitalCodec.encodeClearScreen(out);
+						MatrixOrbitalCodec.encodeWarmReset(out);
+						MatrixOrbitalCodec.encodeCursorHome(out);
+						MatrixOrbitalCodec.encodeFlowControlOn(out, 32, 120);
+						MatrixOrbitalCodec.encodeFlowControlOff(out);
+						MatrixOrbitalCodec.encodeLockFilesystem(out);
+						MatrixOrbitalCodec.encodeCommand(out, MatrixOrbitalCommands.READ_VERSION);
+						MatrixOrbitalCodec.encodeCommand(out, MatrixOrbitalCommands.SET_BACKLIGHT_BRIGHTNESS, round & 0xFF);
+						MatrixOrbitalCodec.encodeDrawingColor(out, (round & 1) == 0 ? DrawingColor.BLACK : DrawingColor.WHITE);
+						MatrixOrbitalCodec.encodeSetCursor(out, 1 + round % 20, 1 + round % 4);
+						MatrixOrbitalCodec.encodeText(out, 1, 2, text, 0, text.length());
+						MatrixOrbitalCodec.encodePixel(out, round % 192, round % 64);
+						MatrixOrbitalCodec.encodeLine(out, 0, 0, round % 192, 63);
+						MatrixOrbitalCodec.encodeContinueLine(out, 191, round % 64);
+						MatrixOrbitalCodec.encodeRectangle(out, DrawingColor.BLACK, 0, 0, round % 192, 63);
+						MatrixOrbitalCodec.encodeSolidRectangle(out, DrawingColor.WHITE, 1, 1, 10, 10);
+						MatrixOrbitalCodec.encodeUploadHeader(out, MatrixOrbitalCommands.UPLOAD_BITMAP, 1, round);
+						MatrixOrbitalCodec.encodeDrawSavedBitmap(out, 1, round % 160, 0);
+						MatrixOrbitalCodec.encodeSetCurrentFont(out, 1 + round % 255);
+						MatrixOrbitalCodec.encodeDeleteFile(out, MatrixOrbitalCommands.FILE_TYPE_BITMAP, 1);
+						if (first < 0) {
+							first = out.position();
+						}
+						else if (out.position() != first) {
+							failures.add("round " + round + " encoded " + out.position() + " bytes, the first " + first);
+							return;
+						}
+					}
+				}
+			},
+			new Scenario("daemon") {
+				void run(MatrixOrbitalApi api, LcdSimulator lcd, List<String> failures) {
+					api.clearScreen();
+					// one update a second, so nothing of a client is published between commands sent together
+					LcdDaemon daemon = new LcdDaemon(api, 1);
+					DaemonClient a = null;
+					DaemonClient b = null;
+					try {
+						int port = daemon.start(0);
+						a = new DaemonClient(port, "a");
+						b = new DaemonClient(port, "b");
+						expect(failures, "a claims rows", "OK", a.send("CLAIM ROW 1 2"));
+						expect(failures, "a claims an area", "OK", a.send("CLAIM AREA 0 0 63 31"));
+						expect(failures, "a claims an LED", "OK", a.send("CLAIM LED 1"));
+						expect(failures, "a subscribes", "OK", a.send("KEYS ON"));
+						expect(failures, "b claims a row of a", "ERR", b.send("CLAIM ROW 2 3").split(" ")[0]);
+						expect(failures, "b claims an area overlapping a", "ERR", b.send("CLAIM AREA 32 0 95 31").split(" ")[0]);
+						expect(failures, "b claims the LED of a", "ERR", b.send("CLAIM LED 1").split(" ")[0]);
+						expect(failures, "b writes a row of a", "ERR", b.send("TEXT 1 LEFT b").split(" ")[0]);
+						expect(failures, "b claims a row", "OK", b.send("CLAIM ROW 3"));
+						expect(failures, "b claims an area", "OK", b.send("CLAIM AREA 64 0 127 31"));
+						expect(failures, "b subscribes", "OK", b.send("KEYS ON"));
+
+						a.send("TEXT 1 LEFT from a");
+						a.send("FILL 0 0 63 31 BLACK");
+						a.send("LED 1 RED");
+						b.send("TEXT 3 RIGHT from b");
+						b.send("FILL 64 0 127 31 BLACK");
+						if (!awaitLcd(lcd, "from a", 2 * 2048, LedColor.RED)) {
+							failures.add("the state of both clients did not reach the LCD");
+						}
+
+						lcd.pressKey((byte)65);
+						expect(failures, "key sent to a", "KEY TOP_LEFT", a.readLine());
+						expect(failures, "key sent to b", "KEY TOP_LEFT", b.readLine());
+
+						// a row written and released before it is published, then claimed again and
+						// left unwritten, is not sent
+						a.send("CLAIM ROW 4");
+						a.send("TEXT 4 LEFT gone");
+						a.send("RELEASE");
+						expect(failures, "a claims a row again", "OK", a.send("CLAIM ROW 4"));
+						expect(failures, "b claims a row a released", "OK", b.send("CLAIM ROW 1"));
+						b.send("TEXT 1 LEFT from b");
+						if (!awaitLcd(lcd, "from b", 2048, LedColor.NULL)) {
+							failures.add("what a released was not cleared on the LCD");
+						}
+						// by now a has been due, and the graphics are only drawn if publishing a did not fail
+						b.send("FILL 64 0 127 31 WHITE");
+						if (!awaitLcd(lcd, "from b", 0, LedColor.NULL)) {
+							failures.add("the graphics of b did not reach the LCD");
+						}
+					}
+					catch (IOException ioeError) {
+						failures.add("daemon: " + ioeError);
+					}
+					finally {
+						if (a != null) {
+							a.close();
+						}
+						if (b != null) {
+							b.close();
+						}
+						daemon.stop();
+					}
+				}
+
+				void check(MatrixOrbitalApi api, LcdSimulator lcd, byte[] wire, List<String> failures) {
+					expect(failures, "row 3", "from b", lcd.getRowText(3).trim());
+					expect(failures, "row 4", "", lcd.getRowText(4).trim());
+				}
+			},
+			new Scenario("assets") {
+				void run(MatrixOrbitalApi api) {
+					// room for three of the four icons, so icon0, used least recently, is evicted
+					LcdAssetCache cache = new LcdAssetCache(api, 3 * ICON_FILE_SIZE);
+					api.clearScreen();
+					for (int pass = 0; pass < 3; pass++) {
+						for (int i = 0; i < 3; i++) {
+							cache.drawBitmap("icon" + i, icon(i), 40 * i, 0);
+						}
+					}
+					cache.drawBitmap("icon3", icon(3), 120, 32);
+					cache.drawBitmap("icon1", icon(1), 0, 32);
+				}
+
+				void check(MatrixOrbitalApi api, LcdSimulator lcd, byte[] wire, List<String> failures) {
+					expect(failures, "files on the LCD", Integer.valueOf(3), Integer.valueOf(lcd.getFileCount()));
+					expect(failures, "filesystem free", Long.valueOf(16384 - 3 * ICON_FILE_SIZE),
+							Long.valueOf(lcd.getFilesystemFree()));
+				}
+			},
+			new Scenario("statefile") {
+				void run(MatrixOrbitalApi api, LcdSimulator lcd, List<String> failures) {
+					File file;
+					try {
+						file = File.createTempFile("LcdRegressionSuite", ".state");
+					}
+					catch (IOException ioeError) {
+						failures.add("state file: " + ioeError);
+						return;
+					}
+					file.delete();
+					file.deleteOnExit();
+					LcdScreenState screen = new LcdScreenState(api.getDeviceProfile());
+					screen.writeText(1, 1, "Saved state");
+					screen.writeText(1, 2, "Row two");
+					screen.writeText(1, 3, "Row three");
+					screen.getGraphics().fillRectangle(100, 8, 180, 40, true);
+
+					// the process before this one draws the screen and closes, saving it settled;
+					// only what this API sends goes through the wire tap
+					MatrixOrbitalApi earlier = new MatrixOrbitalApi();
+					earlier.setAutoReconnect(false);
+					connectAlongside(earlier, lcd);
+					if (earlier.restoreState(file, false)) {
+						failures.add("a new state file was trusted");
+					}
+					earlier.drawScreen(screen);
+					if (!earlier.close(DRAIN_TIMEOUT_MILLIS)) {
+						failures.add("the earlier API did not drain");
+					}
+					long drawn = lcd.getBytesReceived();
+
+					if (!api.restoreState(file, false)) {
+						failures.add("the saved state was not trusted");
+						return;
+					}
+					screen.writeText(1, 2, "Changed");
+					api.drawScreen(screen);
+					if (!awaitScreen(lcd, screen)) {
+						failures.add("the changed screen was not shown");
+					}
+					long sent = lcd.getBytesReceived() - drawn;
+					if (sent > STATE_FILE_DIFF_BYTES) {
+						failures.add("the first drawScreen() sent " + sent + " bytes for one changed row, the screen took " + drawn);
+					}
+				}
+			},
+			new Scenario("pages") {
+				void run(MatrixOrbitalApi api, LcdSimulator lcd, List<String> failures) {
+					LcdScreenPages pages = new LcdScreenPages(api);
+					api.clearScreen();
+					long before = lcd.getBytesReceived() + api.getPendingBytes();
+					pages.update("menu", new LcdRenderLoop.SceneUpdate() {
+						public void update(LcdScreenState scene) {
+							scene.writeText(1, 1, "Menu");
+							scene.writeText(1, 3, " > Brightness");
+							scene.writeText(1, 6, " > Contrast");
+							scene.getGraphics().drawRectangle(21, 25, 153, 33, true);
+						}
+					});
+					pages.update("status", new LcdRenderLoop.SceneUpdate() {
+						public void update(LcdScreenState scene) {
+							scene.writeText(1, 1, "Status");
+							scene.writeText(1, 3, "Temp 21C");
+							scene.getGraphics().fillRectangle(21, 25, 87, 33, true);
+						}
+					});
+					if (lcd.getBytesReceived() + api.getPendingBytes() != before) {
+						failures.add("pages not shown yet were sent");
+					}
+					for (int i = 0; i < PAGE_SWITCHES; i++) {
+						String name = (i % 2 == 0) ? "menu" : "status";
+						pages.show(name);
+						if (!awaitScreen(lcd, pages.getPage(name))) {
+							failures.add("switch " + i + " did not show " + name);
+							return;
+						}
+					}
+
+					// the status page is shown: a change to it is sent, a change to the menu is not
+					pages.update("status", new LcdRenderLoop.SceneUpdate() {
+						public void update(LcdScreenState scene) {
+							scene.writeText(1, 3, "Temp 22C");
+						}
+					});
+					if (!awaitScreen(lcd, pages.getPage("status"))) {
+						failures.add("the change to the shown page was not sent");
+					}
+					long shown = lcd.getBytesReceived();
+					pages.update("menu", new LcdRenderLoop.SceneUpdate() {
+						public void update(LcdScreenState scene) {
+							scene.writeText(1, 8, " > Exit");
+						}
+					});
+					if (lcd.getBytesReceived() != shown || api.getPendingBytes() > 0) {
+						failures.add("the change to a hidden page was sent");
+					}
+					pages.show("menu");
+					if (!awaitScreen(lcd, pages.getPage("menu"))) {
+						failures.add("the changed menu was not shown");
+					}
+				}
+			},
+			new Scenario("animation") {
+				void run(MatrixOrbitalApi api, LcdSimulator lcd, List<String> failures) {
+					LcdAnimation animation = new LcdAnimation(api.getDeviceProfile());
+					LcdScreenState frame = new LcdScreenState(api.getDeviceProfile());
+					frame.writeText(1, 1, "Loading");
+					for (int i = 0; i < ANIMATION_FRAMES; i++) {
+						frame.getGraphics().clear();
+						frame.getGraphics().fillRectangle(80 + 8 * i, 28, 87 + 8 * i, 35, true);
+						animation.addFrame(frame, ANIMATION_FRAME_MILLIS);
+					}
+					api.clearScreen();
+					try {
+						// each play after the first starts from the last frame, so every change is replayed
+						for (int play = 0; play < ANIMATION_PLAYS; play++) {
+							animation.play(api, false);
+							long giveUp = System.currentTimeMillis() + FRAME_TIMEOUT_MILLIS;
+							while (animation.isPlaying() && System.currentTimeMillis() < giveUp) {
+								Thread.sleep(1);
+							}
+							if (animation.isPlaying()) {
+								failures.add("play " + play + " did not finish");
+								return;
+							}
+						}
+					}
+					catch (InterruptedException ieError) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					finally {
+						animation.shutdown();
+					}
+					expect(failures, "frames played and skipped", Long.valueOf(ANIMATION_FRAMES * ANIMATION_PLAYS),
+							Long.valueOf(animation.getFramesPlayed() + animation.getFramesSkipped()));
+					// a skipped frame leaves the LCD on another frame, so the next one is encoded again
+					if (animation.getFramesEncoded() > ANIMATION_FRAMES + animation.getFramesSkipped()) {
+						failures.add(animation.getFramesEncoded() + " frames encoded, " + animation.getFramesSkipped() +
+								" skipped, the kept changes were not replayed");
+					}
+					if (!awaitScreen(lcd, frame)) {
+						failures.add("the last frame was not shown");
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Connects another API to the LCD through streams that are left open when that API closes,
+	 * so the API of the scenario can go on using the LCD after it.
+	 */
+	private static void connectAlongside(MatrixOrbitalApi other, LcdSimulator lcd) {
+		final OutputStream out = lcd.getOutputStream();
+		other.connect(new FilterInputStream(lcd.getInputStream()) {
+			@Override
+			public void close() {
+			}
+		}, new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.flush();
+			}
+		});
+	}
+
+	/**
+	 * @return A 32 pixel square icon, different for each number
+	 */
+	private static LcdBitmap icon(int number) {
+		LcdBitmap icon = new LcdBitmap(32, 32);
+		icon.drawRectangle(0, 0, 31, 31, true);
+		icon.fillRectangle(4, 4, 4 + 6 * number, 27, true);
+		return icon;
+	}
+
+	/**
+	 * Changes a few shapes of a frame: solid rectangles, outlines, lines and patches of noise,
+	 * which between them take every kind of command the graphics encoders choose from.
+	 */
+	private static void randomChange(Random random, LcdBitmap target) {
+		int changes = 1 + random.nextInt(2);
+		for (int i = 0; i < changes; i++) {
+			// mostly small shapes, so the frames take seconds rather than minutes at 19200 baud
+			boolean large = random.nextInt(16) == 0;
+			int width = 1 + random.nextInt(large ? target.getWidth() : 16);
+			int height = 1 + random.nextInt(large ? target.getHeight() : 12);
+			int x = random.nextInt(target.getWidth() - width + 1);
+			int y = random.nextInt(target.getHeight() - height + 1);
+			boolean black = random.nextBoolean();
+			switch (random.nextInt(4)) {
+				case 0:
+					target.fillRectangle(x, y, x + width - 1, y + height - 1, black);
+					break;
+				case 1:
+					target.drawRectangle(x, y, x + width - 1, y + height - 1, black);
+					break;
+				case 2:
+					target.drawLine(x, y, x + width - 1, y + height - 1, black);
+					break;
+				default:
+					for (int py = y; py < Math.min(y + height, y + 8); py++) {
+						for (int px = x; px < Math.min(x + width, x + 12); px++) {
+							target.set(px, py, random.nextBoolean());
+						}
+					}
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Waits for the graphics of the LCD to match the target.
+	 * @return	False if they did not within FRAME_TIMEOUT_MILLIS
+	 */
+	private static boolean awaitGraphics(LcdSimulator lcd, LcdBitmap target) {
+		long giveUp = System.currentTimeMillis() + FRAME_TIMEOUT_MILLIS;
+		while (true) {
+			// compared in place, so waiting does not add to the allocations measured
+			synchronized (lcd) {
+				if (lcd.getScreen().getGraphics().equals(target)) {
+					return true;
+				}
+			}
+			if (System.currentTimeMillis() > giveUp) {
+				return false;
+			}
+			try {
+				Thread.sleep(1);
+			}
+			catch (InterruptedException ieError) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Waits for the text and graphics of the LCD to match the screen.
+	 * @return	False if they did not within FRAME_TIMEOUT_MILLIS
+	 */
+	private static boolean awaitScreen(LcdSimulator lcd, LcdScreenState target) {
+		long giveUp = System.currentTimeMillis() + FRAME_TIMEOUT_MILLIS;
+		while (true) {
+			synchronized (lcd) {
+				if (lcd.getScreen().equals(target)) {
+					return true;
+				}
+			}
+			if (System.currentTimeMillis() > giveUp) {
+				return false;
+			}
+			try {
+				Thread.sleep(1);
+			}
+			catch (InterruptedException ieError) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Waits for the LCD to show the daemon clients' state.
+	 * @param row1		The text expected in row 1, row 3 always shows "from b"
+	 * @param black		The black pixels expected
+	 * @param led1		The color expected of LED 1
+	 * @return			False if it did not within DAEMON_REPLY_MILLIS
+	 */
+	private static boolean awaitLcd(LcdSimulator lcd, String row1, int black, LedColor led1) {
+		long giveUp = System.currentTimeMillis() + DAEMON_REPLY_MILLIS;
+		while (true) {
+			synchronized (lcd) {
+				if (lcd.getRowText(1).trim().equals(row1) && lcd.getRowText(3).trim().equals("from b") &&
+					lcd.getScreen().getGraphics().countSet() == black && lcd.getLedColor(LedNumber.ONE) == led1) {
+					return true;
+				}
+			}
+			if (System.currentTimeMillis() > giveUp) {
+				return false;
+			}
+			try {
+				Thread.sleep(1);
+			}
+			catch (InterruptedException ieError) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return The backlight value the API sends for a level in percent
+	 */
+	private static int level(int percent) {
+		return ((int)(percent / 100.0f * 255.0f)) & 0xFF;
+	}
+
+	private static void expect(List<String> failures, String what, Object expected, Object actual) {
+		boolean same = (expected instanceof byte[]) ? Arrays.equals((byte[])expected, (byte[])actual)
+				: expected.equals(actual);
+		if (!same) {
+			String shown = (actual instanceof byte[]) ? ((byte[])actual).length + " bytes" : "\"" + actual + "\"";
+			failures.add(what + " is " + shown + ", expected " +
+					((expected instanceof byte[]) ? ((byte[])expected).length + " bytes" : "\"" + expected + "\""));
+		}
+	}
+
+	/**
+	 * @return The bytes allocated so far by each live thread, by thread id
+	 */
+	private static long[][] allocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long[] ids = threads.getAllThreadIds();
+		return new long[][] { ids, threads.getThreadAllocatedBytes(ids) };
+	}
+
+	/**
+	 * @return The bytes allocated by all live threads since the given allocatedBytes()
+	 */
+	private static long allocatedSince(long[][] before) {
+		long[][] after = allocatedBytes();
+		long total = 0;
+		for (int i = 0; i < after[0].length; i++) {
+			long start = 0;
+			for (int j = 0; j < before[0].length; j++) {
+				if (before[0][j] == after[0][i]) {
+					start = before[1][j];
+				}
+			}
+			if (after[1][i] > 0) {
+				total += after[1][i] - start;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Runs one scenario on a new API and simulator.
+	 * @param failures	Where to add what went wrong, or null to only warm up
+	 * @return			bytes, wire time in microseconds, bytes allocated and wall time in microseconds
+	 */
+	private static long[] measure(Scenario scenario, List<String> failures) throws Exception {
+		LcdSimulator lcd = new LcdSimulator();
+		WireTap tap = new WireTap(lcd.getOutputStream());
+		MatrixOrbitalApi api = new MatrixOrbitalApi();
+		api.setAutoReconnect(false);
+		api.connect(lcd.getInputStream(), tap);
+
+		List<String> found = new ArrayList<String>();
+		long[][] before = allocatedBytes();
+		long start = System.nanoTime();
+		scenario.run(api, lcd, found);
+		long giveUp = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+		while (api.getPendingBytes() > 0 && System.currentTimeMillis() < giveUp) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(SETTLE_MILLIS);
+		long wall = System.nanoTime() - start;
+		long allocated = allocatedSince(before);
+		boolean drained = api.close(0);
+
+		if (failures != null) {
+			if (!drained) {
+				found.add("commands still queued after " + DRAIN_TIMEOUT_MILLIS + " ms");
+			}
+			expect(found, "protocol errors", 0L, lcd.getProtocolErrors());
+			expect(found, "overruns", 0L, lcd.getOverruns());
+			for (int i = 1; i <= lcd.getDeviceProfile().getTextRows(); i++) {
+				expect(found, "row " + i + " against the API", api.getRowText(i), lcd.getRowText(i));
+			}
+			if (!api.getGraphics().equals(lcd.getGraphics())) {
+				found.add("graphics differ from the API");
+			}
+			scenario.check(api, lcd, tap.toByteArray(), found);
+			for (String failure : found) {
+				failures.add(scenario.name + ": " + failure);
+			}
+		}
+		return new long[] { lcd.getBytesReceived(), lcd.getWireNanos() / 1000, allocated, wall / 1000 };
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean update = false;
+		double threshold = DEFAULT_THRESHOLD;
+		File baselineFile = new File(DEFAULT_BASELINE);
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-update")) {
+				update = true;
+			}
+			else if (args[i].equals("-threshold")) {
+				threshold = Double.parseDouble(args[++i]);
+			}
+			else {
+				baselineFile = new File(args[i]);
+			}
+		}
+
+		Properties baseline = new Properties();
+		boolean compare = !update && baselineFile.exists();
+		if (compare) {
+			InputStream in = new FileInputStream(baselineFile);
+			try {
+				baseline.load(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		Scenario[] scenarios = scenarios();
+		// a first pass lets the JIT settle, so the measured pass allocates what it would in service
+		for (int s = 0; s < scenarios.length; s++) {
+			measure(scenarios[s], null);
+		}
+
+		List<String> failures = new ArrayList<String>();
+		Properties measured = new Properties();
+		System.out.println(String.format("%-20s %8s %10s %12s %10s", "scenario", "bytes", "wire ms", "allocated", "wall ms"));
+		for (int s = 0; s < scenarios.length; s++) {
+			Scenario scenario = scenarios[s];
+			long[] costs = measure(scenario, failures);
+			System.out.println(String.format("%-20s %8d %10.1f %12d %10.1f",
+					scenario.name, costs[0], costs[1] / 1000.0, costs[2], costs[3] / 1000.0));
+			for (int m = 0; m < METRICS.length; m++) {
+				String key = scenario.name + "." + METRICS[m];
+				measured.setProperty(key, Long.toString(costs[m]));
+				if (compare && baseline.getProperty(key) != null) {
+					long base = Long.parseLong(baseline.getProperty(key));
+					long allowed = (long)(base * (1.0 + threshold)) + (METRICS[m].equals("allocated") ? ALLOCATION_SLACK : 0);
+					if (costs[m] > allowed) {
+						failures.add(String.format("%s: %s regressed from %d to %d, more than %.0f%%",
+								scenario.name, METRICS[m], base, costs[m], threshold * 100));
+					}
+				}
+			}
+		}
+
+		if (!compare) {
+			OutputStream out = new FileOutputStream(baselineFile);
+			try {
+				measured.store(out, "LcdRegressionSuite baseline");
+			}
+			finally {
+				out.close();
+			}
+			System.out.println("baseline written to " + baselineFile);
+		}
+
+		for (String failure : failures) {
+			System.out.println("FAILED " + failure);
+		}
+		System.out.println(failures.isEmpty() ? "all scenarios passed" : failures.size() + " failures");
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.unittest;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import com.simmetry.lcd.moapi.MatrixOrbitalApi;
+import com.simmetry.lcd.moapi.TextAlignment;
+
+/**
+ * Measures the memory and CPU each display costs when many MatrixOrbitalApi instances run in
+ * one JVM, with the service threads as platform threads or as virtual threads. Every display
+ * is connected over a socket to a sink that reads and discards the bytes on a single thread,
+ * and gets a row of text twice a second. No LCD is needed, the results are printed. The
+ * service threads poll their links every 4 ms in both modes, so the modes are expected to
+ * differ in memory rather than in CPU.
+ *
+ * Run once per mode, so that the threads of one mode do not disturb the other:
+ *   LcdThreadBenchmark platform [displays] [seconds]
+ *   LcdThreadBenchmark virtual [displays] [seconds]
+ */
+public class LcdThreadBenchmark {
+
+	/**
+	 * Accepts connections and reads and discards everything sent on them.
+	 * @return The port the sink listens on
+	 */
+	private static int startSink() throws Exception {
+		final Selector selector = Selector.open();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		Thread sink = new Thread(new Runnable() {
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocate(4096);
+				try {
+					while (true) {
+						selector.select();
+						Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+						while (keys.hasNext()) {
+							SelectionKey key = keys.next();
+							keys.remove();
+							if (key.isAcceptable()) {
+								SocketChannel channel = ((ServerSocketChannel)key.channel()).accept();
+								channel.configureBlocking(false);
+								channel.register(selector, SelectionKey.OP_READ);
+							}
+							else if (key.isReadable()) {
+								buffer.clear();
+								if (((SocketChannel)key.channel()).read(buffer) < 0) {
+									key.cancel();
+									key.channel().close();
+								}
+							}
+						}
+					}
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, "sink");
+		sink.setDaemon(true);
+		sink.start();
+		return ((InetSocketAddress)server.getLocalAddress()).getPort();
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long processCpuNanos() {
+		return ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean virtual = args.length > 0 && args[0].equals("virtual");
+		int displays = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		if (virtual && !MatrixOrbitalApi.isVirtualThreadSupported()) {
+			System.out.println("virtual threads need Java 21, this is Java " + System.getProperty("java.version"));
+			return;
+		}
+
+		int port = startSink();
+		long heapBefore = usedHeap();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		MatrixOrbitalApi[] apis = new MatrixOrbitalApi[displays];
+		for (int i = 0; i < displays; i++) {
+			apis[i] = new MatrixOrbitalApi();
+			apis[i].setVirtualThreads(virtual);
+			if (!apis[i].IPconnect("127.0.0.1", port)) {
+				System.out.println("display " + i + " could not connect");
+				return;
+			}
+		}
+
+		// let the displays settle before measuring
+		Thread.sleep(1000);
+		long heapAfter = usedHeap();
+		int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		long cpuStart = processCpuNanos();
+		long wallStart = System.nanoTime();
+		for (int tick = 0; tick < seconds * 2; tick++) {
+			for (int i = 0; i < displays; i++) {
+				apis[i].setRowText(1 + (tick % 7), "display " + i + " tick " + tick, TextAlignment.LEFT, true);
+			}
+			Thread.sleep(500);
+		}
+		long cpu = processCpuNanos() - cpuStart;
+		long wall = System.nanoTime() - wallStart;
+
+		long pending = 0;
+		for (int i = 0; i < displays; i++) {
+			pending += apis[i].getPendingBytes();
+		}
+
+		System.out.println(String.format("%s threads, %d displays, %d s", virtual ? "virtual" : "platform", displays, seconds));
+		System.out.println(String.format("  platform threads  %6d", threadsAfter - threadsBefore));
+		System.out.println(String.format("  heap per display  %6d bytes", (heapAfter - heapBefore) / displays));
+		System.out.println(String.format("  cpu per display   %6.2f %% of a core", 100.0 * cpu / wall / displays));
+		System.out.println(String.format("  bytes not sent    %6d", pending));
+		System.exit(0);
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.widgets;
+
+import com.simmetry.lcd.moapi.DrawingColor;
+import com.simmetry.lcd.moapi.MatrixOrbitalApi;
+
+/**
+ * A bar graph with a one pixel outline. Changing the value only fills or clears the slice of
+ * the bar between the old and new lengths, which is a single solid rectangle: a bar going
+ * from 40% to 42% sends 7 bytes.
+ */
+public class LcdBarGraph extends LcdWidget {
+
+	private final LcdOrientation orientation;
+
+	// the filled length of the bar in pixels as last drawn
+	private int filled = 0;
+
+	/**
+	 * @param api			The LCD to draw on
+	 * @param orientation	The direction the bar fills in
+	 * @param x_a			X location of one corner of the outline
+	 * @param y_a			Y location of one corner of the outline
+	 * @param x_b			X location of the opposite corner
+	 * @param y_b			Y location of the opposite corner
+	 * @param min			The value shown as an empty bar
+	 * @param max			The value shown as a full bar
+	 */
+	public LcdBarGraph(MatrixOrbitalApi api, LcdOrientation orientation,
+			int x_a, int y_a, int x_b, int y_b, double min, double max) {
+		super(api, x_a, y_a, x_b, y_b, min, max);
+		if (x1 - x0 < 2 || y1 - y0 < 2) {
+			throw new IllegalArgumentException("bar graph is too small to have an inside");
+		}
+		this.orientation = orientation;
+	}
+
+	public synchronized void setValue(double value) {
+		int length = (orientation == LcdOrientation.HORIZONTAL) ? (x1 - x0 - 1) : (y1 - y0 - 1);
+		int target = (int)Math.round(fraction(value) * length);
+
+		if (!drawn) {
+			api.drawSolidRectangle(DrawingColor.WHITE, x0, y0, x1, y1);
+			api.drawRectangle(DrawingColor.BLACK, x0, y0, x1, y1);
+			filled = 0;
+			drawn = true;
+		}
+
+		if (target > filled) {
+			fill(filled, target - 1, DrawingColor.BLACK);
+		}
+		else if (target < filled) {
+			fill(target, filled - 1, DrawingColor.WHITE);
+		}
+		filled = target;
+	}
+
+	/**
+	 * Fills the slice of the inside of the bar from position 'from' to 'to' (inclusive),
+	 * where position 0 is the empty end of the bar.
+	 */
+	private void fill(int from, int to, DrawingColor color) {
+		if (orientation == LcdOrientation.HORIZONTAL) {
+			api.drawSolidRectangle(color, x0 + 1 + from, y0 + 1, x0 + 1 + to, y1 - 1);
+		}
+		else {
+			api.drawSolidRectangle(color, x0 + 1, y1 - 1 - to, x1 - 1, y1 - 1 - from);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.widgets;
+
+import com.simmetry.lcd.moapi.DrawingColor;
+import com.simmetry.lcd.moapi.DrawingStyle;
+import com.simmetry.lcd.moapi.LcdBitmap;
+import com.simmetry.lcd.moapi.LcdRasterizer;
+import com.simmetry.lcd.moapi.MatrixOrbitalApi;
+
+/**
+ * A half circle dial with a needle. The hub is in the middle of the y_b edge of the widget and
+ * the dial sweeps towards the y_a edge, from the minimum on the left to the maximum on the right.
+ * The dial is drawn once; a new value erases the old needle, fills in the hub the erase
+ * touched and draws the new needle, and sends nothing at all if the needle ends on the same pixel.
+ */
+public class LcdGauge extends LcdWidget {
+
+	private final int x_hub;
+	private final int y_hub;
+	private final int radius;
+	private final int direction;
+
+	// the end of the needle as last drawn
+	private int x_needle = -1;
+	private int y_needle = -1;
+
+	/**
+	 * @param api	The LCD to draw on
+	 * @param x_a	X location of one corner of the widget
+	 * @param y_a	Y location of the edge the dial sweeps towards
+	 * @param x_b	X location of the opposite corner
+	 * @param y_b	Y location of the edge the hub sits on
+	 * @param min	The value shown with the needle to the left
+	 * @param max	The value shown with the needle to the right
+	 */
+	public LcdGauge(MatrixOrbitalApi api, int x_a, int y_a, int x_b, int y_b, double min, double max) {
+		super(api, x_a, y_a, x_b, y_b, min, max);
+		this.x_hub = (x0 + x1) / 2;
+		this.y_hub = y_b;
+		this.direction = (y_a < y_b) ? -1 : 1;
+		this.radius = Math.min((x1 - x0) / 2, y1 - y0);
+		if (radius < 3) {
+			throw new IllegalArgumentException("gauge is too small to draw");
+		}
+	}
+
+	public synchronized void setValue(double value) {
+		// the needle stops two pixels short of the dial so erasing it never touches the dial
+		double angle = Math.PI * (1.0 - fraction(value));
+		int length = radius - 2;
+		int x = x_hub + (int)Math.round(length * Math.cos(angle));
+		int y = y_hub + direction * (int)Math.round(length * Math.sin(angle));
+
+		// hold the API so no other thread draws between reading the graphics and sending
+		// them back, or changes the drawing color before a needle is drawn in it
+		synchronized (api) {
+			if (!drawn) {
+				api.drawSolidRectangle(DrawingColor.WHITE, x0, y0, x1, y1);
+				LcdBitmap graphics = api.getGraphics();
+				new LcdRasterizer(graphics).drawArc(DrawingColor.BLACK, DrawingStyle.SOLID, x_hub, y_hub, radius,
+						direction < 0 ? 180 : 0, direction < 0 ? 360 : 180);
+				graphics.fillRectangle(x_hub - 1, y_hub, x_hub + 1, y_hub - direction, true);
+				api.drawBitmap(graphics);
+				x_needle = -1;
+				drawn = true;
+			}
+			else if (x == x_needle && y == y_needle) {
+				return;
+			}
+
+			if (x_needle >= 0) {
+				useColor(DrawingColor.WHITE);
+				api.drawLine(x_hub, y_hub, x_needle, y_needle);
+				// erasing the needle also erased the pixels of the hub it starts from
+				api.drawSolidRectangle(DrawingColor.BLACK, x_hub - 1, y_hub, x_hub + 1, y_hub - direction);
+			}
+			useColor(DrawingColor.BLACK);
+			api.drawLine(x_hub, y_hub, x, y);
+			x_needle = x;
+			y_needle = y;
+		}
+	}
+}
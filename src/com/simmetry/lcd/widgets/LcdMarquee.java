@@ -0,0 +1,225 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.widgets;
+
+import java.util.concurrent.ScheduledFuture;
+
+import com.simmetry.lcd.moapi.LcdBitmap;
+import com.simmetry.lcd.moapi.LcdFont;
+import com.simmetry.lcd.moapi.LcdTextRenderer;
+import com.simmetry.lcd.moapi.MatrixOrbitalApi;
+
+/**
+ * One scrolling text, either on a text row or in a pixel region, run by an LcdMarqueeEngine.
+ * The text and speed may be changed from any thread at any time; the change is picked up at
+ * the next step, so callers never wait on the LCD.
+ *
+ * The position of the text follows the time since it started scrolling rather than the number
+ * of steps taken, and a step that finds the link still busy is skipped, so a slow link makes
+ * the text jump ahead instead of queueing steps behind each other.
+ */
+public class LcdMarquee {
+
+	// blanks shown between the end of the text and its start coming round again
+	static final String ROW_GAP = "   ";
+	static final int REGION_GAP = 24;
+
+	private final LcdMarqueeEngine engine;
+	private final MatrixOrbitalApi api;
+
+	// a row marquee has row > 0, a region marquee has a font
+	private final int row;
+	private final LcdFont font;
+	private final int x0;
+	private final int y0;
+	private final int x1;
+	private final int y1;
+
+	private volatile String text;
+	private volatile double speed;
+
+	// state only used on the engine thread
+	private String shownText = null;
+	private int shownOffset = -1;
+	// the step reached when timing started at the current speed, and when that was
+	private long startStep = 0;
+	private long startNanos = 0;
+	private double timedSpeed = 0.0;
+	private LcdBitmap strip = null;
+	private volatile long stepsSkipped = 0;
+	ScheduledFuture<?> future;
+
+	LcdMarquee(LcdMarqueeEngine engine, MatrixOrbitalApi api, int row, String text, double speed) {
+		this.engine = engine;
+		this.api = api;
+		this.row = row;
+		this.font = null;
+		this.x0 = this.y0 = this.x1 = this.y1 = 0;
+		this.text = text;
+		this.speed = speed;
+	}
+
+	LcdMarquee(LcdMarqueeEngine engine, MatrixOrbitalApi api, LcdFont font,
+			int x_a, int y_a, int x_b, int y_b, String text, double speed) {
+		this.engine = engine;
+		this.api = api;
+		this.row = 0;
+		this.font = font;
+		this.x0 = Math.min(x_a, x_b);
+		this.y0 = Math.min(y_a, y_b);
+		this.x1 = Math.max(x_a, x_b);
+		this.y1 = Math.max(y_a, y_b);
+		this.text = text;
+		this.speed = speed;
+	}
+
+	/**
+	 * Replaces the text, scrolling restarts from the beginning of the new text.
+	 */
+	public void setText(String text) {
+		this.text = text;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Changes the speed, in characters per second for a row and pixels per second for a region.
+	 */
+	public void setSpeed(double speed) {
+		if (speed <= 0.0) {
+			throw new IllegalArgumentException("speed must be positive: " + speed);
+		}
+		if (speed != this.speed) {
+			this.speed = speed;
+			engine.reschedule(this);
+		}
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Stops scrolling, leaving the last step on the screen.
+	 */
+	public void stop() {
+		engine.remove(this);
+	}
+
+	/**
+	 * @return The number of steps skipped because the link was still busy
+	 */
+	public long getStepsSkipped() {
+		return stepsSkipped;
+	}
+
+	/**
+	 * Shows the marquee where it should be by now. Called on the engine thread only.
+	 */
+	void step() {
+		long now = System.nanoTime();
+		String current = text;
+		if (!current.equals(shownText)) {
+			shownText = current;
+			shownOffset = -1;
+			strip = null;
+			startStep = 0;
+			startNanos = now;
+			timedSpeed = speed;
+		}
+		else if (speed != timedSpeed) {
+			// carry on from where the old speed got to
+			startStep = steps(now);
+			startNanos = now;
+			timedSpeed = speed;
+		}
+		if (api.getPendingBytes() > 0 || !api.isFlowing()) {
+			stepsSkipped++;
+			return;
+		}
+		if (row > 0) {
+			stepRow(current, steps(now));
+		}
+		else {
+			stepRegion(current, steps(now));
+		}
+	}
+
+	/**
+	 * @return The number of steps the text has moved by the given System.nanoTime()
+	 */
+	private long steps(long now) {
+		return startStep + (long)((now - startNanos) * timedSpeed / 1000000000.0);
+	}
+
+	/**
+	 * Shows the window of the text on the row the given number of steps in. Only the spans of
+	 * characters that differ from what the row shows are sent, see MatrixOrbitalApi.updateRowText().
+	 */
+	private void stepRow(String current, long steps) {
+		int width = api.getDeviceProfile().getTextColumns();
+		String loop = current + ROW_GAP;
+		int offset = (current.length() <= width) ? 0 : (int)(steps % loop.length());
+		if (offset == shownOffset) {
+			return;
+		}
+		StringBuilder window = new StringBuilder(width);
+		if (current.length() <= width) {
+			window.append(current);
+		}
+		else {
+			for (int i = 0; i < width; i++) {
+				window.append(loop.charAt((offset + i) % loop.length()));
+			}
+		}
+		while (window.length() < width) {
+			window.append(' ');
+		}
+
+		api.updateRowText(row, window.toString());
+		shownOffset = offset;
+	}
+
+	/**
+	 * Shows the window of the text in the region the given number of pixels in. The text is
+	 * rendered once into a strip and each step copies the window of the strip into the LCD
+	 * graphics and sends the difference, which for text moving one pixel is the leading and
+	 * trailing edges of its strokes.
+	 */
+	private void stepRegion(String current, long steps) {
+		int width = x1 - x0 + 1;
+		if (strip == null) {
+			LcdBitmap rendered = engine.getTextRenderer().render(font, current);
+			if (rendered.getWidth() <= width) {
+				strip = rendered;
+			}
+			else {
+				// two copies of the text with a gap, so any window of the loop is one copy
+				strip = new LcdBitmap(2 * (rendered.getWidth() + REGION_GAP), rendered.getHeight());
+				strip.blit(rendered, 0, 0, true, false);
+				strip.blit(rendered, rendered.getWidth() + REGION_GAP, 0, true, false);
+			}
+		}
+
+		int offset = (strip.getWidth() > width) ? (int)(steps % (strip.getWidth() / 2)) : 0;
+		if (offset == shownOffset) {
+			return;
+		}
+
+		LcdBitmap window = new LcdBitmap(width, y1 - y0 + 1);
+		window.blit(strip, -offset, 0, true, false);
+		// hold the API so a draw by another thread between reading the graphics and sending
+		// them back is not reverted
+		synchronized (api) {
+			LcdBitmap graphics = api.getGraphics();
+			graphics.fillRectangle(x0, y0, x1, y1, false);
+			graphics.blit(window, x0, y0, true, false);
+			api.drawBitmap(graphics);
+		}
+		shownOffset = offset;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.widgets;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.simmetry.lcd.moapi.LcdFont;
+import com.simmetry.lcd.moapi.LcdTextRenderer;
+import com.simmetry.lcd.moapi.MatrixOrbitalApi;
+
+/**
+ * Runs any number of scrolling texts on one LCD from a single background thread. Each marquee
+ * steps at its own speed, and each step sends only what changed on the screen. A step that
+ * finds the link busy is skipped, and the next one shows the text where it should be by then,
+ * so marquees never build up a backlog on a slow link. Text longer than
+ * a row, which setRowText() refuses, scrolls round with a short gap; text that fits is shown
+ * without scrolling.
+ */
+public class LcdMarqueeEngine {
+
+	private final MatrixOrbitalApi api;
+	private final ScheduledExecutorService scheduler;
+	private final LcdTextRenderer textRenderer = new LcdTextRenderer();
+
+	// class logger
+	private static final Logger logger = Logger.getLogger(com.simmetry.lcd.widgets.LcdMarqueeEngine.class);
+
+	/**
+	 * @param api	The LCD the marquees are shown on
+	 */
+	public LcdMarqueeEngine(MatrixOrbitalApi api) {
+		this.api = api;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "LcdMarqueeEngine");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts scrolling text on a text row.
+	 * @param row		The row, from 1 to the number of text rows of the LCD
+	 * @param text		The text to show
+	 * @param speed		Characters per second
+	 * @return			The marquee, to change its text or speed or to stop it
+	 */
+	public LcdMarquee addRowMarquee(int row, String text, double speed) {
+		if (row < 1 || row > api.getDeviceProfile().getTextRows()) {
+			throw new IllegalArgumentException("row out of range: " + row);
+		}
+		return start(new LcdMarquee(this, api, row, text, speed));
+	}
+
+	/**
+	 * Starts scrolling text through a rectangle of the graphics, one pixel per step.
+	 * @param font		The font to draw the text in
+	 * @param x_a		X location of one corner of the region
+	 * @param y_a		Y location of one corner of the region
+	 * @param x_b		X location of the opposite corner
+	 * @param y_b		Y location of the opposite corner
+	 * @param text		The text to show
+	 * @param speed		Pixels per second
+	 * @return			The marquee, to change its text or speed or to stop it
+	 */
+	public LcdMarquee addRegionMarquee(LcdFont font, int x_a, int y_a, int x_b, int y_b, String text, double speed) {
+		return start(new LcdMarquee(this, api, font, x_a, y_a, x_b, y_b, text, speed));
+	}
+
+	/**
+	 * Stops every marquee and the engine thread.
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	LcdTextRenderer getTextRenderer() {
+		return textRenderer;
+	}
+
+	synchronized void reschedule(LcdMarquee marquee) {
+		if (marquee.future != null && marquee.future.cancel(false)) {
+			schedule(marquee);
+		}
+	}
+
+	synchronized void remove(LcdMarquee marquee) {
+		if (marquee.future != null) {
+			marquee.future.cancel(false);
+		}
+	}
+
+	private synchronized LcdMarquee start(LcdMarquee marquee) {
+		if (marquee.getSpeed() <= 0.0) {
+			throw new IllegalArgumentException("speed must be positive: " + marquee.getSpeed());
+		}
+		schedule(marquee);
+		return marquee;
+	}
+
+	private void schedule(final LcdMarquee marquee) {
+		long period = Math.max(1L, (long)(1000000000L / marquee.getSpeed()));
+		marquee.future = scheduler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					marquee.step();
+				}
+				catch (Exception e) {
+					// an exception would cancel the schedule, so log it and carry on
+					logger.error("Caught exception while stepping marquee.");
+					logger.error(e.toString(), e);
+				}
+			}
+		}, 0, period, TimeUnit.NANOSECONDS);
+	}
+}
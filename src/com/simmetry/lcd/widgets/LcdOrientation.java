@@ -0,0 +1,13 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.widgets;
+
+/*
+ * Sets the direction a bar graph fills in
+ */
+public enum LcdOrientation {
+	HORIZONTAL,	// fills left to right
+	VERTICAL	// fills bottom to top
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.widgets;
+
+import com.simmetry.lcd.moapi.DrawingColor;
+import com.simmetry.lcd.moapi.LcdBitmap;
+import com.simmetry.lcd.moapi.MatrixOrbitalApi;
+
+/**
+ * A trend line with one column per sample, keeping as many samples as the widget is wide.
+ *
+ * The LCD has no command to move pixels, so the two modes trade off differently:
+ * SWEEP		draws each sample in place: one solid rectangle to clear the column ahead of the
+ *				cursor and one line for the new sample, about 16 bytes whatever the data.
+ * SCROLL		redraws the trend on the host and sends it with drawBitmap(), so only the pixels
+ *				that moved are sent. Flat or slowly changing data is cheap, noisy data costs more.
+ */
+public class LcdSparkline extends LcdWidget {
+
+	private final LcdSparklineMode mode;
+
+	// the rows the minimum and maximum are drawn on
+	private final int bottom;
+	private final int top;
+
+	// the row drawn for each sample
+	private final int[] history;
+	private int count = 0;
+	private int next = 0;
+
+	/**
+	 * @param api	The LCD to draw on
+	 * @param mode	How new samples make room
+	 * @param x_a	X location of one corner of the widget
+	 * @param y_a	Y location of the edge for the maximum value
+	 * @param x_b	X location of the opposite corner
+	 * @param y_b	Y location of the edge for the minimum value
+	 * @param min	The value drawn on the y_b edge
+	 * @param max	The value drawn on the y_a edge
+	 */
+	public LcdSparkline(MatrixOrbitalApi api, LcdSparklineMode mode,
+			int x_a, int y_a, int x_b, int y_b, double min, double max) {
+		super(api, x_a, y_a, x_b, y_b, min, max);
+		this.mode = mode;
+		this.history = new int[x1 - x0 + 1];
+		this.bottom = y_b;
+		this.top = y_a;
+	}
+
+	/**
+	 * Adds a sample to the trend.
+	 * @param value	The sample, clamped to the widget's range
+	 */
+	public synchronized void setValue(double value) {
+		int y = bottom + (int)Math.round(fraction(value) * (top - bottom));
+
+		// hold the API so no other thread draws between reading the graphics and sending
+		// them back, or changes the drawing color before the sample is drawn in it
+		synchronized (api) {
+			if (!drawn) {
+				api.drawSolidRectangle(DrawingColor.WHITE, x0, y0, x1, y1);
+				drawn = true;
+				if (mode == LcdSparklineMode.SWEEP) {
+					count = 0;
+					next = 0;
+				}
+			}
+
+			if (mode == LcdSparklineMode.SWEEP) {
+				sweep(y);
+			}
+			else {
+				scroll(y);
+			}
+		}
+	}
+
+	private void sweep(int y) {
+		int column = next;
+		int previous = (count > 0 && column > 0) ? history[column - 1] : y;
+
+		// clear this column and the one after it, which shows where the cursor is
+		int clearTo = Math.min(column + 1, history.length - 1);
+		api.drawSolidRectangle(DrawingColor.WHITE, x0 + column, y0, x0 + clearTo, y1);
+		useColor(DrawingColor.BLACK);
+		api.drawLine(x0 + column, previous, x0 + column, y);
+
+		history[column] = y;
+		next = (column + 1) % history.length;
+		count = Math.min(count + 1, history.length);
+	}
+
+	private void scroll(int y) {
+		if (count < history.length) {
+			history[count++] = y;
+		}
+		else {
+			System.arraycopy(history, 1, history, 0, history.length - 1);
+			history[history.length - 1] = y;
+		}
+
+		// the newest sample is at the right edge, older ones to its left
+		LcdBitmap graphics = api.getGraphics();
+		graphics.fillRectangle(x0, y0, x1, y1, false);
+		int start = history.length - count;
+		for (int i = 0; i < count; i++) {
+			int previous = (i > 0) ? history[i - 1] : history[i];
+			graphics.fillRectangle(x0 + start + i, previous, x0 + start + i, history[i], true);
+		}
+		api.drawBitmap(graphics);
+	}
+}
@@ -0,0 +1,13 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.widgets;
+
+/*
+ * Sets how a sparkline makes room for new samples
+ */
+public enum LcdSparklineMode {
+	SCROLL,	// the history moves left and the newest sample is always at the right edge
+	SWEEP	// the history stays put and a cursor sweeps across, overwriting the oldest sample
+}
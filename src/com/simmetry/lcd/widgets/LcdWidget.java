@@ -0,0 +1,81 @@
+/**
+ * Copyright 2012 - Simmetry Solutions
+ * @author daveosborne
+ */
+package com.simmetry.lcd.widgets;
+
+import com.simmetry.lcd.moapi.DrawingColor;
+import com.simmetry.lcd.moapi.MatrixOrbitalApi;
+
+/**
+ * Base class of the dashboard widgets. A widget owns a rectangle of the LCD and shows a value
+ * scaled between a minimum and a maximum. Each widget remembers what it last drew, so a new
+ * value only sends the pixels that change rather than redrawing the widget.
+ */
+public abstract class LcdWidget {
+
+	protected final MatrixOrbitalApi api;
+	protected final int x0;
+	protected final int y0;
+	protected final int x1;
+	protected final int y1;
+	protected final double min;
+	protected final double max;
+
+	// false until the widget has been drawn in full
+	protected boolean drawn = false;
+
+	/**
+	 * @param api	The LCD to draw on
+	 * @param x_a	X location of one corner of the widget
+	 * @param y_a	Y location of one corner of the widget
+	 * @param x_b	X location of the opposite corner
+	 * @param y_b	Y location of the opposite corner
+	 * @param min	The value shown as empty
+	 * @param max	The value shown as full
+	 */
+	protected LcdWidget(MatrixOrbitalApi api, int x_a, int y_a, int x_b, int y_b, double min, double max) {
+		if (max <= min) {
+			throw new IllegalArgumentException("max must be greater than min: " + min + " " + max);
+		}
+		this.api = api;
+		this.x0 = Math.min(x_a, x_b);
+		this.y0 = Math.min(y_a, y_b);
+		this.x1 = Math.max(x_a, x_b);
+		this.y1 = Math.max(y_a, y_b);
+		this.min = min;
+		this.max = max;
+	}
+
+	/**
+	 * Shows a new value, sending only what changed since the last value.
+	 * @param value	The value, clamped to the widget's range
+	 */
+	public abstract void setValue(double value);
+
+	/**
+	 * Draws the whole widget again on the next setValue(), for example after the screen
+	 * has been cleared.
+	 */
+	public synchronized void invalidate() {
+		drawn = false;
+	}
+
+	/**
+	 * @return The value as a fraction (0.0 - 1.0) of the widget's range
+	 */
+	protected double fraction(double value) {
+		double f = (value - min) / (max - min);
+		return Math.max(0.0, Math.min(1.0, f));
+	}
+
+	/**
+	 * Sets the drawing color, unless the LCD is already drawing in it. Call while holding the
+	 * API lock, together with the drawing that uses the color.
+	 */
+	protected void useColor(DrawingColor color) {
+		if (api.getDrawingColor() != color) {
+			api.setDrawingColor(color);
+		}
+	}
+}